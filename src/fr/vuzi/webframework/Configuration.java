@@ -3,6 +3,7 @@ package fr.vuzi.webframework;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
@@ -11,6 +12,8 @@ import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.JsonToken;
 
+import fr.vuzi.webframework.renderer.FragmentGraph;
+
 public class Configuration {
 
 	/**
@@ -26,9 +29,136 @@ public class Configuration {
 	/**
 	 * Velocity rendering order
 	 */
-	public static Map<Integer, List<String>> velocityRenderingOrder;
+	public static volatile Map<Integer, List<String>> velocityRenderingOrder;
+	
+	/**
+	 * Velocity fragments dependency graph, compiled from the same tree as the rendering order
+	 */
+	public static volatile FragmentGraph velocityFragmentGraph = new FragmentGraph(Collections.<String, String>emptyMap());
+	
+	/**
+	 * Class names of the possible actions
+	 */
+	public static volatile List<String> actionClassnames;
+	
+	/**
+	 * Maximum number of route resolutions cached by the rewriter, 0 to disable
+	 */
+	public static int routeCacheSize = 10000;
+	
+	/**
+	 * Interval between two profile-guided reorderings of the rewrite rules, in milliseconds. 0 to disable
+	 */
+	public static int routeReorderInterval = 0;
+	
+	/**
+	 * Asynchronous mode : the requests are handled by the dispatcher threads, and the container threads
+	 * are released while the actions are running. Needs the servlet to support asynchronous requests
+	 */
+	public static boolean async = false;
+	
+	/**
+	 * Coalescing of the identical concurrent requests matching idempotent and anonymous rules : only one
+	 * of them is rendered, and its response is copied to the others
+	 */
+	public static boolean coalescing = false;
+	
+	/**
+	 * Strong entity tags of the rendered responses : the content is rendered in memory and hashed, and
+	 * not sent if the client already has it. The validators supplied by the actions are always used
+	 */
+	public static boolean etag = false;
+	
+	/**
+	 * Time given to each request, in milliseconds. The actions still running after this time are cancelled. 0 to disable
+	 */
+	public static int requestTimeout = 0;
+	
+	/**
+	 * Time given to each dispatched action, unless the action defines its own timeout, in milliseconds. 0 to disable
+	 */
+	public static int actionTimeout = 0;
+	
+	/**
+	 * Maximum weight of the results cached for the cacheable actions, in bytes. 0 to disable
+	 */
+	public static long actionCacheSize = 0;
+	
+	/**
+	 * Executor strategy of the dispatcher : "cached", "bounded", "forkjoin", "priority", "virtual", or a class name
+	 */
+	public static String executorType = "cached";
+	
+	/**
+	 * Number of threads of the dispatcher executor, 0 for the default
+	 */
+	public static int executorThreads = 0;
+	
+	/**
+	 * Size of the queue of the dispatcher executor, 0 for the default
+	 */
+	public static int executorQueueSize = 0;
+	
+	/**
+	 * Aging of the priority executor, in milliseconds per priority level, 0 for the default
+	 */
+	public static int executorAging = 0;
+	
+	/**
+	 * Time given to the running actions to finish when the servlet is destroyed, in milliseconds
+	 */
+	public static int executorShutdownTimeout = 10000;
+	
+	/**
+	 * Concurrency limits of the actions, by classname. The "*" limit applies to every other action class
+	 */
+	public static volatile Map<String, Integer> bulkheads = Collections.emptyMap();
+	
+	/**
+	 * Delay sent in the Retry-After header of the requests rejected because of the load, in seconds
+	 */
+	public static int retryAfter = 1;
+	
+	/**
+	 * Initial limit of the requests handled concurrently, adapted to the measured latency. 0 to disable
+	 */
+	public static int limiterInitial = 0;
+	
+	/**
+	 * Minimum limit of the requests handled concurrently
+	 */
+	public static int limiterMin = 1;
+	
+	/**
+	 * Maximum limit of the requests handled concurrently
+	 */
+	public static int limiterMax = 1000;
+	
+	/**
+	 * Interval between two checks of the modifications of a velocity template file, in seconds. 0 to never
+	 * reload the templates
+	 */
+	public static int velocityCheckInterval = 2;
+	
+	/**
+	 * URI of the batch route, null to disable
+	 */
+	public static String batchURI = null;
 	
-	public static List<String> actionClassnames;
+	/**
+	 * Maximum number of sub-requests of a batch
+	 */
+	public static int batchMaxSize = 20;
+	
+	/**
+	 * Off-heap memory used by the page cache, in bytes. 0 to disable
+	 */
+	public static long pageCacheSize = 0;
+	
+	/**
+	 * Time to live of the cached pages, in seconds
+	 */
+	public static int pageCacheTtl = 60;
 	
 	/**
 	 * Configuration constructor
@@ -52,6 +182,36 @@ public class Configuration {
 						initVelocityRenderingOrder(jParser);
 					else if(fieldName.equals("URI"))
 						initURI(jParser);
+					else if(fieldName.equals("route_cache_size"))
+						routeCacheSize = readInt(jParser);
+					else if(fieldName.equals("route_reorder_interval"))
+						routeReorderInterval = readInt(jParser);
+					else if(fieldName.equals("request_timeout"))
+						requestTimeout = readInt(jParser);
+					else if(fieldName.equals("action_timeout"))
+						actionTimeout = readInt(jParser);
+					else if(fieldName.equals("action_cache_size"))
+						actionCacheSize = readLong(jParser);
+					else if(fieldName.equals("async"))
+						async = readBoolean(jParser);
+					else if(fieldName.equals("coalescing"))
+						coalescing = readBoolean(jParser);
+					else if(fieldName.equals("etag"))
+						etag = readBoolean(jParser);
+					else if(fieldName.equals("executor"))
+						initExecutor(jParser);
+					else if(fieldName.equals("bulkheads"))
+						initBulkheads(jParser);
+					else if(fieldName.equals("retry_after"))
+						retryAfter = readInt(jParser);
+					else if(fieldName.equals("limiter"))
+						initLimiter(jParser);
+					else if(fieldName.equals("velocity_check_interval"))
+						velocityCheckInterval = readInt(jParser);
+					else if(fieldName.equals("batch"))
+						initBatch(jParser);
+					else if(fieldName.equals("page_cache"))
+						initPageCache(jParser);
 					
 				case START_OBJECT:
 				case END_OBJECT:
@@ -73,7 +233,7 @@ public class Configuration {
 	
 	private static void initActionClassnames(JsonParser jParser) throws Exception {
 
-		actionClassnames = new ArrayList<String>();
+		List<String> actionClassnames = new ArrayList<String>(); // Only published once read
 		JsonToken token = jParser.nextToken();
 		
 		if(token != JsonToken.START_ARRAY)
@@ -87,7 +247,7 @@ public class Configuration {
 		}
 		
 		if(token == JsonToken.END_ARRAY)
-			return;
+			Configuration.actionClassnames = Collections.unmodifiableList(actionClassnames);
 		else
 			throw new Exception("Invalid token in JSON configuration file");
 	}
@@ -105,9 +265,146 @@ public class Configuration {
 		}
 	}
 	
+	private static void initExecutor(JsonParser jParser) throws Exception {
+
+		if(jParser.nextToken() != JsonToken.START_OBJECT)
+			throw new Exception("Invalid token in JSON configuration file"); // Only objects
+		
+		while(jParser.nextToken() == JsonToken.FIELD_NAME) {
+			String fieldName = jParser.getCurrentName();
+			
+			if(fieldName.equals("type")) {
+				if(jParser.nextToken() != JsonToken.VALUE_STRING)
+					throw new Exception("Invalid token in JSON configuration file"); // Only string
+				executorType = jParser.getText();
+			} else if(fieldName.equals("threads"))
+				executorThreads = readInt(jParser);
+			else if(fieldName.equals("queue"))
+				executorQueueSize = readInt(jParser);
+			else if(fieldName.equals("aging"))
+				executorAging = readInt(jParser);
+			else if(fieldName.equals("shutdown_timeout"))
+				executorShutdownTimeout = readInt(jParser);
+			else
+				throw new Exception("Unknown executor field in JSON configuration file : " + fieldName);
+		}
+		
+		if(jParser.getCurrentToken() != JsonToken.END_OBJECT)
+			throw new Exception("Invalid token in JSON configuration file");
+	}
+	
+	private static void initLimiter(JsonParser jParser) throws Exception {
+
+		if(jParser.nextToken() != JsonToken.START_OBJECT)
+			throw new Exception("Invalid token in JSON configuration file"); // Only objects
+		
+		while(jParser.nextToken() == JsonToken.FIELD_NAME) {
+			String fieldName = jParser.getCurrentName();
+			
+			if(fieldName.equals("initial"))
+				limiterInitial = readInt(jParser);
+			else if(fieldName.equals("min"))
+				limiterMin = readInt(jParser);
+			else if(fieldName.equals("max"))
+				limiterMax = readInt(jParser);
+			else
+				throw new Exception("Unknown limiter field in JSON configuration file : " + fieldName);
+		}
+		
+		if(jParser.getCurrentToken() != JsonToken.END_OBJECT)
+			throw new Exception("Invalid token in JSON configuration file");
+	}
+	
+	private static void initBatch(JsonParser jParser) throws Exception {
+
+		if(jParser.nextToken() != JsonToken.START_OBJECT)
+			throw new Exception("Invalid token in JSON configuration file"); // Only objects
+		
+		while(jParser.nextToken() == JsonToken.FIELD_NAME) {
+			String fieldName = jParser.getCurrentName();
+			
+			if(fieldName.equals("uri")) {
+				if(jParser.nextToken() != JsonToken.VALUE_STRING)
+					throw new Exception("Invalid token in JSON configuration file"); // Only string
+				batchURI = jParser.getText();
+			} else if(fieldName.equals("max"))
+				batchMaxSize = readInt(jParser);
+			else
+				throw new Exception("Unknown batch field in JSON configuration file : " + fieldName);
+		}
+		
+		if(jParser.getCurrentToken() != JsonToken.END_OBJECT)
+			throw new Exception("Invalid token in JSON configuration file");
+	}
+	
+	private static void initPageCache(JsonParser jParser) throws Exception {
+
+		if(jParser.nextToken() != JsonToken.START_OBJECT)
+			throw new Exception("Invalid token in JSON configuration file"); // Only objects
+		
+		while(jParser.nextToken() == JsonToken.FIELD_NAME) {
+			String fieldName = jParser.getCurrentName();
+			
+			if(fieldName.equals("size"))
+				pageCacheSize = readLong(jParser);
+			else if(fieldName.equals("ttl"))
+				pageCacheTtl = readInt(jParser);
+			else
+				throw new Exception("Unknown page cache field in JSON configuration file : " + fieldName);
+		}
+		
+		if(jParser.getCurrentToken() != JsonToken.END_OBJECT)
+			throw new Exception("Invalid token in JSON configuration file");
+	}
+	
+	private static void initBulkheads(JsonParser jParser) throws Exception {
+
+		Map<String, Integer> bulkheads = new HashMap<String, Integer>(); // Only published once read
+		
+		if(jParser.nextToken() != JsonToken.START_OBJECT)
+			throw new Exception("Invalid token in JSON configuration file"); // Only objects
+		
+		while(jParser.nextToken() == JsonToken.FIELD_NAME)
+			bulkheads.put(jParser.getCurrentName(), readInt(jParser));
+		
+		if(jParser.getCurrentToken() != JsonToken.END_OBJECT)
+			throw new Exception("Invalid token in JSON configuration file");
+		
+		Configuration.bulkheads = Collections.unmodifiableMap(bulkheads);
+	}
+	
+	private static int readInt(JsonParser jParser) throws Exception {
+
+		if(jParser.nextToken() != JsonToken.VALUE_NUMBER_INT)
+			throw new Exception("Invalid token in JSON configuration file"); // Only integers
+		
+		return jParser.getIntValue();
+	}
+	
+	private static long readLong(JsonParser jParser) throws Exception {
+
+		if(jParser.nextToken() != JsonToken.VALUE_NUMBER_INT)
+			throw new Exception("Invalid token in JSON configuration file"); // Only integers
+		
+		return jParser.getLongValue();
+	}
+	
+	private static boolean readBoolean(JsonParser jParser) throws Exception {
+
+		switch(jParser.nextToken()) {
+			case VALUE_TRUE:
+				return true;
+			case VALUE_FALSE:
+				return false;
+			default:
+				throw new Exception("Invalid token in JSON configuration file"); // Only booleans
+		}
+	}
+	
 	private static void initVelocityRenderingOrder(JsonParser jParser) throws Exception {
 
 		ArrayList<Object[]> renderOrder = new ArrayList<Object[]>();
+		Map<String, String> parents = new LinkedHashMap<String, String>(); // Children first
 		Stack<String> stack = new Stack<String>();
 		int returned = 1;
 
@@ -132,16 +429,20 @@ public class Configuration {
 						break;
 
 					// Leaf that can be rendered at level 'level'
-					if(!CURRENT.equals(fieldName)) // Ignore "__CURRENT__"
+					if(!CURRENT.equals(fieldName)) { // Ignore "__CURRENT__"
 						renderOrder.add(new Object[] { fieldName, 1 });
+						parents.put(fieldName, stack.isEmpty() ? null : stack.peek());
+					}
 					
 					token = jParser.nextToken();
 				}
 				break;
 			case END_OBJECT:
-				if(stack.size() > 0) // If anything to render
-					renderOrder.add(new Object[] { stack.pop(), ++returned });
-				else
+				if(stack.size() > 0) { // If anything to render
+					String fieldName = stack.pop();
+					renderOrder.add(new Object[] { fieldName, ++returned });
+					parents.put(fieldName, stack.isEmpty() ? null : stack.peek());
+				} else
 					returned = 0;
 				token = jParser.nextToken();
 				break;
@@ -161,8 +462,8 @@ public class Configuration {
 			}
 		} while (returned > 0);
 		
-		// Set values
-		velocityRenderingOrder = new HashMap<Integer, List<String>>();
+		// Set values, only published once built
+		Map<Integer, List<String>> velocityRenderingOrder = new HashMap<Integer, List<String>>();
 		for(Object[] element : renderOrder) {
 			ArrayList<String> currentOrder = (ArrayList<String>) velocityRenderingOrder.get(element[1]);
 			
@@ -174,6 +475,7 @@ public class Configuration {
 			currentOrder.add((String) element[0]);
 		}
 		
-		velocityRenderingOrder = Collections.unmodifiableMap(velocityRenderingOrder);
+		Configuration.velocityRenderingOrder = Collections.unmodifiableMap(velocityRenderingOrder);
+		Configuration.velocityFragmentGraph = new FragmentGraph(parents);
 	}
 }
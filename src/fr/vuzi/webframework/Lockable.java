@@ -3,7 +3,12 @@ package fr.vuzi.webframework;
 /**
  * Lockable object. Lockable object are used with the servlet, and shall be locked at the
  * end of the initialization phase. Usually in the lock method, all collections and map will be set
- * immutable to assure thread safety
+ * immutable to assure thread safety.
+ * 
+ * A lockable object may be modified again once locked, to be reloaded without restarting the servlet:
+ * the modifications are made on a private copy, and only published at the next lock, usually in
+ * a single volatile write. The modifications must be done by a single thread, but the published
+ * values can be used at any time
  * 
  * @author Vuzi
  *
@@ -1,8 +1,13 @@
 package fr.vuzi.webframework;
 
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 
 
 /**
@@ -66,14 +71,42 @@ public class Utils {
 		return newtab;
 	}
 	
-	private static SimpleDateFormat headerFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
+	/**
+	 * Return a future completed with the given exception
+	 * 
+	 * @param cause The exception
+	 * @return The failed future
+	 */
+	public static <T> CompletableFuture<T> failedFuture(Throwable cause) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		future.completeExceptionally(cause);
+		return future;
+	}
+	
+	/**
+	 * Return the cause of a failed future, without the wrapping completion exception
+	 * 
+	 * @param t The exception of the future
+	 * @return The cause, as an exception
+	 */
+	public static Exception unwrapFailure(Throwable t) {
+		while((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null)
+			t = t.getCause();
+		
+		return t instanceof Exception ? (Exception) t : new Exception(t);
+	}
+	
+	/**
+	 * HTTP date format. Immutable, so it can be shared by all the threads
+	 */
+	private static final DateTimeFormatter headerFormat = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
 
 	public static String formatDate(Date d) {
-		return headerFormat.format(d);
+		return headerFormat.format(d.toInstant());
 	}
 	
 	public static String formatDate(long l) {
-		return headerFormat.format(l);
+		return headerFormat.format(Instant.ofEpochMilli(l));
 	}
 	
 	public static Date deformatDate(String s) {
@@ -81,7 +114,7 @@ public class Utils {
 			return new Date();
 		
 		try {
-			return headerFormat.parse(s);
+			return Date.from(Instant.from(headerFormat.parse(s)));
 		} catch (Exception e) {
 			e.printStackTrace();
 			return new Date();
@@ -1,7 +1,5 @@
 package fr.vuzi.webframework.action;
 
-import fr.vuzi.webframework.context.IContext;
-
 public class ActionDefault extends AActionNoCredentials {
 
 	@Override
@@ -15,11 +13,4 @@ public class ActionDefault extends AActionNoCredentials {
 		System.out.println("Payload : " + getActionContext().getParameterUnique("payload"));
 	}
 
-	@Override
-	public IAction cloneAction(IContext context) {
-		ActionDefault ad = new ActionDefault();
-		ad.setActionContext(context);
-		return ad;
-	}
-
 }
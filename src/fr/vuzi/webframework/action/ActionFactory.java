@@ -0,0 +1,134 @@
+package fr.vuzi.webframework.action;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.function.Supplier;
+
+import fr.vuzi.webframework.context.IContext;
+
+/**
+ * Factory of an action class. The factory is generated once for each action class, and then
+ * instantiates the actions by calling directly their empty constructor, without reflexivity :
+ * the constructor call can be inlined by the JIT like any <b>new</b>.
+ * 
+ * The factory also holds the template of the action, i.e. an instance used to read the action
+ * properties such as the credentials
+ * 
+ * @author Vuzi
+ *
+ */
+public class ActionFactory {
+
+	/**
+	 * The action class
+	 */
+	private final Class<? extends IAction> actionClass;
+	
+	/**
+	 * Generated constructor call
+	 */
+	private final Supplier<?> constructor;
+	
+	/**
+	 * The action template
+	 */
+	private final IAction template;
+	
+	/**
+	 * Action factory constructor
+	 * @param actionClass The action class, which must have an empty public constructor
+	 * @throws Exception Thrown if the action class can't be instantiated
+	 */
+	public ActionFactory(Class<? extends IAction> actionClass) throws Exception {
+		this.actionClass = actionClass;
+		this.constructor = generate(actionClass);
+		this.template = (IAction) constructor.get();
+	}
+	
+	/**
+	 * Return the action class
+	 * @return The action class
+	 */
+	public Class<? extends IAction> getActionClass() {
+		return actionClass;
+	}
+	
+	/**
+	 * Return the action template. The template must only be used to read the action properties
+	 * @return The action template
+	 */
+	public IAction getTemplate() {
+		return template;
+	}
+	
+	/**
+	 * Instantiate a new action, using the clone method of the action if overridden
+	 * @param context The new action context
+	 * @return The new action
+	 */
+	public IAction newAction(IContext context) {
+		IAction action = template.cloneAction(context);
+		
+		if(action == null) { // Not overridden
+			action = (IAction) constructor.get();
+			action.setActionContext(context);
+		}
+		
+		return action;
+	}
+	
+	/**
+	 * Generate the constructor call of the action class. The call is generated with the lambda metafactory
+	 * when the class is visible from the framework class loader, and with a method handle otherwise
+	 * @param actionClass The action class
+	 * @return The constructor call
+	 * @throws Exception Thrown if the constructor can't be found
+	 */
+	private static Supplier<?> generate(Class<?> actionClass) throws Exception {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		final MethodHandle handle = lookup.findConstructor(actionClass, MethodType.methodType(void.class)).asType(MethodType.methodType(Object.class));
+		
+		if(isVisible(actionClass)) {
+			try {
+				CallSite site = LambdaMetafactory.metafactory(lookup, "get", MethodType.methodType(Supplier.class),
+						MethodType.methodType(Object.class), lookup.findConstructor(actionClass, MethodType.methodType(void.class)),
+						MethodType.methodType(actionClass));
+				
+				return (Supplier<?>) site.getTarget().invoke();
+			} catch (Throwable t) {
+				// Use the method handle
+			}
+		}
+		
+		return new Supplier<Object>() {
+			@Override
+			public Object get() {
+				try {
+					return handle.invokeExact();
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Error e) {
+					throw e;
+				} catch (Throwable t) {
+					throw new IllegalStateException(t);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Test if a class is visible from the framework class loader, which defines the generated classes
+	 * @param actionClass The class
+	 * @return True if visible, false otherwise
+	 */
+	private static boolean isVisible(Class<?> actionClass) {
+		try {
+			return Class.forName(actionClass.getName(), false, ActionFactory.class.getClassLoader()) == actionClass;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+}
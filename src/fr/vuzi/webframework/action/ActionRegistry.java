@@ -0,0 +1,110 @@
+package fr.vuzi.webframework.action;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import fr.vuzi.webframework.Lockable;
+import fr.vuzi.webframework.context.IContext;
+
+/**
+ * Registry of the actions factories, by classname. The registry is shared between the rewriter,
+ * which reads the actions templates, and the dispatcher, which instantiates the actions.
+ * 
+ * Once locked, the new actions are only published at the next lock
+ * 
+ * @author Vuzi
+ *
+ */
+public class ActionRegistry implements Lockable {
+
+	/**
+	 * Published factories
+	 */
+	private volatile Map<String, ActionFactory> factories;
+	
+	/**
+	 * Factories being registered, published at the next lock, or null if none
+	 */
+	private Map<String, ActionFactory> pendingFactories;
+	
+	/**
+	 * Action registry constructor
+	 */
+	public ActionRegistry() {
+		pendingFactories = new HashMap<String, ActionFactory>();
+		factories = pendingFactories; // Used as is until locked
+	}
+	
+	/**
+	 * Register an action class, if not already registered
+	 * @param actionClassname The action classname
+	 */
+	public synchronized void register(String actionClassname) {
+		if(actionClassname == null || factories.containsKey(actionClassname) || (pendingFactories != null && pendingFactories.containsKey(actionClassname)))
+			return;
+		
+		try {
+			ActionFactory factory = new ActionFactory(Class.forName(actionClassname).asSubclass(IAction.class));
+			
+			if(pendingFactories == null) // Copy on write
+				pendingFactories = new HashMap<String, ActionFactory>(factories);
+			
+			pendingFactories.put(actionClassname, factory);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Register a collection of action classes
+	 * @param actionClassnames The actions classnames
+	 */
+	public void register(Collection<String> actionClassnames) {
+		if(actionClassnames == null)
+			return;
+		
+		for(String actionClassname : actionClassnames)
+			register(actionClassname);
+	}
+	
+	/**
+	 * Return the factory of an action class
+	 * @param actionClassname The action classname
+	 * @return The factory, or null if not registered
+	 */
+	public ActionFactory getFactory(String actionClassname) {
+		return actionClassname != null ? factories.get(actionClassname) : null;
+	}
+	
+	/**
+	 * Return the template of an action class
+	 * @param actionClassname The action classname
+	 * @return The template, or null if not registered
+	 */
+	public IAction getTemplate(String actionClassname) {
+		ActionFactory factory = getFactory(actionClassname);
+		return factory != null ? factory.getTemplate() : null;
+	}
+	
+	/**
+	 * Instantiate an action
+	 * @param actionClassname The action classname
+	 * @param context The new action context
+	 * @return The new action, or null if not registered
+	 */
+	public IAction newAction(String actionClassname, IContext context) {
+		ActionFactory factory = getFactory(actionClassname);
+		return factory != null ? factory.newAction(context) : null;
+	}
+
+	@Override
+	public synchronized void lock() {
+		if(pendingFactories != null) {
+			factories = Collections.unmodifiableMap(pendingFactories); // Atomic swap
+			pendingFactories = null;
+		}
+	}
+	
+}
@@ -17,7 +17,8 @@ import fr.vuzi.webframework.context.IContext;
 public interface IAction extends Callable<Void>, Cloneable {
 	
 	/**
-	 * Return the priority value of the action. 0 is the default priority
+	 * Return the priority value of the action. 0 is the default priority, and the actions with the
+	 * highest priority are run first when the dispatcher uses the priority executor
 	 * @return The priority of the action
 	 */
 	public int getPriority();
@@ -64,15 +65,27 @@ public interface IAction extends Callable<Void>, Cloneable {
 	public IContext getActionContext();
 	
 	/**
-	 * Clone method, used to clone the action from its template instance
+	 * Clone method, used to clone the action from its template instance. Optional : by default the
+	 * action is instantiated with its empty constructor, and its context set
 	 * @param context The action new context
-	 * @return A new action instance
+	 * @return A new action instance, or null to use the empty constructor
 	 */
-	public IAction cloneAction(IContext context);
+	public default IAction cloneAction(IContext context) {
+		return null;
+	}
 	
 	/**
 	 * If the action need to be rendered or not
 	 * @return True if the action needs to be rendered, false otherwise
 	 */
 	public boolean needRenderer();
+	
+	/**
+	 * Return the time given to the action once dispatched. The action is interrupted if still
+	 * running after this time, or after the deadline of the request
+	 * @return The timeout, in milliseconds, 0 to use the dispatcher default timeout
+	 */
+	public default long getTimeout() {
+		return 0;
+	}
 }
@@ -0,0 +1,41 @@
+package fr.vuzi.webframework.action;
+
+/**
+ * Cacheable action. A cacheable action is a pure function of a few request parameters : its
+ * results, i.e. the context attributes it sets, only depend on the values of these parameters.
+ * When the dispatcher has an action cache, the attributes are stored and then served to the
+ * next requests with the same parameters, without proceeding the action again.
+ * 
+ * Note that the cached attributes values are shared between the requests, and should
+ * then never be modified once set
+ * 
+ * @author Vuzi
+ *
+ */
+public interface ICacheableAction extends IAction {
+
+	/**
+	 * Return the names of the parameters used as cache key
+	 * @return The parameters names
+	 */
+	public String[] getCacheKeyParameters();
+	
+	/**
+	 * Return the names of the context attributes set by the action, which are cached
+	 * @return The attributes names, usually "model"
+	 */
+	public String[] getCachedAttributes();
+	
+	/**
+	 * Return the time to live of the cached results
+	 * @return The time to live, in milliseconds, 0 for no expiration
+	 */
+	public long getCacheTtl();
+	
+	/**
+	 * Return the weight of the cached results, i.e. an estimation of their size in memory
+	 * @return The weight, in bytes
+	 */
+	public int getCacheWeight();
+	
+}
@@ -0,0 +1,44 @@
+package fr.vuzi.webframework.context;
+
+/**
+ * State of an action dispatched for a request, used by the renderers to know if the
+ * values of an action can be rendered
+ * 
+ * @author Vuzi
+ *
+ */
+public enum ActionState {
+
+	/**
+	 * Dispatched, and not done yet
+	 */
+	RUNNING,
+	
+	/**
+	 * Done without error
+	 */
+	DONE,
+	
+	/**
+	 * Failed with an exception
+	 */
+	FAILED,
+	
+	/**
+	 * Cancelled because its deadline was reached
+	 */
+	TIMED_OUT,
+	
+	/**
+	 * Never run, because its bulkhead was full
+	 */
+	REJECTED;
+	
+	/**
+	 * Test if the action is over, but without its values
+	 * @return True if the action failed, timed out or was rejected, false otherwise
+	 */
+	public boolean isFailure() {
+		return this == FAILED || this == TIMED_OUT || this == REJECTED;
+	}
+}
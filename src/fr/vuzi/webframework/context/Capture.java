@@ -0,0 +1,95 @@
+package fr.vuzi.webframework.context;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+
+/**
+ * Lazy parameter value, captured by a rewrite rule. Only the offsets of the capture in the
+ * source URI are stored, and the value is decoded the first time it is read. Captures without
+ * any escaped character are never decoded
+ *
+ * @author Vuzi
+ *
+ */
+public class Capture {
+
+	/**
+	 * Source URI
+	 */
+	private final String source;
+
+	/**
+	 * Start of the capture, inclusive
+	 */
+	private final int start;
+
+	/**
+	 * End of the capture, exclusive
+	 */
+	private final int end;
+
+	/**
+	 * Decoded value, once read
+	 */
+	private volatile String value;
+
+	/**
+	 * Capture constructor
+	 * @param source The source URI
+	 * @param start The start of the capture, inclusive
+	 * @param end The end of the capture, exclusive
+	 */
+	public Capture(String source, int start, int end) {
+		this.source = source;
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * Return the decoded value of the capture
+	 * @return The decoded value
+	 */
+	public String getValue() {
+		String v = value;
+
+		if(v == null)
+			value = v = decode();
+
+		return v;
+	}
+
+	/**
+	 * Return the decoded value of the capture, as a parameter value
+	 * @return A new array containing the decoded value
+	 */
+	public String[] getValues() {
+		return new String[] { getValue() };
+	}
+
+	/**
+	 * Decode the capture
+	 * @return The decoded value
+	 */
+	private String decode() {
+		String raw = source.substring(start, end);
+
+		for(int i = start; i < end; i++) {
+			char c = source.charAt(i);
+
+			if(c == '%' || c == '+') { // Escaped value
+				try {
+					return URLDecoder.decode(raw, "UTF-8");
+				} catch (UnsupportedEncodingException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+
+		return raw;
+	}
+
+	@Override
+	public String toString() {
+		return getValue();
+	}
+}
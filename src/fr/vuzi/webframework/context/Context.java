@@ -10,6 +10,7 @@ import java.security.MessageDigest;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -30,6 +31,7 @@ import com.sun.org.apache.xerces.internal.impl.dv.util.Base64;
 
 import fr.vuzi.webframework.Configuration;
 import fr.vuzi.webframework.Utils;
+import fr.vuzi.webframework.dispatcher.IRewriteRule;
 
 /**
  * Default context implementation, using the tomcat session handling
@@ -59,6 +61,11 @@ public class Context implements IContext {
 	 */
 	private Map<String, String[]> properties;
 	
+	/**
+	 * Captured properties hash map, not decoded until read
+	 */
+	private Map<String, Capture> captures;
+	
 	/**
 	 * Uploaded files hash map
 	 */
@@ -94,6 +101,31 @@ public class Context implements IContext {
 	 */
 	private int status = 200;
 	
+	/**
+	 * Entity tag of the response, null if none
+	 */
+	private String etag;
+	
+	/**
+	 * Last modification date of the response, -1 if unknown
+	 */
+	private long lastModified = -1;
+	
+	/**
+	 * Matched rewrite rule, null if none
+	 */
+	private IRewriteRule rewriteRule;
+	
+	/**
+	 * Request deadline, in the nanoTime time, 0 if none
+	 */
+	private volatile long deadline;
+	
+	/**
+	 * Dispatched actions states, by classname
+	 */
+	private Map<String, ActionState> actionStates;
+	
 	/**
 	 * Context default implementation constructor
 	 * @param request The request
@@ -121,9 +153,11 @@ public class Context implements IContext {
 			e.printStackTrace();
 		}
 		
-		fragments = new HashMap<String, String>();
+		fragments = new ConcurrentHashMap<String, String>(); // Fragments may be rendered in parallel
 		properties = new HashMap<String, String[]>();
+		captures = null;
 		files = new HashMap<String, File>();
+		actionStates = new ConcurrentHashMap<String, ActionState>(); // Set by the dispatcher threads
 		
 
 		requestAddr = request.getScheme() + "://" + request.getServerName() + ":" + request.getServerPort() + Configuration.URIroot + "/";
@@ -250,11 +284,25 @@ public class Context implements IContext {
 
 	@Override
 	public String[] getParameter(String key) {
+		if(captures != null) {
+			Capture capture = captures.get(key);
+			
+			if(capture != null)
+				return capture.getValues(); // Decoded on first read
+		}
+		
 		return properties.get(key);
 	}
 
 	@Override
 	public String getParameterUnique(String key) {
+		if(captures != null) {
+			Capture capture = captures.get(key);
+			
+			if(capture != null)
+				return capture.getValue();
+		}
+		
 		String[] tmp = properties.get(key);
 		
 		if(tmp != null && tmp.length > 0)
@@ -271,17 +319,29 @@ public class Context implements IContext {
 	
 	@Override
 	public void setParamater(String key, String[] values) {
+		if(captures != null)
+			captures.remove(key);
+		
 		properties.put(key, values);
 	}
+	
+	@Override
+	public void setParameterCapture(String key, Capture capture) {
+		if(captures == null)
+			captures = new HashMap<String, Capture>();
+		
+		properties.remove(key);
+		captures.put(key, capture);
+	}
 
 	@Override
 	public void addParameter(String key, String[] values) {
-		setParamater(key, Utils.appendToArray(properties.get(key), values));
+		setParamater(key, Utils.appendToArray(getParameter(key), values));
 	}
 
 	@Override
 	public void addParameter(String key, String value) {
-		setParamater(key, Utils.appendToArray(properties.get(key), value));
+		setParamater(key, Utils.appendToArray(getParameter(key), value));
 	}
 
 	@Override
@@ -351,7 +411,10 @@ public class Context implements IContext {
 	
 	@Override
 	public void setFragment(String key, String fragment) {
-		fragments.put(key, fragment);
+		if(fragment == null)
+			fragments.remove(key);
+		else
+			fragments.put(key, fragment);
 	}
 
 	@Override
@@ -381,6 +444,16 @@ public class Context implements IContext {
 	public String getActionClassname() {
 		return actionClassname;
 	}
+	
+	@Override
+	public void setRewriteRule(IRewriteRule rule) {
+		this.rewriteRule = rule;
+	}
+	
+	@Override
+	public IRewriteRule getRewriteRule() {
+		return rewriteRule;
+	}
 
 	@Override
 	public void setStatus(int status) {
@@ -391,6 +464,47 @@ public class Context implements IContext {
 	public int getStatus() {
 		return this.status;
 	}
+	
+	@Override
+	public void setETag(String etag) {
+		this.etag = etag;
+	}
+	
+	@Override
+	public String getETag() {
+		return etag;
+	}
+	
+	@Override
+	public void setLastModified(long lastModified) {
+		this.lastModified = lastModified;
+	}
+	
+	@Override
+	public long getLastModified() {
+		return lastModified;
+	}
+	
+	@Override
+	public void setDeadline(long deadline) {
+		if(this.deadline == 0 || deadline - this.deadline < 0)
+			this.deadline = deadline;
+	}
+	
+	@Override
+	public long getDeadline() {
+		return deadline;
+	}
+	
+	@Override
+	public void setActionState(String classname, ActionState state) {
+		actionStates.put(classname, state);
+	}
+	
+	@Override
+	public ActionState getActionState(String classname) {
+		return actionStates.get(classname);
+	}
 
 	@Override
 	public String getRequestAddr() {
@@ -8,6 +8,8 @@ import java.util.Map;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import fr.vuzi.webframework.dispatcher.IRewriteRule;
+
 /**
  * The context represent the context of a single request, and all its informations in
  * an unified and easy-to-access way
@@ -76,6 +78,15 @@ public interface IContext {
 	 * @param values The parameter values
 	 */
 	public void setParamater(String key, String[] values);
+	
+	/**
+	 * Set a lazy parameter value for a given key, captured in the request URI. The value
+	 * is only decoded the first time it is read. If values are already present with this
+	 * key, they will be overwritten
+	 * @param key The parameter key
+	 * @param capture The captured value
+	 */
+	public void setParameterCapture(String key, Capture capture);
 
 	/**
 	 * Add parameter value(s) for the given key
@@ -205,6 +216,45 @@ public interface IContext {
 	 */
 	public String getActionClassname();
 	
+	/**
+	 * Set the rewrite rule matched by the request
+	 * @param rule The rewrite rule
+	 */
+	public void setRewriteRule(IRewriteRule rule);
+	
+	/**
+	 * Return the rewrite rule matched by the request
+	 * @return The rewrite rule, or null if no rule matched
+	 */
+	public IRewriteRule getRewriteRule();
+	
+	/**
+	 * Set the deadline of the request. The actions still running after the deadline are cancelled.
+	 * A deadline can only be moved earlier
+	 * @param deadline The deadline, in the {@link System#nanoTime()} time
+	 */
+	public void setDeadline(long deadline);
+	
+	/**
+	 * Return the deadline of the request
+	 * @return The deadline, in the {@link System#nanoTime()} time, or 0 if none
+	 */
+	public long getDeadline();
+	
+	/**
+	 * Set the state of an action dispatched for the request
+	 * @param classname The action classname
+	 * @param state The action state
+	 */
+	public void setActionState(String classname, ActionState state);
+	
+	/**
+	 * Return the state of an action dispatched for the request
+	 * @param classname The action classname
+	 * @return The action state, or null if never dispatched
+	 */
+	public ActionState getActionState(String classname);
+	
 	/**
 	 * This method is called if the basic authentication is used on the server
 	 * @param login
@@ -224,6 +274,32 @@ public interface IContext {
 	 */
 	public void setStatus(int status);
 	
+	/**
+	 * Set the entity tag of the response, supplied by an action or a rule before the rendering. The
+	 * tag is sent as a weak validator, and the rendering is skipped if the client already has it
+	 * @param etag The entity tag, without the quotes, or null if none
+	 */
+	public void setETag(String etag);
+	
+	/**
+	 * Return the entity tag of the response, supplied by an action or a rule
+	 * @return The entity tag, or null if none
+	 */
+	public String getETag();
+	
+	/**
+	 * Set the last modification date of the response, supplied by an action or a rule before the
+	 * rendering. The rendering is skipped if the client already has this version
+	 * @param lastModified The date, in milliseconds, or -1 if unknown
+	 */
+	public void setLastModified(long lastModified);
+	
+	/**
+	 * Return the last modification date of the response, supplied by an action or a rule
+	 * @return The date, in milliseconds, or -1 if unknown
+	 */
+	public long getLastModified();
+	
 	/**
 	 * Return if the response supports the given compression
 	 * @param encoding The compression
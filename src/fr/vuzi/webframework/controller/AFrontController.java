@@ -1,17 +1,34 @@
 package fr.vuzi.webframework.controller;
 
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import fr.vuzi.webframework.Configuration;
+import fr.vuzi.webframework.Utils;
+import fr.vuzi.webframework.action.ActionRegistry;
 import fr.vuzi.webframework.action.IAction;
 import fr.vuzi.webframework.context.Context;
 import fr.vuzi.webframework.context.IContext;
+import fr.vuzi.webframework.dispatcher.ActionCache;
+import fr.vuzi.webframework.dispatcher.BulkheadFullException;
 import fr.vuzi.webframework.dispatcher.Dispatcher;
 import fr.vuzi.webframework.dispatcher.IDispatcher;
 import fr.vuzi.webframework.dispatcher.IRewriter;
 import fr.vuzi.webframework.dispatcher.Rewriter;
+import fr.vuzi.webframework.dispatcher.executor.CachedExecutorStrategy;
+import fr.vuzi.webframework.dispatcher.executor.ExecutorStrategies;
 import fr.vuzi.webframework.renderer.MainRenderer;
 
 
@@ -22,6 +39,11 @@ public abstract class AFrontController extends HttpServlet {
 	 */
 	private static final long serialVersionUID = -4921851913561526633L;
 
+	/**
+	 * Actions registry, shared by the rewriter and the dispatcher
+	 */
+	protected ActionRegistry registry;
+	
 	/**
 	 * Rewriter
 	 */
@@ -37,6 +59,26 @@ public abstract class AFrontController extends HttpServlet {
 	 */
 	protected MainRenderer renderer;
 	
+	/**
+	 * Coalescer of the identical concurrent requests, or null if disabled
+	 */
+	protected RequestCoalescer coalescer;
+	
+	/**
+	 * Adaptive limit of the requests handled concurrently, or null if disabled
+	 */
+	protected AdaptiveLimiter limiter;
+	
+	/**
+	 * Batch route, or null if disabled
+	 */
+	protected BatchHandler batchHandler;
+	
+	/**
+	 * Cache of the anonymous pages, or null if disabled
+	 */
+	protected PageCache pageCache;
+	
 	@Override
 	public void init() {
 		// -- Configuration file --
@@ -46,27 +88,115 @@ public abstract class AFrontController extends HttpServlet {
 			e.printStackTrace();
 		}
 		
+		// -- Actions --
+		registry = new ActionRegistry();
+		
 		// -- Dispatcher --
-		dispatcher = new Dispatcher();
+		Dispatcher defaultDispatcher;
+		try {
+			defaultDispatcher = new Dispatcher(ExecutorStrategies.forType(Configuration.executorType, Configuration.executorThreads, Configuration.executorQueueSize, Configuration.executorAging), registry);
+		} catch (Exception e) {
+			e.printStackTrace(); // Invalid strategy, use the default one
+			defaultDispatcher = new Dispatcher(new CachedExecutorStrategy(), registry);
+		}
+		defaultDispatcher.setShutdownTimeout(Configuration.executorShutdownTimeout);
+		defaultDispatcher.setDefaultTimeout(Configuration.actionTimeout);
+		defaultDispatcher.setBulkheads(Configuration.bulkheads);
+		if(Configuration.actionCacheSize > 0)
+			defaultDispatcher.setActionCache(new ActionCache(Configuration.actionCacheSize));
+		dispatcher = defaultDispatcher;
 		dispatcher.setPossibleActions(Configuration.actionClassnames);
 		
 		// -- Renderer --
 		renderer = new MainRenderer(dispatcher);
 		initRenderers();
 
+		// -- Limiter --
+		if(Configuration.limiterInitial > 0)
+			limiter = new AdaptiveLimiter(Configuration.limiterInitial, Configuration.limiterMin, Configuration.limiterMax);
+		
+		// -- Batch --
+		if(Configuration.batchURI != null)
+			batchHandler = new BatchHandler(this, Configuration.batchURI, Configuration.batchMaxSize);
+		
+		// -- Coalescing --
+		if(Configuration.coalescing)
+			coalescer = new RequestCoalescer();
+		
+		// -- Page cache --
+		if(Configuration.pageCacheSize > 0) {
+			pageCache = new PageCache(Configuration.pageCacheSize, Configuration.pageCacheTtl);
+			getServletContext().setAttribute(PageCache.ATTRIBUTE, pageCache); // Reachable by the actions
+		}
+
 		// -- Rewriter --
-		rewriter = new Rewriter();
+		Rewriter defaultRewriter = new Rewriter(registry, Configuration.routeCacheSize);
+		defaultRewriter.setReorderInterval(Configuration.routeReorderInterval);
+		rewriter = defaultRewriter;
 		initRewriterRules();
 
 		// -- Thread safety --
+		registry.lock();
 		rewriter.lock();
 		dispatcher.lock();
 		renderer.lock();
 	}
 	
+	@Override
+	public void destroy() {
+		dispatcher.shutdown(); // Stop the dispatcher threads
+		super.destroy();
+	}
+	
+	/**
+	 * Reload the configuration file and the rewrite rules, without restarting the servlet. The rules
+	 * and the actions are rebuilt while the requests are still served with the previous ones, then
+	 * published at once: the requests being handled finish with the previous rules
+	 * @throws Exception Thrown if the configuration file could not be read. The previous rules are kept
+	 */
+	public synchronized void reload() throws Exception {
+		Configuration.initWithConfigurationFile();
+		
+		// -- Dispatcher --
+		dispatcher.setPossibleActions(Configuration.actionClassnames);
+		if(dispatcher instanceof Dispatcher)
+			((Dispatcher) dispatcher).setBulkheads(Configuration.bulkheads);
+		
+		// -- Rewriter --
+		rewriter.clearRules();
+		initRewriterRules();
+		
+		// -- Publication --
+		registry.lock(); // Actions first, as the new rules may use them
+		dispatcher.lock();
+		rewriter.lock();
+	}
+	
+	/**
+	 * Reload the configuration file and the rewrite rules in a background thread
+	 * @return The started thread
+	 * @see #reload()
+	 */
+	public Thread reloadInBackground() {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					reload();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}, "jwf-reload");
+		
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+	
 	/**
 	 * Initialize the rewriter. This method should be overrided in order to add the rewrite rules.
-	 * By default there is rewrite rules
+	 * By default there is rewrite rules. Also called when the rules are reloaded
 	 */
 	protected abstract void initRewriterRules();
 	
@@ -89,9 +219,70 @@ public abstract class AFrontController extends HttpServlet {
 		errorHandle(context, code, message, null);
 	}
 	
+	/**
+	 * Handle a request. When the adaptive limiter is enabled, the requests over the limit are rejected
+	 * at once with a 503, and the latency of the other ones is measured to adapt the limit
+	 * @param request The servlet request
+	 * @param response The servlet response
+	 */
 	@Override
-	public void service(HttpServletRequest request, HttpServletResponse response) {
-		handle(request, response);
+	public void service(HttpServletRequest request, final HttpServletResponse response) {
+		final AdaptiveLimiter limiter = this.limiter;
+		boolean async = Configuration.async && request.isAsyncSupported();
+		
+		if(limiter == null) {
+			if(async)
+				handleAsync(request, response);
+			else
+				handle(request, response);
+			return;
+		}
+		
+		if(!limiter.tryAcquire()) {
+			// 503, without creating the context
+			response.setHeader("Retry-After", String.valueOf(Configuration.retryAfter));
+			response.setStatus(503);
+			return;
+		}
+		
+		final long start = System.nanoTime();
+		
+		if(async) {
+			CompletableFuture<Completion> handling;
+			
+			try {
+				handling = handleAsync(request, response);
+			} catch (RuntimeException e) {
+				limiter.release(System.nanoTime() - start, false);
+				throw e;
+			}
+			
+			handling.whenComplete(new BiConsumer<Completion, Throwable>() {
+				@Override
+				public void accept(Completion completion, Throwable t) {
+					// The response may already be recycled : only the recorded outcome is used
+					if(completion != null)
+						limiter.release(completion.getEnd() - start, completion.isDropped());
+					else
+						limiter.release(System.nanoTime() - start, false);
+				}
+			});
+		} else {
+			try {
+				handle(request, response);
+			} finally {
+				limiter.release(System.nanoTime() - start, isDropped(response));
+			}
+		}
+	}
+	
+	/**
+	 * Test if a request failed because of the load
+	 * @param response The servlet response
+	 * @return True if the request was rejected or timed out, false otherwise
+	 */
+	private static boolean isDropped(HttpServletResponse response) {
+		return response.getStatus() == 503 || response.getStatus() == 504;
 	}
 
 	/**
@@ -101,15 +292,39 @@ public abstract class AFrontController extends HttpServlet {
 	 * @param response The servlet response
 	 */
 	protected void handle(HttpServletRequest request, HttpServletResponse response) {
+		boolean batch = batchHandler != null && batchHandler.accepts(request);
+		
+		if(batch)
+			request = batchHandler.wrap(request); // Body read by the batch handler
+		else if(coalescer != null || pageCache != null)
+			response = new BufferedResponse(response); // May be recorded
+		
 		IContext context = createContext(request, response); // Initialize the context
 		
 		try {
 			context.init();
+			initDeadline(context);
+			
+			if(batch) {
+				try {
+					batchHandler.execute(context).get();
+				} catch (ExecutionException e) {
+					throw Utils.unwrapFailure(e);
+				}
+				return;
+			}
+			
 			IAction templateAction = rewriter.rewrite(context); // Find the action template
 			
 			if(checkClass(templateAction)) {
 				if(checkCredentials(context, templateAction)) {
-					renderer.render(context);
+					if(pageCache != null && pageCache.accepts(context)) {
+						if(!pageCache.serve(context))
+							pageCache.render(context, renderer);
+					} else if(coalescer != null && coalescer.accepts(context))
+						coalescer.render(context, renderer);
+					else
+						renderer.render(context);
 				} else {
 					// 403
 					errorHandle(context, 403, "you don't have the credentials to view this page");
@@ -120,13 +335,213 @@ public abstract class AFrontController extends HttpServlet {
 				errorHandle(context, 404, "the page doesn't exist");
 			}
 		} catch (Exception e) {
-			e.printStackTrace(); // 500
-			errorHandle(context, 500, "error while loading page", e);
+			if(!failed(context, e)) // Aborted by the container
+				throw new IllegalStateException("The request failed once its response was committed", e);
 		} finally {
 			context.removeUploadedFiles();
 		}
 	}
 	
+	/**
+	 * Asynchronous version of the handle method. The rewriting and the credentials checking are done
+	 * in the container thread, then the actions are dispatched and rendered by the dispatcher threads :
+	 * the container thread is released without waiting for the actions, and the response is completed
+	 * once the rendering is done. Needs the servlet to support asynchronous requests
+	 * @param request The servlet request
+	 * @param response The servlet response
+	 * @return The future completed once the response is completed, with the outcome of the request
+	 *         recorded before the completion
+	 */
+	protected CompletableFuture<Completion> handleAsync(HttpServletRequest request, HttpServletResponse response) {
+		boolean batch = batchHandler != null && batchHandler.accepts(request);
+		final GuardedResponse guard = new GuardedResponse(response); // Nothing written once completed
+		
+		response = guard;
+		
+		if(batch)
+			request = batchHandler.wrap(request); // Body read by the batch handler
+		else if(coalescer != null || pageCache != null)
+			response = new BufferedResponse(response); // May be recorded
+		
+		final AsyncContext asyncContext = request.startAsync(request, response);
+		final IContext context = createContext(request, response); // Initialize the context
+		CompletableFuture<Void> rendering;
+		
+		try {
+			context.init();
+			initDeadline(context);
+			IAction templateAction = batch ? null : rewriter.rewrite(context); // Find the action template
+			
+			if(batch) {
+				rendering = batchHandler.execute(context);
+			} else if(checkClass(templateAction)) {
+				if(checkCredentials(context, templateAction)) {
+					if(pageCache != null && pageCache.accepts(context)) {
+						if(pageCache.serve(context))
+							rendering = CompletableFuture.completedFuture(null);
+						else
+							rendering = pageCache.renderAsync(context, renderer);
+					} else if(coalescer != null && coalescer.accepts(context))
+						rendering = coalescer.renderAsync(context, renderer);
+					else
+						rendering = renderer.renderAsync(context);
+				} else {
+					// 403
+					errorHandle(context, 403, "you don't have the credentials to view this page");
+					rendering = CompletableFuture.completedFuture(null);
+				}
+				
+			} else {
+				// 404
+				errorHandle(context, 404, "the page doesn't exist");
+				rendering = CompletableFuture.completedFuture(null);
+			}
+		} catch (Exception e) {
+			rendering = Utils.failedFuture(e);
+		}
+		
+		asyncContext.setTimeout(0); // As the synchronous requests, only bounded by their deadline, which sends the 504
+		
+		final CompletableFuture<Completion> done = new CompletableFuture<Completion>();
+		final CompletableFuture<Void> rendered = rendering;
+		final AtomicBoolean finished = new AtomicBoolean(); // Only finished once, by the rendering or the container
+		
+		asyncContext.addListener(new AsyncListener() {
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				if(finished.compareAndSet(false, true)) {
+					context.setDeadline(System.nanoTime()); // No more action for this request
+					rendered.cancel(true);
+					finish(context, guard, asyncContext, done, new TimeoutException("The request timed out"));
+				}
+			}
+			
+			@Override
+			public void onError(AsyncEvent event) throws IOException {
+				if(finished.compareAndSet(false, true)) {
+					context.setDeadline(System.nanoTime());
+					rendered.cancel(true);
+					finish(context, guard, asyncContext, done, event.getThrowable() != null ? event.getThrowable() : new IOException("The request failed"));
+				}
+			}
+			
+			@Override
+			public void onStartAsync(AsyncEvent event) throws IOException {}
+			
+			@Override
+			public void onComplete(AsyncEvent event) throws IOException {}
+		});
+		
+		rendering.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void v, Throwable t) {
+				if(finished.compareAndSet(false, true))
+					finish(context, guard, asyncContext, done, t);
+			}
+		});
+		
+		return done;
+	}
+	
+	/**
+	 * Finish an asynchronous request : send the error page of the failure if any, record the outcome of
+	 * the request, then complete it. The rendering may still be running, e.g. after an error of the
+	 * container : its writes wait for the request to be completed, then are dropped
+	 * @param context The request context
+	 * @param guard The guarded response of the request
+	 * @param asyncContext The asynchronous context of the request
+	 * @param done The future completed with the outcome of the request
+	 * @param t The failure, or null if the request was rendered
+	 */
+	private void finish(IContext context, GuardedResponse guard, AsyncContext asyncContext, CompletableFuture<Completion> done, Throwable t) {
+		boolean dropped = false;
+		Completion completion = null;
+		
+		try {
+			synchronized (guard) { // No write of the rendering until completed
+				try {
+					if(t != null)
+						failed(context, Utils.unwrapFailure(t)); // If committed, the partial response is completed as is
+				} finally {
+					try {
+						// Recorded before the completion, after which the response can't be read anymore
+						dropped = isDropped(context.getResponse());
+					} catch (RuntimeException e) {
+						// Consider the request as served
+					}
+					
+					completion = new Completion(System.nanoTime(), dropped);
+					
+					try {
+						context.removeUploadedFiles();
+						
+						try {
+							asyncContext.complete();
+						} catch (IllegalStateException e) {
+							// Already completed by the container
+						}
+					} finally {
+						guard.complete();
+					}
+				}
+			}
+		} finally {
+			done.complete(completion);
+		}
+	}
+	
+	/**
+	 * Send the error page of a failed request : 504 if it took too long, 503 if the server is overloaded,
+	 * and 500 otherwise. The error page replaces the partial response of a failed rendering, which is
+	 * cleared with its status and headers, e.g. its content encoding. If it was already committed, the
+	 * error page can't be sent anymore, and the response must be aborted instead
+	 * @param context The request context
+	 * @param e The failure
+	 * @return True if the error page was sent, false if the response was already committed
+	 */
+	protected boolean failed(IContext context, Exception e) {
+		if(!(e instanceof TimeoutException) && !(e instanceof BulkheadFullException))
+			e.printStackTrace(); // 500
+		
+		if(context.getResponse().isCommitted())
+			return false;
+		
+		context.getResponse().reset();
+		
+		if(e instanceof TimeoutException) {
+			// 504
+			errorHandle(context, 504, "the page took too long to load", e);
+		} else if(e instanceof BulkheadFullException) {
+			// 503
+			overloaded(context, e);
+		} else {
+			// 500
+			errorHandle(context, 500, "error while loading page", e);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Reject a request because the server is overloaded, asking the client to retry later
+	 * @param context The request context
+	 * @param cause The rejection cause
+	 */
+	protected void overloaded(IContext context, Exception cause) {
+		context.getResponse().setHeader("Retry-After", String.valueOf(Configuration.retryAfter));
+		errorHandle(context, 503, "the server is too busy to load the page", cause);
+	}
+	
+	/**
+	 * Set the deadline of the request, if a request timeout is configured. The rewrite rules may then
+	 * set an earlier deadline
+	 * @param context The request context
+	 */
+	protected void initDeadline(IContext context) {
+		if(Configuration.requestTimeout > 0)
+			context.setDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Configuration.requestTimeout));
+	}
+	
 	/**
 	 * Check if an action is found for the current context. If the action is not in the
 	 * template list and should, it may have failed to be instantiated in the initialization
@@ -156,4 +571,47 @@ public abstract class AFrontController extends HttpServlet {
 	protected IContext createContext(HttpServletRequest request, HttpServletResponse response) {
 		return new Context(request, response);
 	}
+	
+	/**
+	 * Outcome of an asynchronous request, recorded before its completion
+	 * 
+	 * @author Vuzi
+	 *
+	 */
+	protected static class Completion {
+		
+		/**
+		 * End of the request, in nanoseconds
+		 */
+		private final long end;
+		
+		/**
+		 * If the request failed because of the load
+		 */
+		private final boolean dropped;
+		
+		/**
+		 * Constructor
+		 * @param end The end of the request, in nanoseconds
+		 * @param dropped If the request failed because of the load
+		 */
+		public Completion(long end, boolean dropped) {
+			this.end = end;
+			this.dropped = dropped;
+		}
+		
+		/**
+		 * @return The end of the request, in nanoseconds
+		 */
+		public long getEnd() {
+			return end;
+		}
+		
+		/**
+		 * @return True if the request was rejected or timed out, false otherwise
+		 */
+		public boolean isDropped() {
+			return dropped;
+		}
+	}
 }
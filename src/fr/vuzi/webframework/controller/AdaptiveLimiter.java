@@ -0,0 +1,297 @@
+package fr.vuzi.webframework.controller;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adaptive limit of the requests handled concurrently, using a gradient algorithm. The latency of
+ * the requests is measured by windows : the average latency of each window is compared to the
+ * latency without load, i.e. the lowest latency measured, and the limit is multiplied by their ratio,
+ * plus a small margin allowing the limit to grow. The limit then grows while the latency stays close
+ * to the latency without load, and shrinks as soon as the requests start to queue, before the latency
+ * collapses. The latency without load slowly drifts up, so a lasting change of the workload is
+ * eventually accepted, and is periodically measured again by halving the limit for one window, once
+ * the requests started before are drained. The limit is halved again as long as the latency keeps
+ * dropping, the requests being still queued, so the first measure, done after the start-up windows, is
+ * right even if the server started under load.
+ * 
+ * The requests over the limit are rejected at once. The counters are lock-free : the limit is only
+ * updated by the thread closing a window
+ * 
+ * @author Vuzi
+ *
+ */
+public class AdaptiveLimiter {
+
+	/**
+	 * Smallest window, in nanoseconds
+	 */
+	private static final long MIN_WINDOW = TimeUnit.MILLISECONDS.toNanos(100);
+	
+	/**
+	 * Smallest number of samples of a window
+	 */
+	private static final int MIN_SAMPLES = 10;
+	
+	/**
+	 * Drift of the latency without load at each window
+	 */
+	private static final double DRIFT = 0.0001;
+	
+	/**
+	 * Latency increase tolerated before shrinking the limit, as a ratio of the latency without load
+	 */
+	private static final double TOLERANCE = 1.5;
+	
+	/**
+	 * Number of windows between two measures of the latency without load
+	 */
+	private static final int PROBE_INTERVAL = 300;
+	
+	/**
+	 * Weight of the new limit when updating the limit
+	 */
+	private static final double SMOOTHING = 0.2;
+	
+	/**
+	 * Minimum limit
+	 */
+	private final int minLimit;
+	
+	/**
+	 * Maximum limit
+	 */
+	private final int maxLimit;
+	
+	/**
+	 * Current limit
+	 */
+	private volatile double limit;
+	
+	/**
+	 * Latency without load, in nanoseconds, 0 before the first window
+	 */
+	private volatile double noLoadLatency;
+	
+	/**
+	 * Windows left before the next measure of the latency without load. Only used by the thread
+	 * closing the window
+	 */
+	private int probeCountdown = 2;
+	
+	/**
+	 * Average latency of the previous window, in nanoseconds. Only used by the thread closing the window
+	 */
+	private double previousLatency;
+	
+	/**
+	 * If the current window measures the latency without load
+	 */
+	private boolean probing;
+	
+	/**
+	 * Requests in flight
+	 */
+	private AtomicInteger inFlight = new AtomicInteger();
+	
+	/**
+	 * Highest number of requests in flight of the window
+	 */
+	private AtomicInteger windowMaxInFlight = new AtomicInteger();
+	
+	/**
+	 * Sum of the latencies of the window, in nanoseconds
+	 */
+	private AtomicLong windowLatency = new AtomicLong();
+	
+	/**
+	 * Number of samples of the window
+	 */
+	private AtomicInteger windowSamples = new AtomicInteger();
+	
+	/**
+	 * If a request of the window was dropped
+	 */
+	private volatile boolean windowDropped;
+	
+	/**
+	 * End of the window, in the nanoTime time
+	 */
+	private AtomicLong windowEnd = new AtomicLong();
+	
+	/**
+	 * Number of accepted requests
+	 */
+	private AtomicLong accepted = new AtomicLong();
+	
+	/**
+	 * Number of rejected requests
+	 */
+	private AtomicLong rejected = new AtomicLong();
+	
+	/**
+	 * Adaptive limiter constructor
+	 * @param initialLimit The limit used until enough latencies are measured
+	 * @param minLimit The minimum limit
+	 * @param maxLimit The maximum limit
+	 */
+	public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit) {
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+		windowEnd.set(System.nanoTime() + MIN_WINDOW);
+	}
+	
+	/**
+	 * Start a request, if allowed by the limit
+	 * @return True if the request can be handled, false if it should be rejected
+	 */
+	public boolean tryAcquire() {
+		while(true) {
+			int current = inFlight.get();
+			
+			if(current >= (int) limit) {
+				rejected.incrementAndGet();
+				return false;
+			}
+			
+			if(inFlight.compareAndSet(current, current + 1)) {
+				accepted.incrementAndGet();
+				
+				int max;
+				while((max = windowMaxInFlight.get()) < current + 1 && !windowMaxInFlight.compareAndSet(max, current + 1));
+				
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * End a request started with tryAcquire, and measure its latency
+	 * @param latency The latency of the request, in nanoseconds
+	 * @param dropped True if the request failed because of the load, e.g. timed out
+	 */
+	public void release(long latency, boolean dropped) {
+		inFlight.decrementAndGet();
+		
+		if(dropped)
+			windowDropped = true;
+		else {
+			windowLatency.addAndGet(latency);
+			windowSamples.incrementAndGet();
+		}
+		
+		long now = System.nanoTime();
+		long end = windowEnd.get();
+		
+		if(now - end >= 0 && (windowSamples.get() >= MIN_SAMPLES || windowDropped) && windowEnd.compareAndSet(end, now + window()))
+			update(); // Only one thread closes the window
+	}
+	
+	/**
+	 * Close the window, and update the limit
+	 */
+	private void update() {
+		int samples = windowSamples.getAndSet(0);
+		long latency = windowLatency.getAndSet(0);
+		int maxInFlight = windowMaxInFlight.getAndSet(inFlight.get());
+		boolean dropped = windowDropped;
+		windowDropped = false;
+		
+		double current = limit;
+		double next;
+		
+		if(dropped) {
+			next = current * 0.9; // Overloaded : back off
+		} else if(probing && maxInFlight > (int) current) {
+			return; // Still draining the requests started before the probe : measure on the next window
+		} else {
+			double windowLatency = (double) latency / samples;
+			double noLoad = noLoadLatency;
+			boolean queued = false;
+			
+			if(noLoad == 0 || probing) {
+				queued = probing && windowLatency * TOLERANCE < previousLatency; // Still dropping : the requests were queued
+				noLoad = windowLatency; // Measured with a reduced limit
+			} else
+				noLoad = Math.min(windowLatency, noLoad * (1 + DRIFT));
+			
+			noLoadLatency = noLoad;
+			previousLatency = windowLatency;
+			probing = false;
+			
+			if(queued || --probeCountdown <= 0) { // Halve the limit for the next window, to measure the latency without load
+				probeCountdown = PROBE_INTERVAL;
+				probing = true;
+				limit = Math.max(minLimit, Math.min(current, maxInFlight) / 2);
+				return;
+			}
+			
+			if(maxInFlight < current / 2)
+				return; // The limit is not used : the latency says nothing about it
+			
+			double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * noLoad / windowLatency));
+			next = current * gradient + Math.sqrt(current); // The margin allows the limit to grow
+			
+			if(maxInFlight < (int) current)
+				next = Math.min(next, current); // Only grow a limit which is reached
+		}
+		
+		next = current * (1 - SMOOTHING) + next * SMOOTHING;
+		limit = Math.max(minLimit, Math.min(maxLimit, next));
+	}
+	
+	/**
+	 * Return the duration of a window, long enough to measure several requests
+	 * @return The duration, in nanoseconds
+	 */
+	private long window() {
+		return Math.max(MIN_WINDOW, (long) (noLoadLatency * 2));
+	}
+	
+	/**
+	 * Return the current limit
+	 * @return The limit
+	 */
+	public int getLimit() {
+		return (int) limit;
+	}
+	
+	/**
+	 * Return the number of requests in flight
+	 * @return The number of requests in flight
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+	
+	/**
+	 * Return the latency without load, i.e. the lowest latency measured
+	 * @return The latency, in nanoseconds
+	 */
+	public long getNoLoadLatency() {
+		return (long) noLoadLatency;
+	}
+	
+	/**
+	 * Return the number of accepted requests
+	 * @return The accepted count
+	 */
+	public long getAcceptedCount() {
+		return accepted.get();
+	}
+	
+	/**
+	 * Return the number of rejected requests
+	 * @return The rejected count
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+	
+	@Override
+	public String toString() {
+		return "limit=" + getLimit() + " inFlight=" + inFlight.get() + " latency=" + TimeUnit.NANOSECONDS.toMillis(getNoLoadLatency()) + "ms accepted=" + accepted.get() + " rejected=" + rejected.get();
+	}
+}
@@ -0,0 +1,274 @@
+package fr.vuzi.webframework.controller;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import org.apache.commons.io.IOUtils;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import fr.vuzi.webframework.action.IAction;
+import fr.vuzi.webframework.context.ActionState;
+import fr.vuzi.webframework.context.IContext;
+import fr.vuzi.webframework.renderer.RendererJSON;
+
+/**
+ * Batch route, executing many sub-requests in a single HTTP request. The batch is a JSON array
+ * posted to the batch URI, each element being a sub-request :
+ * 
+ * <pre>[ { "method" : "GET", "uri" : "/users/12", "parameters" : { "type" : "json" } }, ... ]</pre>
+ * 
+ * Each sub-request has its own context and response : it is rewritten, its credentials are checked, and
+ * its action is dispatched in parallel with the other ones. The response is a JSON array of the results, in the
+ * same order, each result having its own status and the model of its action :
+ * 
+ * <pre>[ { "status" : 200, "model" : { ... } }, { "status" : 404, "model" : null }, ... ]</pre>
+ * 
+ * @author Vuzi
+ *
+ */
+public class BatchHandler {
+
+	/**
+	 * Charset of the response
+	 */
+	private static final Charset charset = Charset.forName("UTF-8");
+	
+	/**
+	 * Front controller, used to rewrite and check the sub-requests
+	 */
+	private AFrontController controller;
+	
+	/**
+	 * URI of the batch route
+	 */
+	private String uri;
+	
+	/**
+	 * Maximum number of sub-requests of a batch
+	 */
+	private int maxSize;
+	
+	/**
+	 * Renderer of the models
+	 */
+	private RendererJSON renderer = new RendererJSON();
+	
+	/**
+	 * Batch handler constructor
+	 * @param controller The front controller
+	 * @param uri The URI of the batch route
+	 * @param maxSize The maximum number of sub-requests of a batch
+	 */
+	public BatchHandler(AFrontController controller, String uri, int maxSize) {
+		this.controller = controller;
+		this.uri = uri;
+		this.maxSize = maxSize;
+	}
+	
+	/**
+	 * Test if a request is a batch
+	 * @param request The request
+	 * @return True if the request is a batch, false otherwise
+	 */
+	public boolean accepts(HttpServletRequest request) {
+		return "POST".equals(request.getMethod()) && uri.equals(request.getRequestURI());
+	}
+	
+	/**
+	 * Wrap a batch request, hiding its body to the batch context. The body is read by the handler
+	 * @param request The batch request
+	 * @return The wrapped request
+	 */
+	public HttpServletRequest wrap(HttpServletRequest request) {
+		return new SubRequest(request, request.getMethod(), request.getRequestURI(), request.getParameterMap());
+	}
+	
+	/**
+	 * Execute a batch, and write its results. An invalid or too large batch is answered by the error
+	 * handler of the front controller
+	 * @param context The context of the batch, using a wrapped request
+	 * @return The future completed once the results are written
+	 */
+	public CompletableFuture<Void> execute(final IContext context) {
+		JsonNode batch;
+		
+		try {
+			HttpServletRequest request = (HttpServletRequest) ((HttpServletRequestWrapper) context.getRequest()).getRequest();
+			batch = new ObjectMapper().readTree(IOUtils.toString(request.getReader()));
+		} catch (Exception e) {
+			batch = null;
+		}
+		
+		if(batch == null || !batch.isArray()) {
+			// 400
+			controller.errorHandle(context, 400, "the batch must be an array of requests");
+			return CompletableFuture.completedFuture(null);
+		}
+		
+		if(batch.size() > maxSize) {
+			// 413
+			controller.errorHandle(context, 413, "the batch can't contain more than " + maxSize + " requests");
+			return CompletableFuture.completedFuture(null);
+		}
+		
+		final List<CompletableFuture<String>> results = new ArrayList<CompletableFuture<String>>(batch.size());
+		
+		for(JsonNode item : batch)
+			results.add(execute(context, item));
+		
+		return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[results.size()])).thenAccept(new Consumer<Void>() {
+			@Override
+			public void accept(Void v) {
+				try {
+					write(context, results);
+				} catch (Exception e) {
+					throw new CompletionException(e);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Execute a sub-request
+	 * @param context The context of the batch
+	 * @param item The sub-request
+	 * @return The future of the rendered result, never failing
+	 */
+	private CompletableFuture<String> execute(IContext context, JsonNode item) {
+		final IContext subContext;
+		final IAction action;
+		
+		try {
+			if(!item.isObject() || !item.path("uri").isTextual())
+				return CompletableFuture.completedFuture(result(400, null));
+			
+			String method = item.path("method").isTextual() ? item.path("method").getTextValue() : "GET";
+			SubRequest request = new SubRequest(context.getRequest(), method.toUpperCase(), item.path("uri").getTextValue(), parameters(item.path("parameters")));
+			
+			subContext = controller.createContext(request, new SubResponse(context.getResponse())); // Own response, never sent
+			subContext.init();
+			
+			if(context.getDeadline() != 0)
+				subContext.setDeadline(context.getDeadline()); // Same deadline as the batch
+			
+			IAction templateAction = controller.rewriter.rewrite(subContext); // Find the action template
+			
+			if(templateAction == null)
+				return CompletableFuture.completedFuture(result(404, null));
+			
+			if(!controller.checkCredentials(subContext, templateAction))
+				return CompletableFuture.completedFuture(result(403, null));
+			
+			action = controller.dispatcher.instantiate(subContext.getActionClassname(), subContext);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return CompletableFuture.completedFuture(result(500, null));
+		}
+		
+		return controller.dispatcher.dispatchAsync(subContext, action).handle(new BiFunction<Void, Throwable, String>() {
+			@Override
+			public String apply(Void v, Throwable t) {
+				ActionState state = subContext.getActionState(action.getClass().getName());
+				
+				if(state == ActionState.TIMED_OUT)
+					return result(504, null);
+				else if(state == ActionState.REJECTED)
+					return result(503, null);
+				else if(t != null)
+					return result(500, null);
+				
+				return result(subContext.getStatus(), subContext.getAttribute("model"));
+			}
+		});
+	}
+	
+	/**
+	 * Render the result of a sub-request
+	 * @param status The status of the sub-request
+	 * @param model The model of the action, or null
+	 * @return The rendered result
+	 */
+	private String result(int status, Object model) {
+		String rendered;
+		
+		try {
+			rendered = renderer.renderObject(model);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return "{ \"status\" : 500, \"model\" : null }";
+		}
+		
+		return "{ \"status\" : " + status + ", \"model\" : " + rendered + " }";
+	}
+	
+	/**
+	 * Write the results of the batch in the response
+	 * @param context The context of the batch
+	 * @param results The rendered results, all completed
+	 * @throws Exception Thrown if the response could not be written
+	 */
+	private void write(IContext context, List<CompletableFuture<String>> results) throws Exception {
+		StringBuilder sb = new StringBuilder("[ ");
+		
+		for(int i = 0; i < results.size(); i++) {
+			if(i > 0)
+				sb.append(", ");
+			sb.append(results.get(i).get());
+		}
+		
+		sb.append(" ]");
+		
+		context.getResponse().setStatus(200);
+		context.getResponse().setCharacterEncoding(charset.displayName());
+		context.getResponse().setContentType(renderer.getHttpType());
+		
+		OutputStream out = context.getResponse().getOutputStream();
+		out.write(sb.toString().getBytes(charset));
+		out.flush();
+	}
+	
+	/**
+	 * Read the parameters of a sub-request. Each parameter is either a value or an array of values
+	 * @param node The parameters object, or a missing node
+	 * @return The parameters
+	 */
+	private static Map<String, String[]> parameters(JsonNode node) {
+		if(!node.isObject())
+			return Collections.emptyMap();
+		
+		Map<String, String[]> parameters = new HashMap<String, String[]>();
+		Iterator<Entry<String, JsonNode>> fields = node.getFields();
+		
+		while(fields.hasNext()) {
+			Entry<String, JsonNode> field = fields.next();
+			JsonNode value = field.getValue();
+			
+			if(value.isArray()) {
+				String[] values = new String[value.size()];
+				
+				for(int i = 0; i < values.length; i++)
+					values[i] = value.get(i).asText();
+				
+				parameters.put(field.getKey(), values);
+			} else
+				parameters.put(field.getKey(), new String[] { value.asText() });
+		}
+		
+		return parameters;
+	}
+}
@@ -0,0 +1,391 @@
+package fr.vuzi.webframework.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import fr.vuzi.webframework.Utils;
+
+/**
+ * Response wrapper which can record the response instead of sending it. By default everything
+ * is sent to the wrapped response : the recording only starts when asked, and the recorded
+ * response can then be replayed in any number of responses.
+ * 
+ * The output stream and the writer returned are bound to the wrapper and not to the recording,
+ * so they can still be used once the recording is stopped or discarded
+ * 
+ * @author Vuzi
+ *
+ */
+public class BufferedResponse extends HttpServletResponseWrapper {
+
+	/**
+	 * Charset used when the response doesn't define one
+	 */
+	private static final String DEFAULT_CHARSET = "ISO-8859-1";
+	
+	/**
+	 * Current recording, or null if not recording
+	 */
+	private Recording recording;
+	
+	/**
+	 * Recorded bytes
+	 */
+	private ByteArrayOutputStream bytes;
+	
+	/**
+	 * Recorded characters
+	 */
+	private CharArrayWriter chars;
+	
+	/**
+	 * Output stream of the wrapper
+	 */
+	private ServletOutputStream output;
+	
+	/**
+	 * Writer of the wrapper
+	 */
+	private PrintWriter writer;
+	
+	/**
+	 * Buffered response constructor
+	 * @param response The wrapped response
+	 */
+	public BufferedResponse(HttpServletResponse response) {
+		super(response);
+	}
+	
+	/**
+	 * Start recording the response. Nothing is sent until the recording is stopped
+	 */
+	public void startRecording() {
+		recording = new Recording();
+		bytes = new ByteArrayOutputStream();
+		chars = new CharArrayWriter();
+	}
+	
+	/**
+	 * Test if the response is being recorded
+	 * @return True if recording, false otherwise
+	 */
+	public boolean isRecording() {
+		return recording != null;
+	}
+	
+	/**
+	 * Stop recording the response. The recorded response is not sent
+	 * @return The recorded response
+	 */
+	public Recording stopRecording() {
+		Recording recorded = recording;
+		byte[] body = bytes.toByteArray();
+		
+		if(chars.size() > 0) { // Written with the writer
+			byte[] text = chars.toString().getBytes(Charset.forName(recorded.getCharset()));
+			byte[] all = new byte[body.length + text.length];
+			System.arraycopy(body, 0, all, 0, body.length);
+			System.arraycopy(text, 0, all, body.length, text.length);
+			body = all;
+		}
+		
+		recorded.body = body;
+		discardRecording();
+		return recorded;
+	}
+	
+	/**
+	 * Stop recording the response, and forget the recorded response. The response can then be
+	 * written again, e.g. to send an error
+	 */
+	public void discardRecording() {
+		recording = null;
+		bytes = null;
+		chars = null;
+	}
+	
+	@Override
+	public void setStatus(int sc) {
+		if(recording != null)
+			recording.status = sc;
+		else
+			super.setStatus(sc);
+	}
+	
+	@Override
+	public void setContentType(String type) {
+		if(recording != null)
+			recording.contentType = type;
+		else
+			super.setContentType(type);
+	}
+	
+	@Override
+	public void setCharacterEncoding(String charset) {
+		if(recording != null)
+			recording.characterEncoding = charset;
+		else
+			super.setCharacterEncoding(charset);
+	}
+	
+	@Override
+	public void addHeader(String name, String value) {
+		if(recording != null)
+			recording.headers.add(new String[] { name, value });
+		else
+			super.addHeader(name, value);
+	}
+	
+	@Override
+	public void setHeader(String name, String value) {
+		if(recording != null) {
+			for(int i = recording.headers.size() - 1; i >= 0; i--)
+				if(recording.headers.get(i)[0].equalsIgnoreCase(name))
+					recording.headers.remove(i);
+			recording.headers.add(new String[] { name, value });
+		} else
+			super.setHeader(name, value);
+	}
+	
+	@Override
+	public void addDateHeader(String name, long date) {
+		if(recording != null)
+			addHeader(name, Utils.formatDate(date));
+		else
+			super.addDateHeader(name, date);
+	}
+	
+	@Override
+	public void setDateHeader(String name, long date) {
+		if(recording != null)
+			setHeader(name, Utils.formatDate(date));
+		else
+			super.setDateHeader(name, date);
+	}
+	
+	@Override
+	public void addIntHeader(String name, int value) {
+		if(recording != null)
+			addHeader(name, String.valueOf(value));
+		else
+			super.addIntHeader(name, value);
+	}
+	
+	@Override
+	public void setIntHeader(String name, int value) {
+		if(recording != null)
+			setHeader(name, String.valueOf(value));
+		else
+			super.setIntHeader(name, value);
+	}
+	
+	@Override
+	public void setContentLength(int len) {
+		if(recording == null) // The recorded length is known once stopped
+			super.setContentLength(len);
+	}
+	
+	@Override
+	public void flushBuffer() throws IOException {
+		if(recording == null)
+			super.flushBuffer();
+	}
+	
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+		if(output == null) {
+			output = new ServletOutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					if(recording != null)
+						bytes.write(b);
+					else
+						BufferedResponse.super.getOutputStream().write(b);
+				}
+				
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					if(recording != null)
+						bytes.write(b, off, len);
+					else
+						BufferedResponse.super.getOutputStream().write(b, off, len);
+				}
+				
+				@Override
+				public void flush() throws IOException {
+					if(recording == null)
+						BufferedResponse.super.getOutputStream().flush();
+				}
+				
+				@Override
+				public void close() throws IOException {
+					if(recording == null)
+						BufferedResponse.super.getOutputStream().close();
+				}
+				
+				@Override
+				public boolean isReady() {
+					return true;
+				}
+				
+				@Override
+				public void setWriteListener(WriteListener writeListener) {
+					throw new IllegalStateException("Write listeners are not supported by buffered responses");
+				}
+			};
+		}
+		
+		return output;
+	}
+	
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		if(writer == null) {
+			writer = new PrintWriter(new Writer() { // Not buffered, so nothing is lost when the recording stops
+				@Override
+				public void write(char[] cbuf, int off, int len) throws IOException {
+					if(recording != null)
+						chars.write(cbuf, off, len);
+					else
+						BufferedResponse.super.getWriter().write(cbuf, off, len);
+				}
+				
+				@Override
+				public void flush() throws IOException {
+					if(recording == null)
+						BufferedResponse.super.getWriter().flush();
+				}
+				
+				@Override
+				public void close() throws IOException {
+					if(recording == null)
+						BufferedResponse.super.getWriter().close();
+				}
+			});
+		}
+		
+		return writer;
+	}
+	
+	/**
+	 * Recorded response. A recording is never modified once stopped, and can be replayed
+	 * concurrently
+	 */
+	public static class Recording {
+		
+		/**
+		 * Status, 0 if never set
+		 */
+		private int status;
+		
+		/**
+		 * Content type, or null if never set
+		 */
+		private String contentType;
+		
+		/**
+		 * Character encoding, or null if never set
+		 */
+		private String characterEncoding;
+		
+		/**
+		 * Headers, as name and value
+		 */
+		private List<String[]> headers = new ArrayList<String[]>();
+		
+		/**
+		 * Body
+		 */
+		private byte[] body;
+		
+		/**
+		 * Return the recorded body
+		 * @return The body
+		 */
+		public byte[] getBody() {
+			return body;
+		}
+		
+		/**
+		 * Return the recorded status
+		 * @return The status, 0 if never set
+		 */
+		public int getStatus() {
+			return status;
+		}
+		
+		/**
+		 * Return the recorded content type
+		 * @return The content type, or null if never set
+		 */
+		public String getContentType() {
+			return contentType;
+		}
+		
+		/**
+		 * Return the recorded character encoding
+		 * @return The character encoding, or null if never set
+		 */
+		public String getCharacterEncoding() {
+			return characterEncoding;
+		}
+		
+		/**
+		 * Return the recorded headers
+		 * @return The headers, as name and value
+		 */
+		public List<String[]> getHeaders() {
+			return Collections.unmodifiableList(headers);
+		}
+		
+		/**
+		 * Send the recorded response in a response
+		 * @param response The response
+		 * @throws IOException Thrown if the response could not be written
+		 */
+		public void replay(HttpServletResponse response) throws IOException {
+			if(status != 0)
+				response.setStatus(status);
+			if(characterEncoding != null)
+				response.setCharacterEncoding(characterEncoding);
+			if(contentType != null)
+				response.setContentType(contentType);
+			for(String[] header : headers)
+				response.addHeader(header[0], header[1]);
+			
+			ServletOutputStream out = response.getOutputStream();
+			out.write(body);
+			out.flush();
+		}
+		
+		/**
+		 * Return the charset used to encode the written characters
+		 * @return The charset name
+		 */
+		public String getCharset() {
+			if(characterEncoding != null)
+				return characterEncoding;
+			
+			if(contentType != null) {
+				int i = contentType.toLowerCase().indexOf("charset=");
+				
+				if(i >= 0)
+					return contentType.substring(i + 8).trim();
+			}
+			
+			return DEFAULT_CHARSET;
+		}
+	}
+}
@@ -0,0 +1,282 @@
+package fr.vuzi.webframework.controller;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response wrapper of an asynchronous request, dropping everything written once the request is
+ * completed. A rendering still running when the request is completed, e.g. after a timeout, can then
+ * never write into the completed response, which may already be recycled by the container.
+ *
+ * Every write is done while holding the lock of the wrapper : the thread completing the request holds
+ * it while sending its last content, so the writes in progress are done before, and the late ones are
+ * dropped after
+ *
+ * @author Vuzi
+ *
+ */
+public class GuardedResponse extends HttpServletResponseWrapper {
+	
+	/**
+	 * If the request is completed
+	 */
+	private boolean completed;
+	
+	/**
+	 * Output stream of the wrapper
+	 */
+	private ServletOutputStream output;
+	
+	/**
+	 * Writer of the wrapper
+	 */
+	private PrintWriter writer;
+	
+	/**
+	 * Guarded response constructor
+	 * @param response The wrapped response
+	 */
+	public GuardedResponse(HttpServletResponse response) {
+		super(response);
+	}
+	
+	/**
+	 * Mark the request as completed : nothing is written to the response anymore. Should be called
+	 * while holding the lock of the wrapper, with the completion of the request
+	 */
+	public synchronized void complete() {
+		completed = true;
+	}
+	
+	/**
+	 * Test if the request is completed
+	 * @return True if completed, false otherwise
+	 */
+	public synchronized boolean isCompleted() {
+		return completed;
+	}
+	
+	@Override
+	public synchronized void setStatus(int sc) {
+		if(!completed)
+			super.setStatus(sc);
+	}
+	
+	@Override
+	@Deprecated
+	public synchronized void setStatus(int sc, String sm) {
+		if(!completed)
+			super.setStatus(sc, sm);
+	}
+	
+	@Override
+	public synchronized void sendError(int sc) throws IOException {
+		if(!completed)
+			super.sendError(sc);
+	}
+	
+	@Override
+	public synchronized void sendError(int sc, String msg) throws IOException {
+		if(!completed)
+			super.sendError(sc, msg);
+	}
+	
+	@Override
+	public synchronized void sendRedirect(String location) throws IOException {
+		if(!completed)
+			super.sendRedirect(location);
+	}
+	
+	@Override
+	public synchronized void setContentType(String type) {
+		if(!completed)
+			super.setContentType(type);
+	}
+	
+	@Override
+	public synchronized void setCharacterEncoding(String charset) {
+		if(!completed)
+			super.setCharacterEncoding(charset);
+	}
+	
+	@Override
+	public synchronized void setContentLength(int len) {
+		if(!completed)
+			super.setContentLength(len);
+	}
+	
+	@Override
+	public synchronized void setContentLengthLong(long len) {
+		if(!completed)
+			super.setContentLengthLong(len);
+	}
+	
+	@Override
+	public synchronized void setLocale(Locale loc) {
+		if(!completed)
+			super.setLocale(loc);
+	}
+	
+	@Override
+	public synchronized void addCookie(Cookie cookie) {
+		if(!completed)
+			super.addCookie(cookie);
+	}
+	
+	@Override
+	public synchronized void addHeader(String name, String value) {
+		if(!completed)
+			super.addHeader(name, value);
+	}
+	
+	@Override
+	public synchronized void setHeader(String name, String value) {
+		if(!completed)
+			super.setHeader(name, value);
+	}
+	
+	@Override
+	public synchronized void addDateHeader(String name, long date) {
+		if(!completed)
+			super.addDateHeader(name, date);
+	}
+	
+	@Override
+	public synchronized void setDateHeader(String name, long date) {
+		if(!completed)
+			super.setDateHeader(name, date);
+	}
+	
+	@Override
+	public synchronized void addIntHeader(String name, int value) {
+		if(!completed)
+			super.addIntHeader(name, value);
+	}
+	
+	@Override
+	public synchronized void setIntHeader(String name, int value) {
+		if(!completed)
+			super.setIntHeader(name, value);
+	}
+	
+	@Override
+	public synchronized void setBufferSize(int size) {
+		if(!completed)
+			super.setBufferSize(size);
+	}
+	
+	@Override
+	public synchronized void flushBuffer() throws IOException {
+		if(!completed)
+			super.flushBuffer();
+	}
+	
+	@Override
+	public synchronized void resetBuffer() {
+		if(!completed)
+			super.resetBuffer();
+	}
+	
+	@Override
+	public synchronized void reset() {
+		if(!completed)
+			super.reset();
+	}
+	
+	@Override
+	public synchronized boolean isCommitted() {
+		return completed || super.isCommitted();
+	}
+	
+	@Override
+	public synchronized ServletOutputStream getOutputStream() throws IOException {
+		if(output == null) {
+			output = new ServletOutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					synchronized (GuardedResponse.this) {
+						if(!completed)
+							GuardedResponse.super.getOutputStream().write(b);
+					}
+				}
+				
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					synchronized (GuardedResponse.this) {
+						if(!completed)
+							GuardedResponse.super.getOutputStream().write(b, off, len);
+					}
+				}
+				
+				@Override
+				public void flush() throws IOException {
+					synchronized (GuardedResponse.this) {
+						if(!completed)
+							GuardedResponse.super.getOutputStream().flush();
+					}
+				}
+				
+				@Override
+				public void close() throws IOException {
+					synchronized (GuardedResponse.this) {
+						if(!completed)
+							GuardedResponse.super.getOutputStream().close();
+					}
+				}
+				
+				@Override
+				public boolean isReady() {
+					return true;
+				}
+				
+				@Override
+				public void setWriteListener(WriteListener writeListener) {
+					throw new IllegalStateException("Write listeners are not supported by guarded responses");
+				}
+			};
+		}
+		
+		return output;
+	}
+	
+	@Override
+	public synchronized PrintWriter getWriter() throws IOException {
+		if(writer == null) {
+			writer = new PrintWriter(new Writer() { // Not buffered, so nothing is written once completed
+				@Override
+				public void write(char[] cbuf, int off, int len) throws IOException {
+					synchronized (GuardedResponse.this) {
+						if(!completed)
+							GuardedResponse.super.getWriter().write(cbuf, off, len);
+					}
+				}
+				
+				@Override
+				public void flush() throws IOException {
+					synchronized (GuardedResponse.this) {
+						if(!completed)
+							GuardedResponse.super.getWriter().flush();
+					}
+				}
+				
+				@Override
+				public void close() throws IOException {
+					synchronized (GuardedResponse.this) {
+						if(!completed)
+							GuardedResponse.super.getWriter().close();
+					}
+				}
+			});
+		}
+		
+		return writer;
+	}
+}
@@ -0,0 +1,822 @@
+package fr.vuzi.webframework.controller;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletResponse;
+
+import fr.vuzi.webframework.Utils;
+import fr.vuzi.webframework.context.IContext;
+import fr.vuzi.webframework.controller.BufferedResponse.Recording;
+import fr.vuzi.webframework.dispatcher.IRewriteRule;
+import fr.vuzi.webframework.dispatcher.RewriteRule;
+import fr.vuzi.webframework.renderer.MainRenderer;
+
+/**
+ * Cache of the full responses of the anonymous pages. A page is rendered once, and its response
+ * is then sent to every request with the same rule, URI, parameters and renderer type until it
+ * expires, without dispatching any action nor compressing anything.
+ *
+ * The bodies are stored off-heap, in a single direct buffer allocated when the cache is created and
+ * split into fixed size blocks : the identity and the gzip versions of a page are stored side by
+ * side in the blocks of the page, and copied to the response on each hit. The size of the cache
+ * doesn't change the work of the garbage collector, only the small descriptions of the pages
+ * are on the heap. When the buffer is full, the least recently used pages are evicted.
+ *
+ * A missing page is only rendered by the first request asking for it : the identical requests
+ * arriving meanwhile wait for it to be stored, then are served from the cache. If it could not be
+ * stored, e.g. because the rendering failed, they are rendered alone
+ *
+ * Only the successful responses of the GET requests matching a rule both idempotent and anonymous
+ * are cached. The actions can purge the cache, found with {@link #from(IContext)}
+ *
+ * @author Vuzi
+ *
+ */
+public class PageCache {
+	
+	/**
+	 * Name of the servlet context attribute holding the cache
+	 */
+	public static final String ATTRIBUTE = PageCache.class.getName();
+	
+	/**
+	 * Size of a block
+	 */
+	private static final int BLOCK_SIZE = 4096;
+	
+	/**
+	 * Largest part of the cache a single page may use
+	 */
+	private static final int MAX_PAGE_RATIO = 8;
+	
+	/**
+	 * Off-heap buffer holding all the blocks
+	 */
+	private final ByteBuffer arena;
+	
+	/**
+	 * Views of the buffer, one by thread
+	 */
+	private final ThreadLocal<ByteBuffer> views = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return arena.duplicate();
+		}
+	};
+	
+	/**
+	 * Copy buffers, one by thread
+	 */
+	private static final ThreadLocal<byte[]> chunks = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BLOCK_SIZE];
+		}
+	};
+	
+	/**
+	 * Free blocks, as a stack
+	 */
+	private final int[] freeBlocks;
+	
+	/**
+	 * Number of free blocks
+	 */
+	private int freeCount;
+	
+	/**
+	 * Time to live of the pages, in nanoseconds
+	 */
+	private final long ttl;
+	
+	/**
+	 * Cached pages by key, in the access order
+	 */
+	private final LinkedHashMap<String, Page> pages = new LinkedHashMap<String, Page>(16, 0.75f, true);
+	
+	/**
+	 * Pages being rendered, by key. Completed once the page is stored, or could not be
+	 */
+	private final ConcurrentMap<String, CompletableFuture<Void>> loading = new ConcurrentHashMap<String, CompletableFuture<Void>>();
+	
+	/**
+	 * Hit counter
+	 */
+	private AtomicLong hits = new AtomicLong();
+	
+	/**
+	 * Miss counter
+	 */
+	private AtomicLong misses = new AtomicLong();
+	
+	/**
+	 * Eviction counter
+	 */
+	private AtomicLong evictions = new AtomicLong();
+	
+	/**
+	 * Expiration counter
+	 */
+	private AtomicLong expirations = new AtomicLong();
+	
+	/**
+	 * Page cache constructor. The whole memory is allocated at once
+	 * @param size The off-heap memory used, in bytes, at most 2GB
+	 * @param ttl The time to live of the pages, in seconds
+	 */
+	public PageCache(long size, int ttl) {
+		int blocks = (int) (Math.min(size, Integer.MAX_VALUE) / BLOCK_SIZE);
+		
+		this.arena = ByteBuffer.allocateDirect(blocks * BLOCK_SIZE);
+		this.freeBlocks = new int[blocks];
+		this.freeCount = blocks;
+		this.ttl = TimeUnit.SECONDS.toNanos(ttl);
+		
+		for(int i = 0; i < blocks; i++)
+			freeBlocks[i] = blocks - 1 - i;
+	}
+	
+	/**
+	 * Return the page cache of the application of a request, e.g. to purge it from an action
+	 * @param context The request context
+	 * @return The page cache, or null if disabled
+	 */
+	public static PageCache from(IContext context) {
+		ServletContext servletContext = context.getRequest().getServletContext();
+		return servletContext != null ? (PageCache) servletContext.getAttribute(ATTRIBUTE) : null;
+	}
+	
+	/**
+	 * Test if the response of a request may be cached, using the rule it matched
+	 * @param context The request context
+	 * @return True if the response may be cached, false otherwise
+	 */
+	public boolean accepts(IContext context) {
+		IRewriteRule rule = context.getRewriteRule();
+		
+		return rule instanceof RewriteRule
+			&& ((RewriteRule) rule).isIdempotent()
+			&& ((RewriteRule) rule).isAnonymous()
+			&& "GET".equals(context.getRequest().getMethod())
+			&& context.getResponse() instanceof BufferedResponse;
+	}
+	
+	/**
+	 * Send the cached response of a request, if any. A request not served is not counted as a miss
+	 * until it is rendered, as it may still be served once the identical request being rendered is stored
+	 * @param context The request context
+	 * @return True if the response was sent, false if the request must be rendered
+	 * @throws IOException Thrown if the response could not be written
+	 */
+	public boolean serve(IContext context) throws IOException {
+		Page page = acquire(key(context));
+		
+		if(page == null)
+			return false;
+		
+		try {
+			page.send(context);
+		} finally {
+			release(page);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Render the request and cache its response, or wait for the identical request being rendered
+	 * and serve its cached response
+	 * @param context The request context, using a buffered response
+	 * @param renderer The main renderer
+	 * @throws Exception Thrown if the request could not be rendered
+	 */
+	public void render(IContext context, MainRenderer renderer) throws Exception {
+		BufferedResponse response = (BufferedResponse) context.getResponse();
+		String key = key(context);
+		CompletableFuture<Void> load = new CompletableFuture<Void>();
+		CompletableFuture<Void> leader = loading.putIfAbsent(key, load);
+		
+		if(leader != null) { // Follower
+			leader.get(); // Bounded by the deadline of the leader
+			
+			if(!serve(context)) {
+				misses.incrementAndGet();
+				renderer.render(context); // Not stored, render alone
+			}
+			return;
+		}
+		
+		Recording recording;
+		
+		misses.incrementAndGet();
+		response.startRecording();
+		
+		try {
+			renderer.render(context);
+			recording = response.stopRecording();
+		} catch (Exception e) {
+			response.discardRecording(); // So the error can be sent
+			land(key, load);
+			throw e;
+		}
+		
+		try {
+			store(key, context, recording);
+		} finally {
+			land(key, load);
+		}
+		
+		response.setHeader("Vary", "Accept-Encoding"); // As the cached versions
+		recording.replay(response);
+	}
+	
+	/**
+	 * Asynchronous version of the render method
+	 * @param context The request context, using a buffered response
+	 * @param renderer The main renderer
+	 * @return The future completed once the response is written
+	 */
+	public CompletableFuture<Void> renderAsync(final IContext context, final MainRenderer renderer) {
+		final BufferedResponse response = (BufferedResponse) context.getResponse();
+		final String key = key(context);
+		final CompletableFuture<Void> load = new CompletableFuture<Void>();
+		CompletableFuture<Void> leader = loading.putIfAbsent(key, load);
+		
+		if(leader != null) { // Follower
+			return leader.thenCompose(new Function<Void, CompletableFuture<Void>>() {
+				@Override
+				public CompletableFuture<Void> apply(Void v) {
+					try {
+						if(serve(context))
+							return CompletableFuture.completedFuture(null);
+					} catch (IOException e) {
+						return Utils.failedFuture(e);
+					}
+					
+					misses.incrementAndGet();
+					return renderer.renderAsync(context); // Not stored, render alone
+				}
+			});
+		}
+		
+		CompletableFuture<Void> rendering;
+		
+		misses.incrementAndGet();
+		response.startRecording();
+		
+		try {
+			rendering = renderer.renderAsync(context);
+		} catch (Exception e) {
+			rendering = Utils.failedFuture(e);
+		}
+		
+		return rendering.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void v, Throwable t) {
+				if(t != null) {
+					response.discardRecording(); // So the error can be sent
+					land(key, load);
+				}
+			}
+		}).thenApply(new Function<Void, Void>() {
+			@Override
+			public Void apply(Void v) {
+				Recording recording;
+				
+				try {
+					recording = response.stopRecording();
+					store(key, context, recording);
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				} finally {
+					land(key, load);
+				}
+				
+				try {
+					response.setHeader("Vary", "Accept-Encoding"); // As the cached versions
+					recording.replay(response);
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+				
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Remove all the cached pages
+	 */
+	public synchronized void purge() {
+		for(Iterator<Page> it = pages.values().iterator(); it.hasNext(); ) {
+			free(it.next());
+			it.remove();
+		}
+	}
+	
+	/**
+	 * Remove the cached pages of an URI, whatever their parameters
+	 * @param uri The request URI
+	 */
+	public synchronized void purge(String uri) {
+		for(Iterator<Page> it = pages.values().iterator(); it.hasNext(); ) {
+			Page page = it.next();
+			
+			if(page.uri.equals(uri)) {
+				free(page);
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Remove the cached pages of an action
+	 * @param actionClassname The action classname
+	 */
+	public synchronized void purgeAction(String actionClassname) {
+		for(Iterator<Page> it = pages.values().iterator(); it.hasNext(); ) {
+			Page page = it.next();
+			
+			if(actionClassname.equals(page.actionClassname)) {
+				free(page);
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Return the number of cached pages
+	 * @return The number of cached pages
+	 */
+	public synchronized int size() {
+		return pages.size();
+	}
+	
+	/**
+	 * Return the off-heap memory used by the cached pages
+	 * @return The used memory, in bytes
+	 */
+	public synchronized long getUsedBytes() {
+		return (long) (freeBlocks.length - freeCount) * BLOCK_SIZE;
+	}
+	
+	/**
+	 * Return the off-heap memory of the cache
+	 * @return The memory, in bytes
+	 */
+	public long getCapacity() {
+		return arena.capacity();
+	}
+	
+	/**
+	 * Return the number of requests served by the cache
+	 * @return The hit count
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+	
+	/**
+	 * Return the number of requests not served by the cache, i.e. rendered
+	 * @return The miss count
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+	
+	/**
+	 * Return the number of pages evicted to make room for other pages
+	 * @return The eviction count
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+	
+	/**
+	 * Return the number of pages expired
+	 * @return The expiration count
+	 */
+	public long getExpirationCount() {
+		return expirations.get();
+	}
+	
+	/**
+	 * Return a cached page, which can't be freed until released
+	 * @param key The page key
+	 * @return The page, or null if not cached or expired
+	 */
+	private synchronized Page acquire(String key) {
+		Page page = pages.get(key);
+		
+		if(page != null && System.nanoTime() - page.expires >= 0) {
+			pages.remove(key);
+			free(page);
+			expirations.incrementAndGet();
+			page = null;
+		}
+		
+		if(page == null)
+			return null; // Counted as a miss only once rendered
+		
+		page.readers++;
+		hits.incrementAndGet();
+		return page;
+	}
+	
+	/**
+	 * Release a page acquired, freeing its blocks if it was removed meanwhile
+	 * @param page The page
+	 */
+	private synchronized void release(Page page) {
+		if(--page.readers == 0 && page.removed)
+			giveBack(page.blocks);
+	}
+	
+	/**
+	 * Free a page removed from the cache. Its blocks are given back once no request reads them
+	 * @param page The page
+	 */
+	private void free(Page page) {
+		page.removed = true;
+		
+		if(page.readers == 0)
+			giveBack(page.blocks);
+	}
+	
+	/**
+	 * Give back blocks to the free blocks
+	 * @param blocks The blocks
+	 */
+	private void giveBack(int[] blocks) {
+		for(int block : blocks)
+			freeBlocks[freeCount++] = block;
+	}
+	
+	/**
+	 * Take free blocks, evicting the expired pages then the least recently used pages if needed
+	 * @param count The number of blocks
+	 * @return The blocks, or null if there is not enough memory
+	 */
+	private synchronized int[] take(int count) {
+		if(freeCount < count) {
+			long now = System.nanoTime();
+			
+			for(Iterator<Page> it = pages.values().iterator(); it.hasNext(); ) {
+				Page page = it.next();
+				
+				if(now - page.expires >= 0) {
+					free(page);
+					it.remove();
+					expirations.incrementAndGet();
+				}
+			}
+		}
+		
+		for(Iterator<Page> it = pages.values().iterator(); freeCount < count && it.hasNext(); ) {
+			free(it.next()); // Least recently used first
+			it.remove();
+			evictions.incrementAndGet();
+		}
+		
+		if(freeCount < count)
+			return null; // Still read by other requests
+		
+		freeCount -= count;
+		return Arrays.copyOfRange(freeBlocks, freeCount, freeCount + count);
+	}
+	
+	/**
+	 * End the rendering of a page : the identical requests waiting for it are served from the cache,
+	 * or rendered alone if the page was not stored
+	 * @param key The request key
+	 * @param load The rendering
+	 */
+	private void land(String key, CompletableFuture<Void> load) {
+		loading.remove(key, load);
+		load.complete(null);
+	}
+	
+	/**
+	 * Store the recorded response of a request, if it can be cached
+	 * @param key The request key
+	 * @param context The request context
+	 * @param recording The recorded response
+	 * @throws IOException Thrown if the body could not be compressed or uncompressed
+	 */
+	private void store(String key, IContext context, Recording recording) throws IOException {
+		if(recording.getStatus() != 0 && recording.getStatus() != HttpServletResponse.SC_OK)
+			return;
+		
+		Page page = new Page(key, context);
+		byte[] body = recording.getBody();
+		boolean gzip = false;
+		String etag = null;
+		
+		for(String[] header : recording.getHeaders()) {
+			String name = header[0];
+			
+			if(name.equalsIgnoreCase("Set-Cookie") || (name.equalsIgnoreCase("Cache-Control") && (header[1].contains("private") || header[1].contains("no-store"))))
+				return; // Not the same for everyone
+			else if(name.equalsIgnoreCase("Content-Encoding"))
+				gzip = header[1].contains("gzip");
+			else if(name.equalsIgnoreCase("ETag"))
+				etag = header[1];
+			else if(!name.equalsIgnoreCase("Content-Length") && !name.equalsIgnoreCase("Vary")) {
+				if(name.equalsIgnoreCase("Last-Modified"))
+					page.lastModified = Utils.deformatDate(header[1]).getTime();
+				page.headers.add(header);
+			}
+		}
+		
+		byte[] identity = gzip ? gunzip(body) : body;
+		byte[] compressed = gzip ? body : gzip(body);
+		
+		if(etag != null && !etag.startsWith("W/")) { // Strong tags differ by encoding
+			String content = new String(identity, Charset.forName(recording.getCharset()));
+			page.identityTag = MainRenderer.tag(content, false);
+			page.gzipTag = MainRenderer.tag(content, true);
+		} else
+			page.identityTag = page.gzipTag = etag;
+		
+		int length = identity.length + compressed.length;
+		int count = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		
+		if(count > freeBlocks.length / MAX_PAGE_RATIO)
+			return; // Too large
+		
+		int[] blocks = take(count);
+		
+		if(blocks == null)
+			return;
+		
+		page.status = recording.getStatus();
+		page.contentType = recording.getContentType();
+		page.characterEncoding = recording.getCharacterEncoding();
+		page.blocks = blocks;
+		page.identityLength = identity.length;
+		page.gzipLength = compressed.length;
+		
+		write(blocks, 0, identity); // Not yet visible
+		write(blocks, identity.length, compressed);
+		
+		synchronized (this) {
+			Page previous = pages.put(key, page);
+			
+			if(previous != null)
+				free(previous);
+		}
+	}
+	
+	/**
+	 * Write bytes in blocks
+	 * @param blocks The blocks
+	 * @param offset The offset in the blocks
+	 * @param bytes The bytes
+	 */
+	private void write(int[] blocks, int offset, byte[] bytes) {
+		ByteBuffer view = views.get();
+		int written = 0;
+		
+		while(written < bytes.length) {
+			int position = (offset + written) % BLOCK_SIZE;
+			int length = Math.min(BLOCK_SIZE - position, bytes.length - written);
+			
+			view.clear();
+			view.position(blocks[(offset + written) / BLOCK_SIZE] * BLOCK_SIZE + position);
+			view.put(bytes, written, length);
+			written += length;
+		}
+	}
+	
+	/**
+	 * Copy bytes from blocks to an output stream
+	 * @param blocks The blocks
+	 * @param offset The offset in the blocks
+	 * @param length The number of bytes
+	 * @param out The output stream
+	 * @throws IOException Thrown if the output stream could not be written
+	 */
+	private void copy(int[] blocks, int offset, int length, OutputStream out) throws IOException {
+		ByteBuffer view = views.get();
+		byte[] chunk = chunks.get();
+		int copied = 0;
+		
+		while(copied < length) {
+			int position = (offset + copied) % BLOCK_SIZE;
+			int n = Math.min(BLOCK_SIZE - position, length - copied);
+			
+			view.clear();
+			view.position(blocks[(offset + copied) / BLOCK_SIZE] * BLOCK_SIZE + position);
+			view.get(chunk, 0, n);
+			out.write(chunk, 0, n);
+			copied += n;
+		}
+	}
+	
+	/**
+	 * Compress bytes
+	 * @param bytes The bytes
+	 * @return The compressed bytes
+	 * @throws IOException Thrown if the bytes could not be compressed
+	 */
+	private static byte[] gzip(byte[] bytes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(out);
+		gzip.write(bytes);
+		gzip.close();
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Uncompress bytes
+	 * @param bytes The compressed bytes
+	 * @return The bytes
+	 * @throws IOException Thrown if the bytes could not be uncompressed
+	 */
+	private static byte[] gunzip(byte[] bytes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(bytes));
+		byte[] chunk = chunks.get();
+		int n;
+		
+		while((n = gzip.read(chunk)) > 0)
+			out.write(chunk, 0, n);
+		
+		gzip.close();
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Return the key of a request : the action of its rule, its URI, its parameters sorted by name
+	 * and its renderer type
+	 * @param context The request context
+	 * @return The request key
+	 */
+	private static String key(IContext context) {
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append(context.getActionClassname()).append('\n').append(context.getRequest().getRequestURI());
+		
+		Map<String, String[]> parameters = new TreeMap<String, String[]>(context.getRequest().getParameterMap());
+		
+		for(Entry<String, String[]> parameter : parameters.entrySet())
+			sb.append('\n').append(parameter.getKey()).append('=').append(Arrays.toString(parameter.getValue()));
+		
+		sb.append('\n').append(context.getRendererType());
+		
+		return sb.toString();
+	}
+	
+	/**
+	 * Cached page. Only its description is on the heap, its body being in the blocks
+	 */
+	private class Page {
+		
+		/**
+		 * Request URI
+		 */
+		private String uri;
+		
+		/**
+		 * Action classname
+		 */
+		private String actionClassname;
+		
+		/**
+		 * Expiration time, in the nanoTime time
+		 */
+		private long expires;
+		
+		/**
+		 * Status, 0 if never set
+		 */
+		private int status;
+		
+		/**
+		 * Content type, or null if never set
+		 */
+		private String contentType;
+		
+		/**
+		 * Character encoding, or null if never set
+		 */
+		private String characterEncoding;
+		
+		/**
+		 * Headers, without the encoding and the entity tag
+		 */
+		private List<String[]> headers = new ArrayList<String[]>();
+		
+		/**
+		 * Entity tag of the identity version, or null
+		 */
+		private String identityTag;
+		
+		/**
+		 * Entity tag of the gzip version, or null
+		 */
+		private String gzipTag;
+		
+		/**
+		 * Last modification date, -1 if unknown
+		 */
+		private long lastModified = -1;
+		
+		/**
+		 * Blocks, holding the identity version followed by the gzip version
+		 */
+		private int[] blocks;
+		
+		/**
+		 * Length of the identity version
+		 */
+		private int identityLength;
+		
+		/**
+		 * Length of the gzip version
+		 */
+		private int gzipLength;
+		
+		/**
+		 * Number of requests reading the page
+		 */
+		private int readers;
+		
+		/**
+		 * If the page was removed from the cache
+		 */
+		private boolean removed;
+		
+		/**
+		 * Page constructor
+		 * @param key The page key
+		 * @param context The context of the rendered request
+		 */
+		private Page(String key, IContext context) {
+			this.uri = context.getRequest().getRequestURI();
+			this.actionClassname = context.getActionClassname();
+			this.expires = System.nanoTime() + ttl;
+		}
+		
+		/**
+		 * Send the page, in the version accepted by the request
+		 * @param context The request context
+		 * @throws IOException Thrown if the response could not be written
+		 */
+		private void send(IContext context) throws IOException {
+			HttpServletResponse response = context.getResponse();
+			boolean gzip = context.supportEncoding("gzip");
+			String etag = gzip ? gzipTag : identityTag;
+			
+			response.setHeader("Vary", "Accept-Encoding");
+			if(etag != null)
+				response.setHeader("ETag", etag);
+			
+			if(MainRenderer.isValid(context.getRequest(), etag, lastModified)) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+			
+			if(status != 0)
+				response.setStatus(status);
+			if(characterEncoding != null)
+				response.setCharacterEncoding(characterEncoding);
+			if(contentType != null)
+				response.setContentType(contentType);
+			for(String[] header : headers)
+				response.addHeader(header[0], header[1]);
+			if(gzip)
+				response.setHeader("Content-Encoding", "gzip");
+			
+			response.setContentLength(gzip ? gzipLength : identityLength);
+			
+			OutputStream out = response.getOutputStream();
+			copy(blocks, gzip ? identityLength : 0, gzip ? gzipLength : identityLength, out);
+			out.flush();
+		}
+	}
+}
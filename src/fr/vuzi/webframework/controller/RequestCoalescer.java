@@ -0,0 +1,243 @@
+package fr.vuzi.webframework.controller;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import fr.vuzi.webframework.Utils;
+import fr.vuzi.webframework.context.IContext;
+import fr.vuzi.webframework.controller.BufferedResponse.Recording;
+import fr.vuzi.webframework.dispatcher.IRewriteRule;
+import fr.vuzi.webframework.dispatcher.RewriteRule;
+import fr.vuzi.webframework.renderer.MainRenderer;
+
+/**
+ * Single-flight coalescing of identical concurrent requests. The first request (the leader) is
+ * rendered while its response is recorded, and the identical requests arriving meanwhile (the
+ * followers) wait for the leader and receive a copy of its response instead of being rendered.
+ * 
+ * Two requests are identical if they have the same method, URI, parameters, renderer type and
+ * accepted encoding. Only the requests matching a rule both idempotent and anonymous are coalesced,
+ * as their response never depends on the user. Nothing is cached : a request arriving once the
+ * leader is done is rendered again. If the leader fails, its followers are rendered normally
+ * 
+ * @author Vuzi
+ *
+ */
+public class RequestCoalescer {
+
+	/**
+	 * Renderings in progress, by request key
+	 */
+	private ConcurrentMap<String, CompletableFuture<Recording>> inFlight = new ConcurrentHashMap<String, CompletableFuture<Recording>>();
+	
+	/**
+	 * Number of rendered requests
+	 */
+	private AtomicLong leaders = new AtomicLong();
+	
+	/**
+	 * Number of requests answered with the response of another request
+	 */
+	private AtomicLong followers = new AtomicLong();
+	
+	/**
+	 * Test if a request may be coalesced, using the rule it matched
+	 * @param context The request context
+	 * @return True if the request may be coalesced, false otherwise
+	 */
+	public boolean accepts(IContext context) {
+		IRewriteRule rule = context.getRewriteRule();
+		
+		return rule instanceof RewriteRule
+			&& ((RewriteRule) rule).isIdempotent()
+			&& ((RewriteRule) rule).isAnonymous()
+			&& context.getResponse() instanceof BufferedResponse;
+	}
+	
+	/**
+	 * Render the request, or wait for an identical request being rendered and copy its response
+	 * @param context The request context, using a buffered response
+	 * @param renderer The main renderer
+	 * @throws Exception Thrown if the request could not be rendered
+	 */
+	public void render(IContext context, MainRenderer renderer) throws Exception {
+		BufferedResponse response = (BufferedResponse) context.getResponse();
+		String key = key(context);
+		CompletableFuture<Recording> flight = new CompletableFuture<Recording>();
+		CompletableFuture<Recording> leader = inFlight.putIfAbsent(key, flight);
+		
+		if(leader != null) { // Follower
+			Recording recording;
+			
+			try {
+				recording = leader.get(); // Bounded by the deadline of the leader
+			} catch (Exception e) {
+				leaders.incrementAndGet();
+				renderer.render(context); // Leader failed, render alone
+				return;
+			}
+			
+			followers.incrementAndGet();
+			recording.replay(response);
+			return;
+		}
+		
+		leaders.incrementAndGet();
+		response.startRecording();
+		Recording recording;
+		
+		try {
+			renderer.render(context);
+			recording = response.stopRecording();
+		} catch (Exception e) {
+			response.discardRecording(); // So the error can be sent
+			land(key, flight, null, e);
+			throw e;
+		}
+		
+		land(key, flight, recording, null);
+		recording.replay(response);
+	}
+	
+	/**
+	 * Asynchronous version of the render method
+	 * @param context The request context, using a buffered response
+	 * @param renderer The main renderer
+	 * @return The future completed once the response is written
+	 */
+	public CompletableFuture<Void> renderAsync(final IContext context, final MainRenderer renderer) {
+		final BufferedResponse response = (BufferedResponse) context.getResponse();
+		final String key = key(context);
+		final CompletableFuture<Recording> flight = new CompletableFuture<Recording>();
+		CompletableFuture<Recording> leader = inFlight.putIfAbsent(key, flight);
+		
+		if(leader != null) { // Follower
+			return leader.handle(new BiFunction<Recording, Throwable, CompletableFuture<Void>>() {
+				@Override
+				public CompletableFuture<Void> apply(Recording recording, Throwable t) {
+					if(t != null) {
+						leaders.incrementAndGet();
+						return renderer.renderAsync(context); // Leader failed, render alone
+					}
+					
+					try {
+						followers.incrementAndGet();
+						recording.replay(response);
+						return CompletableFuture.completedFuture(null);
+					} catch (IOException e) {
+						return Utils.failedFuture(e);
+					}
+				}
+			}).thenCompose(new Function<CompletableFuture<Void>, CompletableFuture<Void>>() {
+				@Override
+				public CompletableFuture<Void> apply(CompletableFuture<Void> rendering) {
+					return rendering;
+				}
+			});
+		}
+		
+		leaders.incrementAndGet();
+		response.startRecording();
+		
+		CompletableFuture<Void> rendering;
+		
+		try {
+			rendering = renderer.renderAsync(context);
+		} catch (Exception e) {
+			rendering = Utils.failedFuture(e);
+		}
+		
+		return rendering.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void v, Throwable t) {
+				if(t != null) {
+					response.discardRecording(); // So the error can be sent
+					land(key, flight, null, t);
+				}
+			}
+		}).thenApply(new Function<Void, Void>() {
+			@Override
+			public Void apply(Void v) {
+				Recording recording = response.stopRecording();
+				land(key, flight, recording, null);
+				
+				try {
+					recording.replay(response);
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+				
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Return the number of rendered requests
+	 * @return The number of rendered requests
+	 */
+	public long getLeaderCount() {
+		return leaders.get();
+	}
+	
+	/**
+	 * Return the number of requests answered with the response of another request
+	 * @return The number of coalesced requests
+	 */
+	public long getFollowerCount() {
+		return followers.get();
+	}
+	
+	/**
+	 * End a rendering : the followers are released, and the next identical request starts
+	 * a new rendering
+	 * @param key The request key
+	 * @param flight The rendering
+	 * @param recording The recorded response, or null if failed
+	 * @param failure The failure, or null if succeeded
+	 */
+	private void land(String key, CompletableFuture<Recording> flight, Recording recording, Throwable failure) {
+		inFlight.remove(key, flight);
+		
+		if(failure != null)
+			flight.completeExceptionally(failure);
+		else
+			flight.complete(recording);
+	}
+	
+	/**
+	 * Return the key of a request, made of everything that may change the response of an anonymous
+	 * request : the method, the URI, the parameters sorted by name, the renderer type, the accepted
+	 * encoding and the conditional headers
+	 * @param context The request context
+	 * @return The request key
+	 */
+	private static String key(IContext context) {
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append(context.getRequest().getMethod()).append(' ').append(context.getRequest().getRequestURI());
+		
+		Map<String, String[]> parameters = new TreeMap<String, String[]>(context.getRequest().getParameterMap());
+		
+		for(Entry<String, String[]> parameter : parameters.entrySet())
+			sb.append('\n').append(parameter.getKey()).append('=').append(Arrays.toString(parameter.getValue()));
+		
+		sb.append('\n').append(context.getRendererType());
+		sb.append('\n').append(context.supportEncoding("gzip") ? "gzip" : "identity");
+		sb.append('\n').append(context.getRequest().getHeader("If-None-Match"));
+		sb.append('\n').append(context.getRequest().getHeader("If-Modified-Since"));
+		
+		return sb.toString();
+	}
+}
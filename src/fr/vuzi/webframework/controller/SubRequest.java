@@ -0,0 +1,193 @@
+package fr.vuzi.webframework.controller;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * Request wrapper replacing the method, the URI and the parameters of a request, and hiding its body.
+ * The attributes set on the sub-request are its own, as several sub-requests of the same request may
+ * run in parallel. The other informations, such as the headers or the session, are the ones of the
+ * wrapped request
+ * 
+ * @author Vuzi
+ *
+ */
+public class SubRequest extends HttpServletRequestWrapper {
+
+	/**
+	 * Method of the request
+	 */
+	private String method;
+	
+	/**
+	 * URI of the request
+	 */
+	private String uri;
+	
+	/**
+	 * Parameters of the request
+	 */
+	private Map<String, String[]> parameters;
+	
+	/**
+	 * Attributes of the sub-request
+	 */
+	private Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+	
+	/**
+	 * Sub-request constructor
+	 * @param request The wrapped request
+	 * @param method The method
+	 * @param uri The URI
+	 * @param parameters The parameters
+	 */
+	public SubRequest(HttpServletRequest request, String method, String uri, Map<String, String[]> parameters) {
+		super(request);
+		this.method = method;
+		this.uri = uri;
+		this.parameters = Collections.unmodifiableMap(parameters);
+	}
+	
+	@Override
+	public String getMethod() {
+		return method;
+	}
+	
+	@Override
+	public String getRequestURI() {
+		return uri;
+	}
+	
+	@Override
+	public StringBuffer getRequestURL() {
+		return new StringBuffer(getScheme()).append("://").append(getServerName()).append(':').append(getServerPort()).append(uri);
+	}
+	
+	@Override
+	public String getServletPath() {
+		String contextPath = getContextPath();
+		return contextPath != null && uri.startsWith(contextPath) ? uri.substring(contextPath.length()) : uri;
+	}
+	
+	@Override
+	public String getPathInfo() {
+		return null;
+	}
+	
+	@Override
+	public String getQueryString() {
+		return null;
+	}
+	
+	@Override
+	public String getParameter(String name) {
+		String[] values = parameters.get(name);
+		return values != null && values.length > 0 ? values[0] : null;
+	}
+	
+	@Override
+	public Map<String, String[]> getParameterMap() {
+		return parameters;
+	}
+	
+	@Override
+	public Enumeration<String> getParameterNames() {
+		return Collections.enumeration(parameters.keySet());
+	}
+	
+	@Override
+	public String[] getParameterValues(String name) {
+		return parameters.get(name);
+	}
+	
+	@Override
+	public Object getAttribute(String name) {
+		Object value = attributes.get(name);
+		return value != null ? value : super.getAttribute(name);
+	}
+	
+	@Override
+	public Enumeration<String> getAttributeNames() {
+		Set<String> names = new HashSet<String>(attributes.keySet());
+		names.addAll(Collections.list(super.getAttributeNames()));
+		return Collections.enumeration(names);
+	}
+	
+	@Override
+	public void setAttribute(String name, Object value) {
+		if(value == null)
+			attributes.remove(name);
+		else
+			attributes.put(name, value);
+	}
+	
+	@Override
+	public void removeAttribute(String name) {
+		attributes.remove(name);
+	}
+	
+	@Override
+	public String getContentType() {
+		return null;
+	}
+	
+	@Override
+	public int getContentLength() {
+		return 0;
+	}
+	
+	@Override
+	public long getContentLengthLong() {
+		return 0;
+	}
+	
+	@Override
+	public void setCharacterEncoding(String env) {
+		// No body
+	}
+	
+	@Override
+	public BufferedReader getReader() throws IOException {
+		return new BufferedReader(new StringReader(""));
+	}
+	
+	@Override
+	public ServletInputStream getInputStream() throws IOException {
+		final ByteArrayInputStream empty = new ByteArrayInputStream(new byte[0]);
+		
+		return new ServletInputStream() {
+			@Override
+			public int read() throws IOException {
+				return empty.read();
+			}
+			
+			@Override
+			public boolean isFinished() {
+				return true;
+			}
+			
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+			
+			@Override
+			public void setReadListener(ReadListener readListener) {
+				throw new IllegalStateException("Sub-requests have no body");
+			}
+		};
+	}
+}
@@ -0,0 +1,79 @@
+package fr.vuzi.webframework.controller;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Response of a sub-request, recording everything written instead of sending it. The sub-requests of
+ * a batch share the same response : each one has its own recording, so its headers, cookies, redirections
+ * or output never reach the response of the batch, and parallel sub-requests never write into it.
+ * Only the status and the model of the sub-request are sent, by the batch
+ *
+ * @author Vuzi
+ *
+ */
+public class SubResponse extends BufferedResponse {
+	
+	/**
+	 * Sub-response constructor
+	 * @param response The response of the batch
+	 */
+	public SubResponse(HttpServletResponse response) {
+		super(response);
+		startRecording();
+	}
+	
+	@Override
+	public void sendError(int sc) throws IOException {
+		setStatus(sc);
+	}
+	
+	@Override
+	public void sendError(int sc, String msg) throws IOException {
+		setStatus(sc);
+	}
+	
+	@Override
+	public void sendRedirect(String location) throws IOException {
+		setStatus(SC_FOUND);
+		setHeader("Location", location);
+	}
+	
+	@Override
+	public void addCookie(Cookie cookie) {
+		// Never sent
+	}
+	
+	@Override
+	public void setLocale(Locale loc) {
+		// Never sent
+	}
+	
+	@Override
+	public void setContentLengthLong(long len) {
+		// Never sent
+	}
+	
+	@Override
+	public void setBufferSize(int size) {
+		// Nothing buffered by the batch response
+	}
+	
+	@Override
+	public void reset() {
+		// Only the status of the context is sent
+	}
+	
+	@Override
+	public void resetBuffer() {
+		// Never sent
+	}
+	
+	@Override
+	public boolean isCommitted() {
+		return false;
+	}
+}
@@ -0,0 +1,645 @@
+package fr.vuzi.webframework.dispatcher;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.vuzi.webframework.Utils;
+import fr.vuzi.webframework.action.ICacheableAction;
+import fr.vuzi.webframework.context.IContext;
+
+/**
+ * Results cache of the cacheable actions, bounded by the weight of the cached results.
+ * 
+ * The eviction follows the W-TinyLFU policy : new results enter a small LRU window, and then
+ * compete to enter the main space, a segmented LRU made of a probation and a protected segment.
+ * A result leaving the window is only admitted if it has been used more often than the result
+ * it would evict, the frequencies being estimated with a count-min sketch which is periodically
+ * halved to forget the old usages. This keeps the cache resistant to scans of one-off requests.
+ * 
+ * Concurrent requests missing the same results wait for a single action to be proceeded
+ * 
+ * @author Vuzi
+ *
+ */
+public class ActionCache {
+
+	/**
+	 * Part of the weight used by the window
+	 */
+	private static final double WINDOW_RATIO = 0.01;
+	
+	/**
+	 * Part of the main space weight used by the protected segment
+	 */
+	private static final double PROTECTED_RATIO = 0.8;
+	
+	/**
+	 * Queues identifiers
+	 */
+	private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+	
+	/**
+	 * Maximum weight of the cached results
+	 */
+	private final long maximumWeight;
+	
+	/**
+	 * Maximum weight of the window
+	 */
+	private final long maximumWindowWeight;
+	
+	/**
+	 * Maximum weight of the protected segment
+	 */
+	private final long maximumProtectedWeight;
+	
+	/**
+	 * Current weight of the cached results
+	 */
+	private long weight;
+	
+	/**
+	 * Current weight of the window
+	 */
+	private long windowWeight;
+	
+	/**
+	 * Current weight of the protected segment
+	 */
+	private long protectedWeight;
+	
+	/**
+	 * Cached results, by key
+	 */
+	private final ConcurrentHashMap<String, Node> data = new ConcurrentHashMap<String, Node>();
+	
+	/**
+	 * Results being loaded, by key
+	 */
+	private final ConcurrentHashMap<String, CompletableFuture<Node>> loading = new ConcurrentHashMap<String, CompletableFuture<Node>>();
+	
+	/**
+	 * Queues sentinels, the head being the least recently used
+	 */
+	private final Node[] queues = { new Node(), new Node(), new Node() };
+	
+	/**
+	 * Frequency sketch
+	 */
+	private final FrequencySketch sketch;
+	
+	/**
+	 * Statistics, by action classname
+	 */
+	private final ConcurrentHashMap<String, Statistics> statistics = new ConcurrentHashMap<String, Statistics>();
+	
+	/**
+	 * Action cache constructor
+	 * @param maximumWeight The maximum weight of the cached results, in bytes
+	 */
+	public ActionCache(long maximumWeight) {
+		this.maximumWeight = maximumWeight;
+		this.maximumWindowWeight = Math.max(1, (long) (maximumWeight * WINDOW_RATIO));
+		this.maximumProtectedWeight = (long) ((maximumWeight - maximumWindowWeight) * PROTECTED_RATIO);
+		this.sketch = new FrequencySketch((int) Math.max(256, Math.min(1 << 22, maximumWeight / 1024))); // About 1KB by result
+		
+		for(Node queue : queues)
+			queue.prev = queue.next = queue;
+	}
+	
+	/**
+	 * Proceed a cacheable action : the cached attributes are set in the context if available, otherwise
+	 * the action is proceeded and its attributes cached. If the same results are already being loaded
+	 * by another request, waits for them instead of proceeding the action
+	 * @param context The request context
+	 * @param action The action
+	 * @throws Exception Thrown if the action failed
+	 */
+	public void proceed(IContext context, ICacheableAction action) throws Exception {
+		String classname = action.getClass().getName();
+		String key = key(context, classname, action.getCacheKeyParameters());
+		Statistics stats = getStatistics(classname);
+		Node node = getIfPresent(key);
+		
+		if(node != null) { // Cached
+			stats.hits.incrementAndGet();
+			node.apply(context);
+			return;
+		}
+		
+		CompletableFuture<Node> future = new CompletableFuture<Node>();
+		CompletableFuture<Node> existing = loading.putIfAbsent(key, future);
+		
+		if(existing != null) { // Already loading : wait for it
+			stats.collapsed.incrementAndGet();
+			
+			try {
+				existing.get().apply(context);
+			} catch (ExecutionException e) {
+				throw Utils.unwrapFailure(e);
+			}
+			return;
+		}
+		
+		try {
+			node = getIfPresent(key); // May have been loaded meanwhile
+			
+			if(node != null) {
+				stats.hits.incrementAndGet();
+				node.apply(context);
+			} else {
+				stats.misses.incrementAndGet();
+				action.proceed();
+				
+				long ttl = action.getCacheTtl();
+				node = new Node(key, stats, action.getCachedAttributes(), action.getCacheWeight(),
+						ttl > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttl) : 0);
+				node.capture(context);
+				put(node);
+			}
+			
+			future.complete(node);
+		} catch (Exception e) {
+			future.completeExceptionally(e); // Not cached, the waiting requests fail too
+			throw e;
+		} finally {
+			loading.remove(key, future);
+		}
+	}
+	
+	/**
+	 * Remove all the cached results
+	 */
+	public synchronized void clear() {
+		for(Node node : data.values())
+			remove(node);
+	}
+	
+	/**
+	 * Return the number of cached results
+	 * @return The number of cached results
+	 */
+	public int size() {
+		return data.size();
+	}
+	
+	/**
+	 * Return the weight of the cached results
+	 * @return The weight, in bytes
+	 */
+	public synchronized long weight() {
+		return weight;
+	}
+	
+	/**
+	 * Return the statistics of each action class
+	 * @return The statistics, by action classname
+	 */
+	public Map<String, Statistics> getStatistics() {
+		return new TreeMap<String, Statistics>(statistics);
+	}
+	
+	/**
+	 * Return a text report of the statistics of each action class
+	 * @return The report
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append("Cached results : ").append(size()).append(", weight ").append(weight()).append(" / ").append(maximumWeight).append("\n");
+		
+		for(Map.Entry<String, Statistics> entry : getStatistics().entrySet())
+			sb.append(entry.getKey()).append(" : ").append(entry.getValue()).append("\n");
+		
+		return sb.toString();
+	}
+	
+	/**
+	 * Return the statistics of an action class
+	 * @param classname The action classname
+	 * @return The statistics
+	 */
+	private Statistics getStatistics(String classname) {
+		Statistics stats = statistics.get(classname);
+		
+		if(stats == null) {
+			Statistics previous = statistics.putIfAbsent(classname, stats = new Statistics());
+			
+			if(previous != null)
+				stats = previous;
+		}
+		
+		return stats;
+	}
+	
+	/**
+	 * Return the cache key of an action for the given context
+	 * @param context The request context
+	 * @param classname The action classname
+	 * @param parameters The key parameters
+	 * @return The key
+	 */
+	private static String key(IContext context, String classname, String[] parameters) {
+		StringBuilder sb = new StringBuilder(classname);
+		
+		for(String parameter : parameters) {
+			sb.append('\u0000').append(parameter).append('=');
+			String[] values = context.getParameter(parameter);
+			
+			if(values == null)
+				sb.append('\u0002'); // Not the same as empty
+			else {
+				for(int i = 0; i < values.length; i++) {
+					if(i > 0)
+						sb.append('\u0001');
+					sb.append(values[i]);
+				}
+			}
+		}
+		
+		return sb.toString();
+	}
+	
+	/**
+	 * Return the cached results for a key, and record the access
+	 * @param key The key
+	 * @return The cached results, or null if not cached or expired
+	 */
+	private Node getIfPresent(String key) {
+		Node node = data.get(key);
+		
+		if(node == null)
+			return null;
+		
+		synchronized (this) {
+			if(node.queue < 0)
+				return null; // Evicted meanwhile
+			
+			if(node.expiration != 0 && System.nanoTime() - node.expiration >= 0) {
+				node.stats.expirations.incrementAndGet();
+				remove(node);
+				return null;
+			}
+			
+			sketch.increment(node.hash);
+			
+			switch (node.queue) {
+				case WINDOW:
+				case PROTECTED:
+					int queue = node.queue;
+					unlink(node);
+					link(queue, node);
+					break;
+				case PROBATION: // Used again : protected
+					unlink(node);
+					link(PROTECTED, node);
+					
+					while(protectedWeight > maximumProtectedWeight) { // Demote the least recently used
+						Node demoted = queues[PROTECTED].next;
+						unlink(demoted);
+						link(PROBATION, demoted);
+					}
+					break;
+			}
+		}
+		
+		return node;
+	}
+	
+	/**
+	 * Add results to the cache
+	 * @param node The results
+	 */
+	private synchronized void put(Node node) {
+		sketch.increment(node.hash);
+		
+		if(node.weight > maximumWeight)
+			return; // Never cached
+		
+		Node previous = data.get(node.key);
+		
+		if(previous != null)
+			remove(previous);
+		
+		data.put(node.key, node);
+		weight += node.weight;
+		link(WINDOW, node);
+		evict();
+	}
+	
+	/**
+	 * Evict the results until the weight is below the maximum
+	 */
+	private void evict() {
+		while(windowWeight > maximumWindowWeight) { // Move out of the window
+			Node candidate = queues[WINDOW].next;
+			unlink(candidate);
+			link(PROBATION, candidate);
+			
+			if(weight > maximumWeight)
+				admit(candidate);
+		}
+		
+		while(weight > maximumWeight) { // Still too heavy
+			Node victim = queues[PROBATION].next;
+			
+			if(victim == queues[PROBATION])
+				victim = queues[PROTECTED].next;
+			if(victim == queues[PROTECTED])
+				victim = queues[WINDOW].next;
+			
+			evict(victim);
+		}
+	}
+	
+	/**
+	 * Admit a candidate leaving the window in the main space, if more frequent than the results it evicts
+	 * @param candidate The candidate
+	 */
+	private void admit(Node candidate) {
+		int frequency = sketch.frequency(candidate.hash);
+		
+		while(weight > maximumWeight) {
+			Node victim = queues[PROBATION].next;
+			
+			if(victim == candidate) // Only the candidate in probation
+				victim = queues[PROTECTED].next;
+			if(victim == queues[PROTECTED]) // Nothing else in the main space
+				return;
+			
+			if(frequency > sketch.frequency(victim.hash))
+				evict(victim);
+			else {
+				evict(candidate); // Rejected
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Evict results
+	 * @param node The results
+	 */
+	private void evict(Node node) {
+		node.stats.evictions.incrementAndGet();
+		remove(node);
+	}
+	
+	/**
+	 * Remove results from the cache
+	 * @param node The results
+	 */
+	private void remove(Node node) {
+		data.remove(node.key, node);
+		weight -= node.weight;
+		unlink(node);
+		node.queue = -1;
+	}
+	
+	/**
+	 * Add results at the tail of a queue
+	 * @param queue The queue
+	 * @param node The results
+	 */
+	private void link(int queue, Node node) {
+		Node sentinel = queues[queue];
+		
+		node.prev = sentinel.prev;
+		node.next = sentinel;
+		sentinel.prev.next = node;
+		sentinel.prev = node;
+		node.queue = queue;
+		
+		if(queue == WINDOW)
+			windowWeight += node.weight;
+		else if(queue == PROTECTED)
+			protectedWeight += node.weight;
+	}
+	
+	/**
+	 * Remove results from their queue
+	 * @param node The results
+	 */
+	private void unlink(Node node) {
+		node.prev.next = node.next;
+		node.next.prev = node.prev;
+		node.prev = node.next = null;
+		
+		if(node.queue == WINDOW)
+			windowWeight -= node.weight;
+		else if(node.queue == PROTECTED)
+			protectedWeight -= node.weight;
+	}
+	
+	/**
+	 * Cached results of an action
+	 */
+	private static class Node {
+		
+		private String key;
+		
+		private int hash;
+		
+		private Statistics stats;
+		
+		/**
+		 * Cached attributes names
+		 */
+		private String[] names;
+		
+		/**
+		 * Cached attributes values
+		 */
+		private Object[] values;
+		
+		private int weight;
+		
+		/**
+		 * Expiration time, in the nanoTime time, 0 for no expiration
+		 */
+		private long expiration;
+		
+		/**
+		 * Queue of the node, -1 once removed
+		 */
+		private int queue = -1;
+		
+		private Node prev;
+		
+		private Node next;
+		
+		/**
+		 * Sentinel constructor
+		 */
+		private Node() {}
+		
+		private Node(String key, Statistics stats, String[] names, int weight, long expiration) {
+			this.key = key;
+			this.hash = key.hashCode();
+			this.stats = stats;
+			this.names = names;
+			this.values = new Object[names.length];
+			this.weight = Math.max(1, weight);
+			this.expiration = expiration;
+		}
+		
+		/**
+		 * Read the attributes from the context
+		 * @param context The context
+		 */
+		private void capture(IContext context) {
+			for(int i = 0; i < names.length; i++)
+				values[i] = context.getAttribute(names[i]);
+		}
+		
+		/**
+		 * Set the attributes in the context
+		 * @param context The context
+		 */
+		private void apply(IContext context) {
+			for(int i = 0; i < names.length; i++)
+				context.setAttribute(names[i], values[i]);
+		}
+	}
+	
+	/**
+	 * Count-min sketch of the keys frequencies, with 4 hash functions and counters up to 15. All the
+	 * counters are halved once enough increments are done, so the frequencies follow the recent usage
+	 */
+	private static class FrequencySketch {
+		
+		private static final int[] SEEDS = { 0x97cb3127, 0xb8b5dd35, 0x9e3779b9, 0x85ebca6b };
+		
+		private byte[] counters;
+		
+		private int mask;
+		
+		/**
+		 * Increments before halving the counters
+		 */
+		private int sampleSize;
+		
+		private int additions;
+		
+		private FrequencySketch(int size) {
+			int capacity = Integer.highestOneBit(size - 1) << 1;
+			counters = new byte[capacity];
+			mask = capacity - 1;
+			sampleSize = 10 * capacity;
+		}
+		
+		private int index(int hash, int i) {
+			int h = hash * SEEDS[i];
+			h ^= h >>> 16;
+			return h & mask;
+		}
+		
+		private int frequency(int hash) {
+			int frequency = 15;
+			
+			for(int i = 0; i < SEEDS.length; i++)
+				frequency = Math.min(frequency, counters[index(hash, i)]);
+			
+			return frequency;
+		}
+		
+		private void increment(int hash) {
+			boolean added = false;
+			
+			for(int i = 0; i < SEEDS.length; i++) {
+				int index = index(hash, i);
+				
+				if(counters[index] < 15) {
+					counters[index]++;
+					added = true;
+				}
+			}
+			
+			if(added && ++additions >= sampleSize) { // Forget the old usages
+				for(int i = 0; i < counters.length; i++)
+					counters[i] >>= 1;
+				additions /= 2;
+			}
+		}
+	}
+	
+	/**
+	 * Cache statistics of an action class
+	 */
+	public static class Statistics {
+		
+		private AtomicLong hits = new AtomicLong();
+		
+		private AtomicLong misses = new AtomicLong();
+		
+		/**
+		 * Misses waiting for the same results loaded by another request
+		 */
+		private AtomicLong collapsed = new AtomicLong();
+		
+		private AtomicLong evictions = new AtomicLong();
+		
+		private AtomicLong expirations = new AtomicLong();
+		
+		/**
+		 * Return the number of requests served by the cache
+		 * @return The hit count
+		 */
+		public long getHitCount() {
+			return hits.get();
+		}
+		
+		/**
+		 * Return the number of requests which proceeded the action
+		 * @return The miss count
+		 */
+		public long getMissCount() {
+			return misses.get();
+		}
+		
+		/**
+		 * Return the number of requests which waited for the action proceeded by another request
+		 * @return The collapsed misses count
+		 */
+		public long getCollapsedCount() {
+			return collapsed.get();
+		}
+		
+		/**
+		 * Return the number of results evicted
+		 * @return The eviction count
+		 */
+		public long getEvictionCount() {
+			return evictions.get();
+		}
+		
+		/**
+		 * Return the number of results expired
+		 * @return The expiration count
+		 */
+		public long getExpirationCount() {
+			return expirations.get();
+		}
+		
+		/**
+		 * Return the part of the requests which didn't proceed the action
+		 * @return The hit rate, between 0 and 1
+		 */
+		public double getHitRate() {
+			long served = hits.get() + collapsed.get();
+			long total = served + misses.get();
+			return total > 0 ? (double) served / total : 0;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("hit rate %.3f (%d hits, %d collapsed, %d misses), %d evictions, %d expirations",
+					getHitRate(), getHitCount(), getCollapsedCount(), getMissCount(), getEvictionCount(), getExpirationCount());
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package fr.vuzi.webframework.dispatcher;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+import fr.vuzi.webframework.action.IAction;
+
+/**
+ * Future of an action dispatched asynchronously. The future is also the task submitted to the
+ * executor, so the executor can read the action, e.g. to use its priority
+ * 
+ * @author Vuzi
+ *
+ */
+public class ActionFuture extends CompletableFuture<Void> implements Runnable {
+
+	/**
+	 * The action
+	 */
+	private final IAction action;
+	
+	/**
+	 * The task proceeding the action
+	 */
+	private final Callable<Void> task;
+	
+	/**
+	 * Thread running the action, if running
+	 */
+	private Thread runner;
+	
+	/**
+	 * If the thread running the action was interrupted
+	 */
+	private boolean interrupted;
+	
+	/**
+	 * Called once the action no longer uses a thread, or null
+	 */
+	private Runnable finisher;
+	
+	/**
+	 * Action future constructor
+	 * @param action The action to run
+	 */
+	public ActionFuture(IAction action) {
+		this(action, action);
+	}
+	
+	/**
+	 * Action future constructor
+	 * @param action The action
+	 * @param task The task proceeding the action, e.g. through a cache
+	 */
+	public ActionFuture(IAction action, Callable<Void> task) {
+		this.action = action;
+		this.task = task;
+	}
+	
+	/**
+	 * Return the action
+	 * @return The action
+	 */
+	public IAction getAction() {
+		return action;
+	}
+	
+	/**
+	 * Set the callback called once the action no longer uses a thread : once run, even after its
+	 * timeout, or once discarded without being run. Note that the future may complete before, e.g.
+	 * when timed out
+	 * @param finisher The callback
+	 */
+	public synchronized void setFinisher(Runnable finisher) {
+		this.finisher = finisher;
+	}
+	
+	/**
+	 * Call the finisher, if not already called. Should be called by the executors discarding the
+	 * action without running it
+	 */
+	public void finish() {
+		Runnable finisher;
+		
+		synchronized (this) {
+			finisher = this.finisher;
+			this.finisher = null;
+		}
+		
+		if(finisher != null)
+			finisher.run();
+	}
+	
+	@Override
+	public void run() {
+		synchronized (this) {
+			if(!isDone())
+				runner = Thread.currentThread();
+		}
+		
+		if(runner == null) { // Cancelled before being run
+			finish();
+			return;
+		}
+		
+		try {
+			task.call();
+			complete(null);
+		} catch (Throwable t) {
+			completeExceptionally(t);
+		} finally {
+			synchronized (this) {
+				runner = null;
+				
+				if(interrupted)
+					Thread.interrupted(); // The interruption must not leak into the next task of the thread
+			}
+			
+			finish();
+		}
+	}
+	
+	/**
+	 * Complete the future with a timeout exception, and interrupt the action if running
+	 * @return True if the action timed out, false if it was already done
+	 */
+	public boolean timeout() {
+		if(!completeExceptionally(new TimeoutException("Action " + action.getClass().getName() + " timed out")))
+			return false;
+		
+		interrupt();
+		return true;
+	}
+	
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		boolean cancelled = super.cancel(mayInterruptIfRunning);
+		
+		if(cancelled && mayInterruptIfRunning)
+			interrupt();
+		
+		return cancelled;
+	}
+	
+	/**
+	 * Interrupt the thread running the action, if any
+	 */
+	private synchronized void interrupt() {
+		if(runner != null) {
+			interrupted = true;
+			runner.interrupt();
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package fr.vuzi.webframework.dispatcher;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrency limit of an action class. A slot is taken when an action is dispatched, and only
+ * given back once the action no longer uses a thread : an action blocked on a slow resource can
+ * then only take its own slots, and never every thread of the dispatcher. When all the slots are
+ * taken, the new actions are rejected immediately instead of being queued
+ * 
+ * @author Vuzi
+ *
+ */
+public class Bulkhead {
+
+	/**
+	 * Name of the bulkhead, i.e. the action classname
+	 */
+	private final String name;
+	
+	/**
+	 * Maximum number of slots
+	 */
+	private volatile int limit;
+	
+	/**
+	 * Number of slots taken
+	 */
+	private AtomicInteger active = new AtomicInteger();
+	
+	/**
+	 * Number of accepted actions
+	 */
+	private AtomicLong accepted = new AtomicLong();
+	
+	/**
+	 * Number of rejected actions
+	 */
+	private AtomicLong rejected = new AtomicLong();
+	
+	/**
+	 * Bulkhead constructor
+	 * @param name The name of the bulkhead
+	 * @param limit The maximum number of slots
+	 */
+	public Bulkhead(String name, int limit) {
+		this.name = name;
+		this.limit = limit;
+	}
+	
+	/**
+	 * Take a slot, without waiting
+	 * @return True if a slot was taken, false if all the slots are taken
+	 */
+	public boolean tryAcquire() {
+		while(true) {
+			int current = active.get();
+			
+			if(current >= limit) {
+				rejected.incrementAndGet();
+				return false;
+			}
+			
+			if(active.compareAndSet(current, current + 1)) {
+				accepted.incrementAndGet();
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Give back a slot
+	 */
+	public void release() {
+		active.decrementAndGet();
+	}
+	
+	/**
+	 * Return the name of the bulkhead
+	 * @return The name
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Set the maximum number of slots. The slots already taken are kept
+	 * @param limit The maximum number of slots
+	 */
+	public void setLimit(int limit) {
+		this.limit = limit;
+	}
+	
+	/**
+	 * Return the maximum number of slots
+	 * @return The maximum number of slots
+	 */
+	public int getLimit() {
+		return limit;
+	}
+	
+	/**
+	 * Return the number of slots taken
+	 * @return The occupancy
+	 */
+	public int getActive() {
+		return active.get();
+	}
+	
+	/**
+	 * Return the number of accepted actions
+	 * @return The accepted count
+	 */
+	public long getAcceptedCount() {
+		return accepted.get();
+	}
+	
+	/**
+	 * Return the number of rejected actions
+	 * @return The rejected count
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+	
+	@Override
+	public String toString() {
+		return name + " active=" + active.get() + "/" + limit + " accepted=" + accepted.get() + " rejected=" + rejected.get();
+	}
+}
@@ -0,0 +1,39 @@
+package fr.vuzi.webframework.dispatcher;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Exception thrown when an action is rejected because its bulkhead is full
+ * 
+ * @author Vuzi
+ *
+ */
+public class BulkheadFullException extends RejectedExecutionException {
+
+	/**
+	 * Serial UID
+	 */
+	private static final long serialVersionUID = 6094370916263405478L;
+	
+	/**
+	 * The full bulkhead
+	 */
+	private final transient Bulkhead bulkhead;
+	
+	/**
+	 * Exception constructor
+	 * @param bulkhead The full bulkhead
+	 */
+	public BulkheadFullException(Bulkhead bulkhead) {
+		super("Bulkhead " + bulkhead.getName() + " is full (" + bulkhead.getLimit() + " slots)");
+		this.bulkhead = bulkhead;
+	}
+	
+	/**
+	 * Return the full bulkhead
+	 * @return The bulkhead
+	 */
+	public Bulkhead getBulkhead() {
+		return bulkhead;
+	}
+}
@@ -5,21 +5,43 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
+import fr.vuzi.webframework.Utils;
+import fr.vuzi.webframework.action.ActionRegistry;
 import fr.vuzi.webframework.action.IAction;
+import fr.vuzi.webframework.action.ICacheableAction;
+import fr.vuzi.webframework.context.ActionState;
 import fr.vuzi.webframework.context.IContext;
+import fr.vuzi.webframework.dispatcher.executor.CachedExecutorStrategy;
+import fr.vuzi.webframework.dispatcher.executor.IExecutorStrategy;
+import fr.vuzi.webframework.dispatcher.executor.NamedThreadFactory;
 
 /**
- * Dispatcher implementation using ExecutorService to create a pool thread
+ * Dispatcher implementation using ExecutorService to create a pool thread. The executor
+ * is created by an executor strategy
  * 
  * @author Vuzi
  *
  */
 public class Dispatcher implements IDispatcher {
 	
-	private Map<String, IAction> actionTemplates;
+	/**
+	 * Registry of the possible actions
+	 */
+	private ActionRegistry registry;
 
 	/**
 	 * Thread pool
@@ -27,63 +49,374 @@ public class Dispatcher implements IDispatcher {
 	private ExecutorService threadPool;
 	
 	/**
-	 * Thread pool constructor
+	 * Timer used to cancel the actions reaching their deadline
+	 */
+	private ScheduledThreadPoolExecutor timer;
+	
+	/**
+	 * Results cache of the cacheable actions, or null if disabled
+	 */
+	private ActionCache actionCache;
+	
+	/**
+	 * Time given to the running actions to finish when shutting down, in milliseconds
+	 */
+	private long shutdownTimeout = 10000;
+	
+	/**
+	 * Time given to the dispatched actions which don't define their own timeout, in milliseconds.
+	 * 0 for no timeout
+	 */
+	private long defaultTimeout;
+	
+	/**
+	 * Concurrency limits of the actions, by classname. The "*" limit applies to every other action
+	 */
+	private volatile Map<String, Integer> bulkheadLimits = Collections.emptyMap();
+	
+	/**
+	 * Bulkheads of the actions, by classname
+	 */
+	private ConcurrentMap<String, Bulkhead> bulkheads = new ConcurrentHashMap<String, Bulkhead>();
+	
+	/**
+	 * Thread pool constructor, using a cached thread pool
 	 */
 	public Dispatcher() {
-		threadPool = Executors.newCachedThreadPool();
-		actionTemplates = new HashMap<String, IAction>();
+		this(new CachedExecutorStrategy());
+	}
+	
+	/**
+	 * Thread pool constructor
+	 * @param strategy The executor strategy
+	 */
+	public Dispatcher(IExecutorStrategy strategy) {
+		this(strategy, new ActionRegistry());
+	}
+	
+	/**
+	 * Thread pool constructor
+	 * @param strategy The executor strategy
+	 * @param registry The actions registry, which may be shared with the rewriter
+	 */
+	public Dispatcher(IExecutorStrategy strategy, ActionRegistry registry) {
+		this.registry = registry;
+		threadPool = strategy.createExecutor();
+		timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("jwf-timer"));
+		timer.setRemoveOnCancelPolicy(true); // Most deadlines are never reached
+	}
+
+	/**
+	 * Return the executor running the actions, e.g. to read its statistics
+	 * @return The executor
+	 */
+	public ExecutorService getExecutor() {
+		return threadPool;
+	}
+	
+	/**
+	 * Set the results cache of the cacheable actions
+	 * @param actionCache The cache, or null to disable
+	 */
+	public void setActionCache(ActionCache actionCache) {
+		this.actionCache = actionCache;
+	}
+	
+	/**
+	 * Return the results cache of the cacheable actions, used to read its statistics
+	 * @return The cache, or null if disabled
+	 */
+	public ActionCache getActionCache() {
+		return actionCache;
+	}
+	
+	/**
+	 * Set the time given to the running actions to finish when shutting down
+	 * @param shutdownTimeout The timeout, in milliseconds
+	 */
+	public void setShutdownTimeout(long shutdownTimeout) {
+		this.shutdownTimeout = shutdownTimeout;
+	}
+
+	/**
+	 * Set the time given to the dispatched actions which don't define their own timeout. The
+	 * actions still running after this time are interrupted
+	 * @param defaultTimeout The timeout, in milliseconds, 0 for no timeout
+	 */
+	public void setDefaultTimeout(long defaultTimeout) {
+		this.defaultTimeout = defaultTimeout;
+	}
+
+	/**
+	 * Set the concurrency limits of the actions. Each action class with a limit has its own bulkhead :
+	 * the actions dispatched while all its slots are taken are rejected with a BulkheadFullException
+	 * instead of being queued. The limits of the bulkheads already used are updated
+	 * @param limits The limits, by classname. The "*" limit applies to every other action class, each
+	 *               one having its own bulkhead
+	 */
+	public void setBulkheads(Map<String, Integer> limits) {
+		bulkheadLimits = new HashMap<String, Integer>(limits);
+		
+		for(Bulkhead bulkhead : bulkheads.values()) {
+			Integer limit = limit(bulkhead.getName());
+			bulkhead.setLimit(limit != null ? limit : Integer.MAX_VALUE);
+		}
+	}
+	
+	/**
+	 * Return the bulkheads used so far, e.g. to read their occupancy
+	 * @return The bulkheads
+	 */
+	public Collection<Bulkhead> getBulkheads() {
+		return Collections.unmodifiableCollection(bulkheads.values());
 	}
 
 	@Override
 	public void setPossibleActions(Collection<String> actionClassnames) {
-		if(actionClassnames == null)
+		registry.register(actionClassnames);
+	}
+	
+	@Override
+	public void dispatch(IContext context, IAction action) throws Exception {
+		if(delay(context, action) == Long.MAX_VALUE) { // No deadline : proceed in the current thread
+			Bulkhead bulkhead = acquire(context, action);
+			
+			try {
+				task(context, action).call();
+				context.setActionState(action.getClass().getName(), ActionState.DONE);
+			} catch (Exception e) {
+				context.setActionState(action.getClass().getName(), ActionState.FAILED);
+				throw e;
+			} finally {
+				if(bulkhead != null)
+					bulkhead.release();
+			}
 			return;
+		}
 		
-		for(String actionClassname : actionClassnames) { // For each rule
-			if(actionClassname != null && !actionTemplates.containsKey(actionClassname)) { // If the action class is not already in the templates
-				try {
-					// Add to the template list
-					actionTemplates.put(actionClassname, (IAction) Class.forName(actionClassname).newInstance());
-				} catch (Exception e) {
-					e.printStackTrace();
+		try {
+			dispatchAsync(context, action).get(); // Interrupted once its deadline is reached
+		} catch (ExecutionException e) {
+			throw Utils.unwrapFailure(e);
+		}
+	}
+	
+	/**
+	 * Dispatch multiple actions, and wait for them. The failed and timed out actions are only reported
+	 * by their state in the context
+	 * @param context The action's context
+	 * @param actions The action
+	 */
+	@Override
+	public void dispatch(IContext context, Collection<IAction> actions) throws Exception {
+		dispatchAsync(context, actions).get(); // Launch all the actions
+	}
+
+	/**
+	 * Dispatch asynchronously a single action. The action is interrupted if still running after its
+	 * timeout, or the deadline of the request, and then fails with a timeout exception
+	 * @param context The action's context
+	 * @param action The action
+	 * @return The future completed once the action is done, and its state set in the context
+	 */
+	@Override
+	public CompletableFuture<Void> dispatchAsync(final IContext context, IAction action) {
+		final String classname = action.getClass().getName();
+		final Bulkhead bulkhead;
+		
+		try {
+			bulkhead = acquire(context, action);
+		} catch (BulkheadFullException e) {
+			return Utils.failedFuture(e);
+		}
+		
+		final ActionFuture future = new ActionFuture(action, task(context, action));
+		long delay = delay(context, action);
+		
+		if(bulkhead != null) {
+			future.setFinisher(new Runnable() {
+				@Override
+				public void run() {
+					bulkhead.release(); // Once the thread is given back, even after a timeout
+				}
+			});
+		}
+		
+		context.setActionState(classname, ActionState.RUNNING);
+		
+		if(delay != Long.MAX_VALUE) {
+			final ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					future.timeout();
+				}
+			}, Math.max(0, delay), TimeUnit.NANOSECONDS);
+			
+			future.whenComplete(new BiConsumer<Void, Throwable>() {
+				@Override
+				public void accept(Void v, Throwable t) {
+					timeout.cancel(false);
+				}
+			});
+		}
+		
+		// The state is set before the returned future completes
+		CompletableFuture<Void> done = future.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void v, Throwable t) {
+				if(t == null)
+					context.setActionState(classname, ActionState.DONE);
+				else if(Utils.unwrapFailure(t) instanceof TimeoutException)
+					context.setActionState(classname, ActionState.TIMED_OUT);
+				else {
+					context.setActionState(classname, ActionState.FAILED);
+					t.printStackTrace();
 				}
 			}
+		});
+		
+		try {
+			threadPool.execute(future);
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e); // Shut down
+			future.finish();
 		}
+		
+		return done;
 	}
 	
+	/**
+	 * Dispatch asynchronously multiple actions. The failed and timed out actions are only reported
+	 * by their state in the context
+	 * @param context The action's context
+	 * @param actions The actions
+	 * @return The future completed once every action is done
+	 */
 	@Override
-	public void dispatch(IContext context, IAction action) throws Exception {
-		action.proceed();
-		//threadPool.submit(action); // Submit the only action
-		// TODO handle exceptions
+	public CompletableFuture<Void> dispatchAsync(IContext context, Collection<IAction> actions) {
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[actions.size()];
+		int i = 0;
+		
+		for(IAction action : actions) {
+			futures[i++] = dispatchAsync(context, action).exceptionally(new Function<Throwable, Void>() {
+				@Override
+				public Void apply(Throwable t) {
+					return null; // Reported in the context
+				}
+			});
+		}
+		
+		return CompletableFuture.allOf(futures);
 	}
 	
-	@Override
-	public void dispatch(IContext context, Collection<IAction> actions) throws Exception {
-		try {
-			threadPool.invokeAll(actions); // Launch all the actions
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+	/**
+	 * Return the task proceeding an action, through the cache for the cacheable actions
+	 * @param context The action's context
+	 * @param action The action
+	 * @return The task
+	 */
+	private Callable<Void> task(final IContext context, final IAction action) {
+		final ActionCache actionCache = this.actionCache;
+		
+		if(actionCache == null || !(action instanceof ICacheableAction))
+			return action;
+		
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				actionCache.proceed(context, (ICacheableAction) action);
+				return null;
+			}
+		};
+	}
+	
+	/**
+	 * Take a slot in the bulkhead of an action
+	 * @param context The action's context
+	 * @param action The action
+	 * @return The bulkhead, or null if the action has no concurrency limit
+	 * @throws BulkheadFullException Thrown if all the slots are taken. The action is then rejected
+	 */
+	private Bulkhead acquire(IContext context, IAction action) throws BulkheadFullException {
+		String classname = action.getClass().getName();
+		Bulkhead bulkhead = bulkheads.get(classname);
+		
+		if(bulkhead == null) {
+			Integer limit = limit(classname);
+			
+			if(limit == null)
+				return null; // No limit
+			
+			bulkhead = new Bulkhead(classname, limit);
+			Bulkhead previous = bulkheads.putIfAbsent(classname, bulkhead);
+			
+			if(previous != null)
+				bulkhead = previous;
 		}
-		// TODO handle exceptions
+		
+		if(!bulkhead.tryAcquire()) {
+			context.setActionState(classname, ActionState.REJECTED);
+			throw new BulkheadFullException(bulkhead);
+		}
+		
+		return bulkhead;
+	}
+	
+	/**
+	 * Return the concurrency limit of an action class
+	 * @param classname The action classname
+	 * @return The limit, or null if none
+	 */
+	private Integer limit(String classname) {
+		Map<String, Integer> limits = bulkheadLimits;
+		Integer limit = limits.get(classname);
+		
+		return limit != null ? limit : limits.get("*");
+	}
+	
+	/**
+	 * Return the time left to an action before being interrupted
+	 * @param context The action's context
+	 * @param action The action
+	 * @return The time left, in nanoseconds, or Long.MAX_VALUE if the action has no deadline
+	 */
+	private long delay(IContext context, IAction action) {
+		long timeout = action.getTimeout() > 0 ? action.getTimeout() : defaultTimeout;
+		long delay = timeout > 0 ? TimeUnit.MILLISECONDS.toNanos(timeout) : Long.MAX_VALUE;
+		long deadline = context.getDeadline();
+		
+		if(deadline != 0)
+			delay = Math.min(delay, deadline - System.nanoTime());
+		
+		return delay;
 	}
 
 	@Override
 	public void lock() {
-		actionTemplates = Collections.unmodifiableMap(actionTemplates);
+		registry.lock();
 	}
 
 	@Override
-	public IAction instantiate(String actionClassname, IContext context) {
-		IAction actionTemplate = actionTemplates.get(actionClassname);
+	public void shutdown() {
+		threadPool.shutdown(); // No new action
+		timer.shutdown(); // Pending deadlines are still enforced
 		
-		if(actionTemplate == null)
-			return null;
-		else {
-			return actionTemplate.cloneAction(context);
+		try {
+			if(!threadPool.awaitTermination(shutdownTimeout, TimeUnit.MILLISECONDS))
+				threadPool.shutdownNow(); // Interrupt the remaining actions
+			timer.shutdownNow();
+		} catch (InterruptedException e) {
+			threadPool.shutdownNow();
+			timer.shutdownNow();
+			Thread.currentThread().interrupt();
 		}
 	}
 
+	@Override
+	public IAction instantiate(String actionClassname, IContext context) {
+		return registry.newAction(actionClassname, context);
+	}
+
 	@Override
 	public Collection<IAction> instantiate(Collection<String> actionClassnames, IContext context) {
 		ArrayList<IAction> actions = new ArrayList<IAction>();
@@ -1,6 +1,7 @@
 package fr.vuzi.webframework.dispatcher;
 
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
 
 import fr.vuzi.webframework.Lockable;
 import fr.vuzi.webframework.action.IAction;
@@ -20,26 +21,46 @@ public interface IDispatcher extends Lockable {
 	
 	/**
 	 * Called at the initialization of the dispatcher, use to instantiate a template action
-	 * for each possible action
+	 * for each possible action. Once locked, the new actions are only published at the next lock
 	 * @param actionClassnames The collection of template class names
 	 */
 	public void setPossibleActions(Collection<String> actionClassnames);
 	
 	/**
-	 * Dispatch asynchronously a single action. This method must be <b>thread safe</b>
+	 * Dispatch a single action, and wait for it. The state of the action is set in the context, and
+	 * the action fails with a timeout exception if interrupted at its deadline. This method must be
+	 * <b>thread safe</b>
 	 * @param context The action's context
 	 * @param action The action
 	 */
 	public void dispatch(IContext context, IAction action) throws Exception;
 	
 	/**
-	 * Dispatch asynchronously multiple actions. Those actions must be independent between themselves.
-	 * This method must be <b>thread safe</b>
+	 * Dispatch asynchronously multiple actions, and wait for them. Those actions must be independent between
+	 * themselves. The state of each action is set in the context, so the failed and timed out actions can
+	 * be replaced when rendering. This method must be <b>thread safe</b>
 	 * @param context The action's context
 	 * @param actions The action
 	 */
 	public void dispatch(IContext context, Collection<IAction> actions) throws Exception;
 	
+	/**
+	 * Dispatch asynchronously a single action, without waiting for it. This method must be <b>thread safe</b>
+	 * @param context The action's context
+	 * @param action The action
+	 * @return The future completed once the action is done
+	 */
+	public CompletableFuture<Void> dispatchAsync(IContext context, IAction action);
+	
+	/**
+	 * Dispatch asynchronously multiple actions, without waiting for them. Those actions must be independent
+	 * between themselves. This method must be <b>thread safe</b>
+	 * @param context The action's context
+	 * @param actions The actions
+	 * @return The future completed once every action is done
+	 */
+	public CompletableFuture<Void> dispatchAsync(IContext context, Collection<IAction> actions);
+	
 	/**
 	 * Instantiate the action using the given classname
 	 * @param actionClassname The class to instantiate
@@ -54,4 +75,10 @@ public interface IDispatcher extends Lockable {
 	 */
 	public Collection<IAction> instantiate(Collection<String> actionClassnames, IContext context);
 	
+	/**
+	 * Shut down the dispatcher. The actions being run are given some time to finish, then
+	 * interrupted. Called when the servlet is destroyed
+	 */
+	public void shutdown();
+	
 }
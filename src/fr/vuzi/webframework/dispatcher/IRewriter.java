@@ -12,7 +12,8 @@ import fr.vuzi.webframework.context.IContext;
  * to proceed for the request. If no action is selected, then its a 404 error
  * 
  * Note that the <b>rewrite</b> method should be thread safe, unlike the other
- * methods as they will only be called in the thread-safe servlet initialization phase
+ * methods as they will only be called in the thread-safe servlet initialization phase, or
+ * in a reload of the rules. Once locked, the rules modifications are only published at the next lock
  * 
  * @author Vuzi
  *
@@ -1,10 +1,11 @@
 package fr.vuzi.webframework.dispatcher;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import fr.vuzi.webframework.Utils;
+import fr.vuzi.webframework.context.Capture;
 import fr.vuzi.webframework.context.IContext;
 
 /**
@@ -16,6 +17,16 @@ import fr.vuzi.webframework.context.IContext;
  */
 public class RewriteRule implements IRewriteRule {
 
+	/**
+	 * Known HTTP methods, each one having its own bit in the method masks
+	 */
+	public static final String[] METHODS = { "GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "TRACE", "PATCH", "CONNECT" };
+
+	/**
+	 * Method mask matching any method
+	 */
+	public static final int ANY_METHOD = -1;
+
 	/**
 	 * The URI regex
 	 */
@@ -30,6 +41,16 @@ public class RewriteRule implements IRewriteRule {
 	 * The access method possible, separated by "|", i.e. "GET|POST"
 	 */
 	private String method;
+
+	/**
+	 * Mask of the known methods accepted, computed from the method string
+	 */
+	private int methodMask;
+
+	/**
+	 * Accepted methods which are not known methods
+	 */
+	private String[] otherMethods;
 	
 	/**
 	 * Substitutions keys, used with regex capturing groups
@@ -41,6 +62,22 @@ public class RewriteRule implements IRewriteRule {
 	 */
 	private String rendererType;
 
+	/**
+	 * Time given to the requests matched by the rule, in milliseconds, 0 for no deadline
+	 */
+	private long timeout;
+
+	/**
+	 * If the requests matched by the rule never modify anything, and can be answered with
+	 * the response of another identical request
+	 */
+	private boolean idempotent;
+
+	/**
+	 * If the response of the requests matched by the rule doesn't depend on the user
+	 */
+	private boolean anonymous;
+
 	/**
 	 * Rule constructor
 	 * @param regex URI regex
@@ -119,32 +156,155 @@ public class RewriteRule implements IRewriteRule {
 		this.className = className;
 		this.substitutions = substitutions;
 		this.rendererType = rendererType;
+		
+		initMethodMask();
+	}
+
+	/**
+	 * Parse the method string into the method mask, once for all
+	 */
+	private void initMethodMask() {
+		methodMask = 0;
+		otherMethods = new String[0];
+		
+		if(method == null || method.equals("*")) {
+			methodMask = ANY_METHOD;
+			return;
+		}
+		
+		for(String m : method.split("\\|")) {
+			int bit = methodBit(m);
+			
+			if(bit != 0)
+				methodMask |= bit;
+			else
+				otherMethods = Utils.appendToArray(otherMethods, m);
+		}
+	}
+
+	/**
+	 * Return the bit of the given method in the method masks
+	 * @param method The HTTP method
+	 * @return The method bit, or 0 if the method is not a known method
+	 */
+	public static int methodBit(String method) {
+		if(method != null) {
+			for(int i = 0; i < METHODS.length; i++)
+				if(METHODS[i].equals(method))
+					return 1 << i;
+		}
+		
+		return 0;
 	}
 	
 	@Override
 	public boolean matches(IContext context) {
-		Matcher m = regex.matcher(context.getRequest().getRequestURI()); // Only perform regex test on the URI, not the URL
+		Capture[] captures = match(context);
 		
-		try {
-			if(m.find() && checkMethod(context)) { // Check URI and access method
-				for(int i = 0; i < substitutions.length && i < m.groupCount(); i++) { // Substitutions
-					if(m.group(i + 1) != null)
-						context.setParamater(substitutions[i], new String[] { URLDecoder.decode(m.group(i + 1), "UTF-8").toString() });
-				}
-				return checkContext(context); // Check context last
-			}
-		} catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
+		if(captures != null) { // Check URI and access method
+			substitute(context, captures);
+			return checkContext(context); // Check context last
 		}
 
 		return false;
 	}
 
+	/**
+	 * Test the URI and the access method of the request, without checking the context
+	 * @param context The request context
+	 * @return The substitutions captures (null for the groups not matched), or null if the
+	 *         rule doesn't match
+	 */
+	Capture[] match(IContext context) {
+		if(!checkMethod(context)) // Cheap method check first
+			return null;
+		
+		String uri = context.getRequest().getRequestURI();
+		Matcher m = regex.matcher(uri); // Only perform regex test on the URI, not the URL
+		
+		if(!m.find())
+			return null;
+		
+		Capture[] captures = new Capture[Math.min(substitutions.length, m.groupCount())];
+		
+		for(int i = 0; i < captures.length; i++) { // Substitutions, decoded when read
+			if(m.start(i + 1) >= 0)
+				captures[i] = new Capture(uri, m.start(i + 1), m.end(i + 1));
+		}
+		
+		return captures;
+	}
+
+	/**
+	 * Set the substitutions captures as parameters of the context
+	 * @param context The request context
+	 * @param captures The substitutions captures, as returned by the match method
+	 */
+	void substitute(IContext context, Capture[] captures) {
+		for(int i = 0; i < captures.length; i++) {
+			if(captures[i] != null)
+				context.setParameterCapture(substitutions[i], captures[i]);
+		}
+	}
+
 	@Override
 	public void rewrite(IContext context) {
 		context.setActionClassname(className); // Action classname
 		if(rendererType != null)
 			context.setRenderType(rendererType); // Force renderer
+		if(timeout > 0)
+			context.setDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout)); // Request deadline
+	}
+
+	/**
+	 * Set the time given to the requests matched by the rule. The actions still running after this
+	 * time are cancelled
+	 * @param timeout The timeout, in milliseconds, 0 for no deadline
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Return the time given to the requests matched by the rule
+	 * @return The timeout, in milliseconds, 0 for no deadline
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Mark the requests matched by the rule as idempotent : handling them never modifies
+	 * anything, so identical requests may share the same response
+	 * @param idempotent True if the requests are idempotent, false otherwise
+	 */
+	public void setIdempotent(boolean idempotent) {
+		this.idempotent = idempotent;
+	}
+
+	/**
+	 * Test if the requests matched by the rule are idempotent
+	 * @return True if the requests are idempotent, false otherwise
+	 */
+	public boolean isIdempotent() {
+		return idempotent;
+	}
+
+	/**
+	 * Mark the responses of the requests matched by the rule as anonymous : they don't depend
+	 * on the user credentials, session or cookies
+	 * @param anonymous True if the responses are anonymous, false otherwise
+	 */
+	public void setAnonymous(boolean anonymous) {
+		this.anonymous = anonymous;
+	}
+
+	/**
+	 * Test if the responses of the requests matched by the rule are anonymous
+	 * @return True if the responses are anonymous, false otherwise
+	 */
+	public boolean isAnonymous() {
+		return anonymous;
 	}
 
 	/**
@@ -165,13 +325,17 @@ public class RewriteRule implements IRewriteRule {
 	 * @return True if the check is successful, false otherwise
 	 */
 	protected boolean checkMethod(IContext context) {
-		if(method == null || method.equals("*"))
+		if(methodMask == ANY_METHOD)
 			return true;
 		
-		String[] methods = method.split("\\|");
+		String requestMethod = context.getRequest().getMethod();
+		int bit = methodBit(requestMethod);
 		
-		for(String m : methods)
-			if(m.equals(context.getRequest().getMethod()))
+		if(bit != 0)
+			return (methodMask & bit) != 0;
+		
+		for(String m : otherMethods)
+			if(m.equals(requestMethod))
 				return true;
 		
 		return false;
@@ -181,6 +345,58 @@ public class RewriteRule implements IRewriteRule {
 	public String getActionClassname() {
 		return className;
 	}
-	
+
+	/**
+	 * Return the access method(s) of the rule, separated by "|"
+	 * @return The access method(s)
+	 */
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * Return the accepted methods which are not known methods
+	 * @return The other accepted methods
+	 */
+	String[] getOtherMethods() {
+		return otherMethods;
+	}
+
+	/**
+	 * Return the mask of the known methods accepted by the rule. Note that unknown
+	 * methods are not part of the mask
+	 * @return The method mask, or ANY_METHOD
+	 */
+	public int getMethodMask() {
+		return methodMask;
+	}
+
+	/**
+	 * Return the compiled URI regex of the rule
+	 * @return The URI pattern
+	 */
+	public Pattern getPattern() {
+		return regex;
+	}
+
+	/**
+	 * Test if the given method keeps its default implementation, i.e. is not overridden by
+	 * a subclass of the rule. Used by the rewriter to know which rules can be analyzed
+	 * @param name The method name
+	 * @param parameterTypes The method parameter types
+	 * @return True if the method is not overridden, false otherwise
+	 */
+	boolean isDefault(String name, Class<?>... parameterTypes) {
+		for(Class<?> c = getClass(); c != RewriteRule.class; c = c.getSuperclass()) {
+			try {
+				c.getDeclaredMethod(name, parameterTypes);
+				return false;
+			} catch (NoSuchMethodException e) {
+				// Not declared at this level
+			}
+		}
+
+		return true;
+	}
 	
 }
@@ -1,14 +1,21 @@
 package fr.vuzi.webframework.dispatcher;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import fr.vuzi.webframework.action.ActionRegistry;
 import fr.vuzi.webframework.action.IAction;
+import fr.vuzi.webframework.context.Capture;
 import fr.vuzi.webframework.context.IContext;
+import fr.vuzi.webframework.dispatcher.executor.NamedThreadFactory;
 
 /**
  * Default implement of the rewriter, using a list
@@ -19,20 +26,82 @@ import fr.vuzi.webframework.context.IContext;
 public class Rewriter implements IRewriter {
 
 	/**
-	 * List of rules
+	 * Background thread reordering the rules of every rewriter, so the requests never pay for a
+	 * reordering. Daemon thread, never shutdown
+	 */
+	private static final Executor reorderer = Executors.newSingleThreadExecutor(new NamedThreadFactory("jwf-reorder"));
+
+	/**
+	 * List of rules being built. Once locked, the modifications of the rules are only published
+	 * at the next lock
 	 */
 	private List<IRewriteRule> rules;
 
 	/**
-	 * Templates of all the actions loaded in the rewriter
+	 * Registry of the actions of the rules
+	 */
+	private ActionRegistry registry;
+	
+	/**
+	 * Published snapshot of the rules, built when the rewriter is locked, or null if never locked
 	 */
-	private Map<String, IAction> actionTemplates;
+	private volatile Snapshot snapshot;
+	
+	/**
+	 * Maximum number of cached route resolutions, 0 to disable the cache
+	 */
+	private int cacheSize;
+	
+	/**
+	 * Interval between two reorderings of the rules, in milliseconds. 0 to disable profiling
+	 */
+	private long reorderInterval;
+	
+	/**
+	 * Reordering task, submitted to the background thread when a request triggers a reordering
+	 */
+	private final Runnable reordering = new Runnable() {
+		@Override
+		public void run() {
+			reorder();
+		}
+	};
 	
 	/**
 	 * Rewriter constructor
 	 */
 	public Rewriter() {
+		this(new ActionRegistry(), 0);
+	}
+	
+	/**
+	 * Rewriter constructor
+	 * @param cacheSize Maximum number of cached route resolutions, 0 to disable the cache
+	 */
+	public Rewriter(int cacheSize) {
+		this(new ActionRegistry(), cacheSize);
+	}
+	
+	/**
+	 * Rewriter constructor
+	 * @param registry The actions registry, which may be shared with the dispatcher
+	 * @param cacheSize Maximum number of cached route resolutions, 0 to disable the cache
+	 */
+	public Rewriter(ActionRegistry registry, int cacheSize) {
 		init();
+		this.registry = registry;
+		this.cacheSize = cacheSize;
+	}
+	
+	/**
+	 * Enable the profiling of the rules: the hits of each rule are counted, and the rules are
+	 * periodically reordered to test the most used rules first. Only the rules that can never
+	 * match the same request are reordered, so the rule selected for a request never changes.
+	 * Applies from the next lock of the rewriter
+	 * @param reorderInterval Interval between two reorderings, in milliseconds. 0 to disable profiling
+	 */
+	public void setReorderInterval(long reorderInterval) {
+		this.reorderInterval = reorderInterval;
 	}
 	
 	/**
@@ -40,69 +109,302 @@ public class Rewriter implements IRewriter {
 	 */
 	public void init() {
 		rules = new ArrayList<IRewriteRule>();
-		actionTemplates = new HashMap<String, IAction>();
 	}
 	
 	@Override
 	public void addRule(IRewriteRule rule) {
 		rules.add(rule);
-		updateActionTemplates();
+		registry.register(rule.getActionClassname());
 	}
 
 	@Override
 	public void addRules(Collection<IRewriteRule> rules) {
-		rules.addAll(rules);
-		updateActionTemplates();
+		this.rules.addAll(rules);
+		
+		for(IRewriteRule rule : rules)
+			registry.register(rule.getActionClassname());
 	}
 
 	@Override
 	public void clearRules() {
 		rules.clear();
-		actionTemplates.clear();
 	}
 	
+	/**
+	 * Lock the rewriter, and publish the rules. The rules are compiled into a new snapshot, which
+	 * replaces the previous one in a single volatile write: the requests being rewritten finish
+	 * with the previous snapshot, and the next requests use the new one. The rules can then be
+	 * modified again, the modifications being published at the next lock
+	 */
 	@Override
 	public void lock() {
-		actionTemplates = (Map<String, IAction>) Collections.unmodifiableMap(actionTemplates);
-		rules = (List<IRewriteRule>) Collections.unmodifiableList(rules);
+		Snapshot previous = snapshot;
+		Snapshot next = new Snapshot();
+		
+		registry.lock(); // Actions first, as the new rules may use them
+		next.rules = Collections.unmodifiableList(new ArrayList<IRewriteRule>(rules));
+		
+		RouteCache cache = null;
+		
+		if(cacheSize > 0) // Fresh cache, sharing the statistics of the previous one
+			cache = previous != null && previous.declared.getCache() != null ? previous.declared.getCache().emptyCopy() : new RouteCache(cacheSize);
+		
+		next.declared = new RouteTable(next.rules, null, cache); // Compile the rules
+		next.table = next.declared;
+		
+		if(reorderInterval > 0) {
+			next.hits = new AtomicLongArray(next.rules.size());
+			next.analysis = new RouteAnalysis(next.rules);
+			next.nextReorder.set(System.currentTimeMillis() + reorderInterval);
+		}
+		
+		snapshot = next; // Atomic swap
 	}
 	
 	/**
-	 * Update the action template map, used to quickly retrieve classes instances by classname,
-	 * because Java's reflexivity is usually slower than a clone
+	 * Return the rules. Once locked, the published rules are returned
+	 * @return The rules
 	 */
-	private void updateActionTemplates() {
-		actionTemplates.clear();
-		
-		for(IRewriteRule rule : rules) { // For each rule
-			String actionClassname = rule.getActionClassname();
-			if(actionClassname != null && !actionTemplates.containsKey(actionClassname)) { // If the action class is not already in the templates
-				try {
-					// Add to the template list
-					actionTemplates.put(actionClassname, (IAction) Class.forName(actionClassname).newInstance());
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-			}
-		}
-	}
-
 	@Override
 	public Collection<IRewriteRule> getRules() {
-		return rules;
+		Snapshot snapshot = this.snapshot;
+		return snapshot != null ? snapshot.rules : rules;
+	}
+	
+	/**
+	 * Return the route resolution cache, used to read its statistics
+	 * @return The route cache, or null if disabled
+	 */
+	public RouteCache getCache() {
+		Snapshot snapshot = this.snapshot;
+		return snapshot != null ? snapshot.table.getCache() : null;
+	}
+	
+	/**
+	 * Return the hits of each rule, by declaration position
+	 * @return The hits of each rule, or null if profiling is disabled
+	 */
+	public long[] getHits() {
+		Snapshot snapshot = this.snapshot;
+		return snapshot != null ? snapshot.getHits() : null;
+	}
+	
+	/**
+	 * Return the overlap analysis report of the rules, with their hits if profiling is enabled
+	 * @return The report
+	 */
+	public String getAnalysisReport() {
+		Snapshot snapshot = this.snapshot;
+		
+		if(snapshot == null)
+			return new RouteAnalysis(new ArrayList<IRewriteRule>(rules)).report(null);
+		
+		RouteAnalysis analysis = snapshot.analysis;
+		
+		if(analysis == null)
+			snapshot.analysis = analysis = new RouteAnalysis(snapshot.rules);
+		
+		return analysis.report(snapshot.getHits());
+	}
+	
+	/**
+	 * Reorder the published rules using the hits counted since the last reordering, and swap the
+	 * compiled table if the order changed. Hits are then halved, so old hits weight less and less
+	 */
+	public synchronized void reorder() {
+		Snapshot snapshot = this.snapshot;
+		
+		if(snapshot == null || snapshot.hits == null)
+			return; // Profiling disabled or not locked
+		
+		long[] counts = snapshot.getHits();
+		int[] newOrder = snapshot.analysis.order(counts);
+		
+		for(int i = 0; i < counts.length; i++)
+			snapshot.hits.addAndGet(i, -counts[i] / 2);
+		
+		if(Arrays.equals(newOrder, snapshot.order) || (snapshot.order == null && isDeclarationOrder(newOrder)))
+			return; // Nothing changed
+		
+		List<IRewriteRule> reordered = new ArrayList<IRewriteRule>();
+		
+		for(int id : newOrder)
+			reordered.add(snapshot.rules.get(id));
+		
+		RouteCache cache = snapshot.declared.getCache();
+		snapshot.table = new RouteTable(reordered, newOrder, cache != null ? cache.emptyCopy() : null); // Atomic swap
+		snapshot.order = newOrder;
+	}
+	
+	/**
+	 * Test if the order is the declaration order
+	 * @param order The order
+	 * @return True if the order is the declaration order, false otherwise
+	 */
+	private static boolean isDeclarationOrder(int[] order) {
+		for(int i = 0; i < order.length; i++)
+			if(order[i] != i)
+				return false;
+		
+		return true;
 	}
 
 	@Override
 	public IAction rewrite(IContext context) {
-		for(IRewriteRule rule : rules) {
-			if(rule.matches(context)) {
-				rule.rewrite(context);
-				context.setActionClassname(rule.getActionClassname()); // Save classname
-				return actionTemplates.get(rule.getActionClassname()); // Return action
+		Snapshot snapshot = this.snapshot; // The whole rewriting uses the same snapshot
+		
+		if(snapshot == null) { // Not locked : test every rule
+			for(IRewriteRule rule : rules) {
+				if(rule.matches(context))
+					return rewrite(context, rule);
 			}
+			
+			return null;
 		}
 		
+		String method = context.getRequest().getMethod();
+		String uri = context.getRequest().getRequestURI();
+		RouteTable table = snapshot.table;
+		
+		if(table != snapshot.declared && !RouteAutomaton.scannable(uri))
+			table = snapshot.declared; // Reordering only applies to the URIs covered by the analysis
+		
+		RouteIndex index = table.getIndex(method); // Only the rules accepting the method
+		RouteCache cache = table.getCache();
+		
+		if(cache != null) {
+			RouteCache.Entry entry = cache.get(method, uri);
+			
+			if(entry != null) {
+				if(entry.isMiss())
+					return null;
+				
+				RewriteRule rule = (RewriteRule) index.getRule(entry.getRule());
+				rule.substitute(context, entry.getCaptures());
+				return rewrite(context, snapshot, rule, index.getId(entry.getRule()));
+			}
+		}
+		
+		// Only test the rules that may match the URI, in order
+		BitSet candidates = index.candidates(uri);
+		boolean cacheable = cache != null;
+		
+		for(int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+			IRewriteRule rule = index.getRule(i);
+			
+			if(cacheable && index.isCacheable(i)) {
+				RewriteRule rewriteRule = (RewriteRule) rule;
+				Capture[] captures = rewriteRule.match(context);
+				
+				if(captures != null) {
+					cache.put(method, uri, i, captures);
+					rewriteRule.substitute(context, captures);
+					return rewrite(context, snapshot, rule, index.getId(i));
+				}
+			} else {
+				cacheable = false; // The resolution now depends on the context
+				
+				if(rule.matches(context))
+					return rewrite(context, snapshot, rule, index.getId(i));
+			}
+		}
+		
+		if(cacheable)
+			cache.putMiss(method, uri);
+		
 		return null;
 	}
+	
+	/**
+	 * Apply the matched rule to the context, and count its hit when profiling
+	 * @param context The request context
+	 * @param snapshot The snapshot used to rewrite
+	 * @param rule The matched rule
+	 * @param id The matched rule identifier
+	 * @return The action template of the rule
+	 */
+	private IAction rewrite(IContext context, Snapshot snapshot, IRewriteRule rule, int id) {
+		if(snapshot.hits != null) {
+			snapshot.hits.incrementAndGet(id);
+			
+			long next = snapshot.nextReorder.get();
+			
+			if(System.currentTimeMillis() >= next && snapshot.nextReorder.compareAndSet(next, System.currentTimeMillis() + reorderInterval))
+				reorderer.execute(reordering); // Only triggered once, the reordering is done in background
+		}
+		
+		return rewrite(context, rule);
+	}
+	
+	/**
+	 * Apply the matched rule to the context
+	 * @param context The request context
+	 * @param rule The matched rule
+	 * @return The action template of the rule
+	 */
+	private IAction rewrite(IContext context, IRewriteRule rule) {
+		rule.rewrite(context);
+		context.setRewriteRule(rule); // Save rule
+		context.setActionClassname(rule.getActionClassname()); // Save classname
+		return registry.getTemplate(rule.getActionClassname()); // Return action
+	}
+	
+	/**
+	 * Published rules, with their compiled tables. The rules are never modified
+	 * once published, only the table may be replaced by a reordered table
+	 */
+	private static class Snapshot {
+		
+		/**
+		 * Rules, in the declaration order
+		 */
+		private List<IRewriteRule> rules;
+		
+		/**
+		 * Compiled table of the rules in the declaration order
+		 */
+		private RouteTable declared;
+		
+		/**
+		 * Compiled table of the rules, which may be a reordered table when profiling is enabled
+		 */
+		private volatile RouteTable table;
+		
+		/**
+		 * Hits of each rule, by declaration position, when profiling
+		 */
+		private AtomicLongArray hits;
+		
+		/**
+		 * Time of the next reordering
+		 */
+		private AtomicLong nextReorder = new AtomicLong();
+		
+		/**
+		 * Current order of the rules, by declaration position
+		 */
+		private int[] order;
+		
+		/**
+		 * Overlap analysis of the rules, used to reorder them
+		 */
+		private volatile RouteAnalysis analysis;
+		
+		/**
+		 * Return the hits of each rule, by declaration position
+		 * @return The hits of each rule, or null if profiling is disabled
+		 */
+		private long[] getHits() {
+			if(hits == null)
+				return null;
+			
+			long[] counts = new long[hits.length()];
+			
+			for(int i = 0; i < counts.length; i++)
+				counts[i] = hits.get(i);
+			
+			return counts;
+		}
+	}
 
 }
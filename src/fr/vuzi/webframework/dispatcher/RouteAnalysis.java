@@ -0,0 +1,207 @@
+package fr.vuzi.webframework.dispatcher;
+
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import fr.vuzi.webframework.context.IContext;
+
+/**
+ * Overlap analysis of the rewrite rules. Two rules overlap if a single request (method and URI)
+ * may be matched by both of them. The relative order of two overlapping rules decides which one
+ * wins, but rules that never overlap can be freely reordered without changing the rule selected
+ * for any request.
+ *
+ * The analysis only covers the URIs that the route automaton can scan: the rewriter keeps the
+ * declaration order for the other URIs. It can also be used offline, to produce a report of the
+ * rules and their overlaps
+ *
+ * @author Vuzi
+ *
+ */
+public class RouteAnalysis {
+
+	/**
+	 * Analyzed rules, in the declaration order
+	 */
+	private IRewriteRule[] rules;
+
+	/**
+	 * Overlapping rules of each rule
+	 */
+	private BitSet[] overlaps;
+
+	/**
+	 * Route analysis constructor. Note that the analysis may be long for large rules sets
+	 * @param rules The rules, in the declaration order
+	 */
+	public RouteAnalysis(List<IRewriteRule> rules) {
+		this.rules = rules.toArray(new IRewriteRule[rules.size()]);
+		this.overlaps = new BitSet[this.rules.length];
+
+		for(int i = 0; i < this.rules.length; i++)
+			overlaps[i] = new BitSet(this.rules.length);
+
+		for(int i = 0; i < this.rules.length; i++) {
+			for(int j = i + 1; j < this.rules.length; j++) {
+				if(overlaps(this.rules[i], this.rules[j])) {
+					overlaps[i].set(j);
+					overlaps[j].set(i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test if two rules may match the same request
+	 * @param i The first rule index
+	 * @param j The second rule index
+	 * @return True if the rules may match the same request, false if they never do
+	 */
+	public boolean overlaps(int i, int j) {
+		return overlaps[i].get(j);
+	}
+
+	/**
+	 * Return the order in which the rules should be tested to try the most used rules first,
+	 * while never changing the rule selected for any request. Each rule is placed as soon as
+	 * all the overlapping rules declared before it are placed, the most used rules first
+	 * @param hits The number of hits of each rule, by declaration position
+	 * @return The rules positions, in the order they should be tested
+	 */
+	public int[] order(final long[] hits) {
+		int[] order = new int[rules.length];
+		int[] waiting = new int[rules.length];
+		PriorityQueue<Integer> ready = new PriorityQueue<Integer>(Math.max(1, rules.length), new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int c = Long.compare(hits[b], hits[a]); // Most used first
+				return c != 0 ? c : Integer.compare(a, b); // Then declaration order
+			}
+		});
+
+		for(int i = 0; i < rules.length; i++) {
+			waiting[i] = overlaps[i].get(0, i).cardinality(); // Overlapping rules declared before
+
+			if(waiting[i] == 0)
+				ready.add(i);
+		}
+
+		for(int k = 0; k < rules.length; k++) {
+			int rule = ready.poll();
+			order[k] = rule;
+
+			for(int j = overlaps[rule].nextSetBit(rule + 1); j >= 0; j = overlaps[rule].nextSetBit(j + 1)) {
+				if(--waiting[j] == 0)
+					ready.add(j);
+			}
+		}
+
+		return order;
+	}
+
+	/**
+	 * Return a text report of the analysis, with the hits of each rule
+	 * @param hits The number of hits of each rule, by declaration position, or null
+	 * @return The report
+	 */
+	public String report(long[] hits) {
+		StringBuilder sb = new StringBuilder();
+		int[] order = order(hits != null ? hits : new long[rules.length]);
+
+		sb.append("Rewrite rules : ").append(rules.length).append("\n");
+
+		for(int i = 0; i < rules.length; i++) {
+			IRewriteRule rule = rules[i];
+
+			sb.append("#").append(i);
+			if(hits != null)
+				sb.append(" hits=").append(hits[i]);
+			sb.append(" ").append(describe(rule)).append(" -> ").append(rule.getActionClassname()).append("\n");
+
+			if(overlaps[i].isEmpty())
+				sb.append("\tindependent of every other rule\n");
+			else if(overlaps[i].cardinality() == rules.length - 1)
+				sb.append("\toverlaps every other rule\n");
+			else
+				sb.append("\toverlaps ").append(overlaps[i]).append("\n");
+		}
+
+		sb.append("Suggested order :");
+		for(int rule : order)
+			sb.append(" #").append(rule);
+		sb.append("\n");
+
+		return sb.toString();
+	}
+
+	/**
+	 * Describe a rule for the report
+	 * @param rule The rule
+	 * @return The rule description
+	 */
+	private static String describe(IRewriteRule rule) {
+		if(rule instanceof RewriteRule)
+			return ((RewriteRule) rule).getMethod() + " " + ((RewriteRule) rule).getPattern().pattern();
+		else
+			return rule.getClass().getName();
+	}
+
+	/**
+	 * Test if two rules may match the same request
+	 * @param a The first rule
+	 * @param b The second rule
+	 * @return True if the rules may match the same request, false if they never do
+	 */
+	private static boolean overlaps(IRewriteRule a, IRewriteRule b) {
+		if(!isAnalyzable(a) || !isAnalyzable(b))
+			return true;
+
+		RewriteRule ra = (RewriteRule) a;
+		RewriteRule rb = (RewriteRule) b;
+
+		if(!methodsOverlap(ra, rb))
+			return false;
+
+		String pa = RouteIndex.literalPrefix(ra);
+		String pb = RouteIndex.literalPrefix(rb);
+
+		if(pa != null && pb != null && !pa.startsWith(pb) && !pb.startsWith(pa))
+			return false; // Incompatible literal prefixes
+
+		return new RouteAutomaton(new IRewriteRule[] { a, b }).intersects(0, 1);
+	}
+
+	/**
+	 * Test if the rule can be analyzed, i.e. if its matching only depends on its regex and methods
+	 * @param rule The rule
+	 * @return True if the rule can be analyzed, false otherwise
+	 */
+	private static boolean isAnalyzable(IRewriteRule rule) {
+		return rule instanceof RewriteRule
+			&& ((RewriteRule) rule).isDefault("matches", IContext.class)
+			&& ((RewriteRule) rule).isDefault("checkMethod", IContext.class);
+	}
+
+	/**
+	 * Test if two rules accept at least one common method
+	 * @param a The first rule
+	 * @param b The second rule
+	 * @return True if a method is accepted by both rules, false otherwise
+	 */
+	private static boolean methodsOverlap(RewriteRule a, RewriteRule b) {
+		if(a.getMethodMask() == RewriteRule.ANY_METHOD || b.getMethodMask() == RewriteRule.ANY_METHOD)
+			return true;
+
+		if((a.getMethodMask() & b.getMethodMask()) != 0)
+			return true;
+
+		for(String ma : a.getOtherMethods())
+			for(String mb : b.getOtherMethods())
+				if(ma.equals(mb))
+					return true;
+
+		return false;
+	}
+}
@@ -0,0 +1,1004 @@
+package fr.vuzi.webframework.dispatcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
+
+import fr.vuzi.webframework.context.IContext;
+
+/**
+ * Combined automaton of the rules regex. Every rule regex using only regular constructs (literals,
+ * classes, groups, alternations, quantifiers and leading/trailing anchors) is compiled into a single
+ * NFA, which is lazily converted into a DFA while scanning. A single pass on the URI then gives
+ * every combined rule whose regex would be found in the URI, so the cost of the matching depends on
+ * the URI length rather than on the number of rules.
+ *
+ * Rules using other regex features (back references, lookarounds, flags, etc...) are not combined,
+ * and must be tested individually
+ *
+ * @author Vuzi
+ *
+ */
+public class RouteAutomaton {
+
+	/**
+	 * Maximum number of cached DFA states. Once reached, new states are still computed
+	 * but not cached anymore
+	 */
+	private static final int MAX_CACHED_STATES = 4096;
+
+	/**
+	 * Maximum number of states explored when searching a common URI for two rules
+	 */
+	private static final int MAX_EXPLORED_STATES = 20000;
+
+	/**
+	 * Maximum repetition bound accepted in a combined regex
+	 */
+	private static final int MAX_REPETITION = 32;
+
+	/**
+	 * NFA states
+	 */
+	private List<NState> states = new ArrayList<NState>();
+
+	/**
+	 * Rule accepted by each NFA state, or -1
+	 */
+	private int[] acceptedRule;
+
+	/**
+	 * Rules whose regex ends with a '$' anchor
+	 */
+	private BitSet endAnchored = new BitSet();
+
+	/**
+	 * Combined rules
+	 */
+	private BitSet combined = new BitSet();
+
+	/**
+	 * Start states of the unanchored rules, injected at every position
+	 */
+	private BitSet unanchoredStart = new BitSet();
+
+	/**
+	 * Start states of all the rules
+	 */
+	private BitSet start = new BitSet();
+
+	/**
+	 * Characters classes boundaries
+	 */
+	private int[] boundaries;
+
+	/**
+	 * Character class of the ASCII characters
+	 */
+	private int[] asciiClasses = new int[128];
+
+	/**
+	 * Character classes containing characters of scannable URIs
+	 */
+	private BitSet scannableClasses;
+
+	/**
+	 * Initial DFA state
+	 */
+	private DState initial;
+
+	/**
+	 * Cached DFA states
+	 */
+	private ConcurrentMap<BitSet, DState> cache = new ConcurrentHashMap<BitSet, DState>();
+
+	/**
+	 * Compile the combined automaton of the given rules
+	 * @param rules The rules, in the rewriter order
+	 */
+	public RouteAutomaton(IRewriteRule[] rules) {
+		List<int[]> ranges = new ArrayList<int[]>();
+
+		for(int i = 0; i < rules.length; i++) {
+			Pattern pattern = combinablePattern(rules[i]);
+
+			if(pattern == null)
+				continue;
+
+			Parser parser = new Parser(pattern.pattern());
+			Node node = parser.parse();
+
+			if(node == null)
+				continue; // Unsupported regex
+
+			int first = newState();
+			int last = node.build(this, first);
+
+			states.get(last).rule = i;
+			start.set(first);
+			if(!parser.anchoredStart)
+				unanchoredStart.set(first);
+			if(parser.anchoredEnd)
+				endAnchored.set(i);
+			combined.set(i);
+		}
+
+		for(NState state : states)
+			ranges.addAll(state.ranges);
+
+		acceptedRule = new int[states.size()];
+		for(int i = 0; i < acceptedRule.length; i++)
+			acceptedRule[i] = states.get(i).rule;
+
+		initClasses(ranges);
+		unanchoredStart = closure(unanchoredStart);
+		initial = state(closure(start));
+	}
+
+	/**
+	 * Return the rules combined in the automaton
+	 * @return The combined rules indexes
+	 */
+	public BitSet getCombined() {
+		return (BitSet) combined.clone();
+	}
+
+	/**
+	 * Test if the given rule is combined in the automaton
+	 * @param rule The rule index
+	 * @return True if the rule is combined, false otherwise
+	 */
+	public boolean isCombined(int rule) {
+		return combined.get(rule);
+	}
+
+	/**
+	 * Scan the URI once, and return all the combined rules whose regex is found in the URI
+	 * @param uri The request URI
+	 * @return The matching rules indexes, or null if the URI can't be scanned by the automaton
+	 */
+	public BitSet matches(String uri) {
+		if(!scannable(uri))
+			return null;
+
+		BitSet matched = new BitSet();
+		DState state = initial;
+
+		matched.or(state.accepts);
+
+		for(int i = 0; i < uri.length(); i++) {
+			state = next(state, classOf(uri.charAt(i)));
+
+			if(!state.accepts.isEmpty())
+				matched.or(state.accepts);
+		}
+
+		matched.or(state.endAccepts);
+		return matched;
+	}
+
+	/**
+	 * Search for a scannable URI matched by both the given combined rules. The search explores the
+	 * DFA, remembering for each state which of the two rules have already been found
+	 * @param a The first rule index
+	 * @param b The second rule index
+	 * @return False if no scannable URI can match both rules, true otherwise (or if the search was too long)
+	 */
+	public boolean intersects(int a, int b) {
+		if(!combined.get(a) || !combined.get(b))
+			return true;
+
+		List<DState> pending = new ArrayList<DState>();
+		List<Integer> pendingFound = new ArrayList<Integer>();
+		Map<DState, Integer> visited = new IdentityHashMap<DState, Integer>();
+
+		pending.add(initial);
+		pendingFound.add(0);
+
+		for(int explored = 0; !pending.isEmpty(); explored++) {
+			if(explored > MAX_EXPLORED_STATES)
+				return true; // Too complex : assume both rules may match
+
+			DState state = pending.remove(pending.size() - 1);
+			int found = pendingFound.remove(pendingFound.size() - 1) | found(state.accepts, a, b);
+
+			if(found == 3 || (found | found(state.endAccepts, a, b)) == 3)
+				return true; // Both rules found, here or at the end of the URI
+
+			Integer seen = visited.get(state);
+
+			if(seen != null && (seen | found) == seen)
+				continue; // Already explored with at least the same rules found
+
+			visited.put(state, seen == null ? found : seen | found);
+
+			for(int c = 0; c < boundaries.length; c++) {
+				if(!scannableClasses.get(c))
+					continue;
+
+				pending.add(next(state, c));
+				pendingFound.add(found);
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Return the found flags of the two rules in an accepted rules set
+	 * @param accepts The accepted rules
+	 * @param a The first rule index
+	 * @param b The second rule index
+	 * @return The found flags : 1 for the first rule, 2 for the second rule
+	 */
+	private static int found(BitSet accepts, int a, int b) {
+		return (accepts.get(a) ? 1 : 0) | (accepts.get(b) ? 2 : 0);
+	}
+
+	/**
+	 * Test if the given character class contains characters that can be part of a scannable URI
+	 * @param c The character class
+	 * @return True if the class contains scannable characters, false otherwise
+	 */
+	private boolean isScannableClass(int c) {
+		int last = c + 1 < boundaries.length ? boundaries[c + 1] - 1 : Character.MAX_VALUE;
+
+		for(int ch = boundaries[c]; ch <= last; ch++) {
+			if(!isSpecial((char) ch))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Test if the URI can be scanned by the automaton. Line terminators and surrogates are
+	 * handled differently by Java regex, and are left to the individual rules
+	 * @param uri The URI
+	 * @return True if the URI can be scanned, false otherwise
+	 */
+	public static boolean scannable(String uri) {
+		for(int i = 0; i < uri.length(); i++) {
+			if(isSpecial(uri.charAt(i)))
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Test if the character is a line terminator or a surrogate
+	 * @param c The character
+	 * @return True if the character is special, false otherwise
+	 */
+	private static boolean isSpecial(char c) {
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029' || Character.isSurrogate(c);
+	}
+
+	/**
+	 * Return the pattern of the rule if the rule can be combined, or null
+	 * @param rule The rule
+	 * @return The rule pattern, or null
+	 */
+	private static Pattern combinablePattern(IRewriteRule rule) {
+		if(!(rule instanceof RewriteRule))
+			return null;
+
+		RewriteRule rewriteRule = (RewriteRule) rule;
+
+		if(!rewriteRule.isDefault("matches", IContext.class) || rewriteRule.getPattern().flags() != 0)
+			return null;
+
+		return rewriteRule.getPattern();
+	}
+
+	// ============ Lazy DFA ============
+
+	/**
+	 * Return the next DFA state, computing it if needed
+	 * @param state The current state
+	 * @param c The character class
+	 * @return The next state
+	 */
+	private DState next(DState state, int c) {
+		DState next = state.next.get(c);
+
+		if(next != null)
+			return next;
+
+		BitSet targets = new BitSet(states.size());
+		int representative = boundaries[c];
+
+		for(int s = state.nfa.nextSetBit(0); s >= 0; s = state.nfa.nextSetBit(s + 1)) {
+			NState nstate = states.get(s);
+
+			for(int i = 0; i < nstate.ranges.size(); i++) {
+				int[] range = nstate.ranges.get(i);
+
+				if(representative >= range[0] && representative <= range[1])
+					targets.set(nstate.targets.get(i));
+			}
+		}
+
+		targets = closure(targets);
+		targets.or(unanchoredStart);
+
+		next = state(targets);
+
+		if(next.cached)
+			state.next.set(c, next);
+
+		return next;
+	}
+
+	/**
+	 * Return the DFA state of the given NFA states set
+	 * @param nfa The NFA states set, epsilon closed
+	 * @return The DFA state
+	 */
+	private DState state(BitSet nfa) {
+		DState state = cache.get(nfa);
+
+		if(state != null)
+			return state;
+
+		state = new DState(nfa, boundaries.length);
+
+		for(int s = nfa.nextSetBit(0); s >= 0; s = nfa.nextSetBit(s + 1)) {
+			int rule = acceptedRule[s];
+
+			if(rule < 0)
+				continue;
+			else if(endAnchored.get(rule))
+				state.endAccepts.set(rule);
+			else
+				state.accepts.set(rule);
+		}
+
+		if(cache.size() < MAX_CACHED_STATES) {
+			DState previous = cache.putIfAbsent(nfa, state);
+
+			if(previous != null)
+				return previous;
+
+			state.cached = true;
+		}
+
+		return state;
+	}
+
+	/**
+	 * Compute the epsilon closure of a NFA states set
+	 * @param set The NFA states set
+	 * @return The epsilon closure
+	 */
+	private BitSet closure(BitSet set) {
+		BitSet closure = (BitSet) set.clone();
+		int[] stack = new int[states.size()];
+		int size = 0;
+
+		for(int s = set.nextSetBit(0); s >= 0; s = set.nextSetBit(s + 1))
+			stack[size++] = s;
+
+		while(size > 0) {
+			for(int e : states.get(stack[--size]).epsilons) {
+				if(!closure.get(e)) {
+					closure.set(e);
+					stack[size++] = e;
+				}
+			}
+		}
+
+		return closure;
+	}
+
+	/**
+	 * Initialize the character classes, i.e. the partition of the characters that are always
+	 * handled the same way by every transition
+	 * @param ranges All the transitions ranges
+	 */
+	private void initClasses(List<int[]> ranges) {
+		BitSet cuts = new BitSet(Character.MAX_VALUE + 2);
+
+		cuts.set(0);
+		for(int[] range : ranges) {
+			cuts.set(range[0]);
+			cuts.set(range[1] + 1);
+		}
+		cuts.clear(Character.MAX_VALUE + 1);
+
+		boundaries = new int[cuts.cardinality()];
+		for(int i = 0, c = cuts.nextSetBit(0); c >= 0; i++, c = cuts.nextSetBit(c + 1))
+			boundaries[i] = c;
+
+		for(int c = 0; c < asciiClasses.length; c++)
+			asciiClasses[c] = classOf(boundaries, c);
+
+		scannableClasses = new BitSet(boundaries.length);
+		for(int c = 0; c < boundaries.length; c++)
+			if(isScannableClass(c))
+				scannableClasses.set(c);
+	}
+
+	/**
+	 * Return the class of a character
+	 * @param c The character
+	 * @return The class index
+	 */
+	private int classOf(char c) {
+		return c < asciiClasses.length ? asciiClasses[c] : classOf(boundaries, c);
+	}
+
+	/**
+	 * Return the class of a character using the boundaries
+	 * @param boundaries The classes boundaries
+	 * @param c The character
+	 * @return The class index
+	 */
+	private static int classOf(int[] boundaries, int c) {
+		int i = Arrays.binarySearch(boundaries, c);
+		return i >= 0 ? i : -i - 2;
+	}
+
+	/**
+	 * Create a new NFA state
+	 * @return The state index
+	 */
+	private int newState() {
+		states.add(new NState());
+		return states.size() - 1;
+	}
+
+	/**
+	 * NFA state
+	 */
+	private static class NState {
+
+		/**
+		 * Characters transitions ranges (inclusive)
+		 */
+		private List<int[]> ranges = new ArrayList<int[]>(1);
+
+		/**
+		 * Characters transitions targets
+		 */
+		private List<Integer> targets = new ArrayList<Integer>(1);
+
+		/**
+		 * Epsilon transitions
+		 */
+		private int[] epsilons = new int[0];
+
+		/**
+		 * Rule accepted by the state, or -1
+		 */
+		private int rule = -1;
+
+		private void epsilon(int target) {
+			epsilons = Arrays.copyOf(epsilons, epsilons.length + 1);
+			epsilons[epsilons.length - 1] = target;
+		}
+	}
+
+	/**
+	 * DFA state
+	 */
+	private static class DState {
+
+		/**
+		 * NFA states set
+		 */
+		private final BitSet nfa;
+
+		/**
+		 * Rules found when reaching this state
+		 */
+		private final BitSet accepts = new BitSet();
+
+		/**
+		 * Rules found when reaching this state at the end of the URI
+		 */
+		private final BitSet endAccepts = new BitSet();
+
+		/**
+		 * Transitions, by character class
+		 */
+		private final AtomicReferenceArray<DState> next;
+
+		/**
+		 * If the state is cached
+		 */
+		private boolean cached;
+
+		private DState(BitSet nfa, int classes) {
+			this.nfa = nfa;
+			this.next = new AtomicReferenceArray<DState>(classes);
+		}
+	}
+
+	// ============ Regex parsing ============
+
+	/**
+	 * Regex syntax node
+	 */
+	private static abstract class Node {
+
+		/**
+		 * Build the NFA of the node
+		 * @param automaton The automaton
+		 * @param from The state to start from
+		 * @return The state reached at the end of the node
+		 */
+		abstract int build(RouteAutomaton automaton, int from);
+	}
+
+	/**
+	 * Characters set node
+	 */
+	private static class Chars extends Node {
+
+		private List<int[]> ranges;
+
+		private Chars(List<int[]> ranges) {
+			this.ranges = ranges;
+		}
+
+		@Override
+		int build(RouteAutomaton automaton, int from) {
+			int to = automaton.newState();
+			NState state = automaton.states.get(from);
+
+			for(int[] range : ranges) {
+				state.ranges.add(range);
+				state.targets.add(to);
+			}
+
+			return to;
+		}
+	}
+
+	/**
+	 * Sequence node
+	 */
+	private static class Sequence extends Node {
+
+		private List<Node> nodes = new ArrayList<Node>();
+
+		@Override
+		int build(RouteAutomaton automaton, int from) {
+			for(Node node : nodes)
+				from = node.build(automaton, from);
+			return from;
+		}
+	}
+
+	/**
+	 * Alternation node
+	 */
+	private static class Alternation extends Node {
+
+		private List<Node> nodes = new ArrayList<Node>();
+
+		@Override
+		int build(RouteAutomaton automaton, int from) {
+			int to = automaton.newState();
+
+			for(Node node : nodes) {
+				int start = automaton.newState();
+				automaton.states.get(from).epsilon(start);
+				automaton.states.get(node.build(automaton, start)).epsilon(to);
+			}
+
+			return to;
+		}
+	}
+
+	/**
+	 * Repetition node
+	 */
+	private static class Repetition extends Node {
+
+		private Node node;
+		private int min;
+		private int max; // -1 : unbounded
+
+		private Repetition(Node node, int min, int max) {
+			this.node = node;
+			this.min = min;
+			this.max = max;
+		}
+
+		@Override
+		int build(RouteAutomaton automaton, int from) {
+			for(int i = 0; i < min; i++)
+				from = node.build(automaton, from);
+
+			if(max < 0) {
+				int loop = automaton.newState();
+				automaton.states.get(from).epsilon(loop);
+				automaton.states.get(node.build(automaton, loop)).epsilon(loop);
+				return loop;
+			}
+
+			int to = automaton.newState();
+			automaton.states.get(from).epsilon(to);
+
+			for(int i = min; i < max; i++) {
+				from = node.build(automaton, from);
+				automaton.states.get(from).epsilon(to);
+			}
+
+			return to;
+		}
+	}
+
+	/**
+	 * Parser of the regular subset of the Java regex syntax
+	 */
+	private static class Parser {
+
+		private String regex;
+		private int pos;
+		private boolean anchoredStart;
+		private boolean anchoredEnd;
+		private boolean unsupported;
+
+		private Parser(String regex) {
+			this.regex = regex;
+		}
+
+		/**
+		 * Parse the regex
+		 * @return The root node, or null if the regex uses unsupported features
+		 */
+		private Node parse() {
+			for(int i = 0; i < regex.length(); i++)
+				if(Character.isSurrogate(regex.charAt(i)))
+					return null;
+
+			int end = regex.length();
+
+			if(regex.startsWith("^")) {
+				anchoredStart = true;
+				pos = 1;
+			}
+
+			if(end > pos && regex.charAt(end - 1) == '$' && !escaped(end - 1)) {
+				anchoredEnd = true;
+				end--;
+			}
+
+			regex = regex.substring(0, end);
+
+			Node node = parseAlternation();
+
+			if(unsupported || pos != regex.length())
+				return null;
+
+			if((anchoredStart || anchoredEnd) && node instanceof Alternation)
+				return null; // Anchors would only apply to the first and last alternatives
+
+			return node;
+		}
+
+		private boolean escaped(int index) {
+			int count = 0;
+			while(index - count - 1 >= 0 && regex.charAt(index - count - 1) == '\\')
+				count++;
+			return count % 2 == 1;
+		}
+
+		private Node parseAlternation() {
+			Node first = parseSequence();
+
+			if(pos >= regex.length() || regex.charAt(pos) != '|')
+				return first;
+
+			Alternation alternation = new Alternation();
+			alternation.nodes.add(first);
+
+			while(pos < regex.length() && regex.charAt(pos) == '|') {
+				pos++;
+				alternation.nodes.add(parseSequence());
+			}
+
+			return alternation;
+		}
+
+		private Node parseSequence() {
+			Sequence sequence = new Sequence();
+
+			while(pos < regex.length() && !unsupported) {
+				char c = regex.charAt(pos);
+
+				if(c == '|' || c == ')')
+					break;
+
+				Node atom = parseAtom();
+
+				if(atom == null)
+					break;
+
+				sequence.nodes.add(parseQuantifier(atom));
+			}
+
+			return sequence;
+		}
+
+		private Node parseAtom() {
+			char c = regex.charAt(pos++);
+
+			switch(c) {
+			case '(':
+				if(regex.startsWith("?:", pos))
+					pos += 2;
+				else if(regex.startsWith("?", pos))
+					return fail(); // Lookaround, flags, named groups...
+
+				Node group = parseAlternation();
+
+				if(pos >= regex.length() || regex.charAt(pos) != ')')
+					return fail();
+
+				pos++;
+				return group;
+			case '[':
+				return parseClass();
+			case '.':
+				return new Chars(complement(ranges('\n', '\n', '\r', '\r', '\u0085', '\u0085', '\u2028', '\u2029')));
+			case '\\': {
+				List<int[]> ranges = parseEscape();
+				return ranges == null ? fail() : new Chars(ranges);
+			}
+			case '^':
+			case '$':
+			case '*':
+			case '+':
+			case '?':
+			case '{':
+			case ')':
+				return fail();
+			default:
+				return new Chars(ranges(c, c));
+			}
+		}
+
+		private Node parseQuantifier(Node atom) {
+			if(pos >= regex.length())
+				return atom;
+
+			int min, max;
+			char c = regex.charAt(pos);
+
+			switch(c) {
+			case '*':
+				min = 0;
+				max = -1;
+				pos++;
+				break;
+			case '+':
+				min = 1;
+				max = -1;
+				pos++;
+				break;
+			case '?':
+				min = 0;
+				max = 1;
+				pos++;
+				break;
+			case '{': {
+				int close = regex.indexOf('}', pos);
+
+				if(close < 0)
+					return fail();
+
+				String[] bounds = regex.substring(pos + 1, close).split(",", -1);
+
+				try {
+					min = Integer.parseInt(bounds[0]);
+					max = bounds.length == 1 ? min : bounds[1].isEmpty() ? -1 : Integer.parseInt(bounds[1]);
+				} catch (NumberFormatException e) {
+					return fail();
+				}
+
+				if(bounds.length > 2 || min > MAX_REPETITION || max > MAX_REPETITION || (max >= 0 && max < min))
+					return fail();
+
+				pos = close + 1;
+				break;
+			}
+			default:
+				return atom;
+			}
+
+			if(pos < regex.length()) {
+				if(regex.charAt(pos) == '?')
+					pos++; // Lazy : same matching language
+				else if(regex.charAt(pos) == '+')
+					return fail(); // Possessive : different matching language
+			}
+
+			if(pos < regex.length() && "*+?{".indexOf(regex.charAt(pos)) >= 0)
+				return fail();
+
+			return new Repetition(atom, min, max);
+		}
+
+		private Node parseClass() {
+			boolean negated = false;
+			List<int[]> ranges = new ArrayList<int[]>();
+
+			if(pos < regex.length() && regex.charAt(pos) == '^') {
+				negated = true;
+				pos++;
+			}
+
+			boolean first = true;
+
+			while(pos < regex.length()) {
+				char c = regex.charAt(pos);
+
+				if(c == ']' && !first) {
+					pos++;
+					return new Chars(negated ? complement(ranges) : ranges);
+				} else if(c == '[' || regex.startsWith("&&", pos)) {
+					return fail(); // Union and intersection
+				}
+
+				first = false;
+				pos++;
+
+				int lo;
+
+				if(c == '\\') {
+					List<int[]> escape = parseEscape();
+
+					if(escape == null)
+						return fail();
+					if(escape.size() != 1 || escape.get(0)[0] != escape.get(0)[1]) {
+						ranges.addAll(escape); // Predefined class
+						continue;
+					}
+
+					lo = escape.get(0)[0];
+				} else
+					lo = c;
+
+				if(pos + 1 < regex.length() && regex.charAt(pos) == '-' && regex.charAt(pos + 1) != ']') {
+					pos++;
+
+					int hi;
+					char h = regex.charAt(pos++);
+
+					if(h == '[')
+						return fail();
+					else if(h == '\\') {
+						List<int[]> escape = parseEscape();
+
+						if(escape == null || escape.size() != 1 || escape.get(0)[0] != escape.get(0)[1])
+							return fail();
+
+						hi = escape.get(0)[0];
+					} else
+						hi = h;
+
+					if(hi < lo)
+						return fail();
+
+					ranges.add(new int[] { lo, hi });
+				} else
+					ranges.add(new int[] { lo, lo });
+			}
+
+			return fail(); // Unclosed class
+		}
+
+		/**
+		 * Parse an escape sequence, the backslash being already read
+		 * @return The escaped characters ranges, or null if not supported
+		 */
+		private List<int[]> parseEscape() {
+			if(pos >= regex.length())
+				return null;
+
+			char c = regex.charAt(pos++);
+
+			switch(c) {
+			case 'd':
+				return ranges('0', '9');
+			case 'D':
+				return complement(ranges('0', '9'));
+			case 'w':
+				return ranges('0', '9', 'A', 'Z', '_', '_', 'a', 'z');
+			case 'W':
+				return complement(ranges('0', '9', 'A', 'Z', '_', '_', 'a', 'z'));
+			case 's':
+				return ranges('\t', '\r', ' ', ' ');
+			case 'S':
+				return complement(ranges('\t', '\r', ' ', ' '));
+			case 't':
+				return ranges('\t', '\t');
+			case 'n':
+				return ranges('\n', '\n');
+			case 'r':
+				return ranges('\r', '\r');
+			case 'f':
+				return ranges('\f', '\f');
+			case 'a':
+				return ranges('\u0007', '\u0007');
+			case 'e':
+				return ranges('\u001B', '\u001B');
+			case 'x':
+			case 'u': {
+				int length = c == 'x' ? 2 : 4;
+
+				if(pos + length > regex.length())
+					return null;
+
+				try {
+					int value = Integer.parseInt(regex.substring(pos, pos + length), 16);
+					pos += length;
+					return Character.isSurrogate((char) value) ? null : ranges(value, value);
+				} catch (NumberFormatException e) {
+					return null;
+				}
+			}
+			default:
+				if(Character.isLetterOrDigit(c))
+					return null; // Back references, boundaries, quotations, properties...
+				return ranges(c, c);
+			}
+		}
+
+		private Node fail() {
+			unsupported = true;
+			return null;
+		}
+
+		/**
+		 * Create ranges from bounds pairs
+		 * @param bounds The inclusive bounds, by pairs
+		 * @return The ranges
+		 */
+		private static List<int[]> ranges(int... bounds) {
+			List<int[]> ranges = new ArrayList<int[]>();
+			for(int i = 0; i < bounds.length; i += 2)
+				ranges.add(new int[] { bounds[i], bounds[i + 1] });
+			return ranges;
+		}
+
+		/**
+		 * Return the complement of the given ranges
+		 * @param ranges The ranges
+		 * @return The complement ranges
+		 */
+		private static List<int[]> complement(List<int[]> ranges) {
+			BitSet set = new BitSet(Character.MAX_VALUE + 1);
+			List<int[]> complement = new ArrayList<int[]>();
+
+			for(int[] range : ranges)
+				set.set(range[0], range[1] + 1);
+
+			int lo = set.nextClearBit(0);
+
+			while(lo <= Character.MAX_VALUE) {
+				int hi = set.nextSetBit(lo);
+
+				if(hi < 0)
+					hi = Character.MAX_VALUE + 1;
+
+				complement.add(new int[] { lo, hi - 1 });
+				lo = set.nextClearBit(hi);
+			}
+
+			return complement;
+		}
+	}
+}
@@ -0,0 +1,279 @@
+package fr.vuzi.webframework.dispatcher;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.vuzi.webframework.context.Capture;
+
+/**
+ * Bounded route resolution cache, keyed on the HTTP method and the request URI. Both the resolved
+ * rules, with their captures, and the misses (404) are stored, so scanner noise doesn't go through
+ * all the rules again.
+ *
+ * The cache is split into segments, each segment being a LRU map protected by its own lock
+ *
+ * @author Vuzi
+ *
+ */
+public class RouteCache {
+
+	/**
+	 * Number of segments
+	 */
+	private static final int SEGMENTS = 16;
+
+	/**
+	 * Longest URI cached, to avoid filling the cache with garbage
+	 */
+	private static final int MAX_URI_LENGTH = 1024;
+
+	/**
+	 * Cached miss
+	 */
+	public static final Entry MISS = new Entry(-1, null);
+
+	/**
+	 * Maximum number of cached routes
+	 */
+	private int maximumSize;
+
+	/**
+	 * Segments
+	 */
+	private Segment[] segments;
+
+	/**
+	 * Hit counter
+	 */
+	private AtomicLong hits = new AtomicLong();
+
+	/**
+	 * Miss counter
+	 */
+	private AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Eviction counter
+	 */
+	private AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Route cache constructor
+	 * @param maximumSize Maximum number of cached routes
+	 */
+	public RouteCache(int maximumSize) {
+		this.maximumSize = maximumSize;
+		segments = new Segment[SEGMENTS];
+
+		for(int i = 0; i < SEGMENTS; i++)
+			segments[i] = new Segment(Math.max(1, maximumSize / SEGMENTS));
+	}
+
+	/**
+	 * Return a new empty cache of the same size, sharing the statistics of this cache. Used
+	 * when the cached resolutions are no longer valid, i.e. when the route table changes
+	 * @return The new empty cache
+	 */
+	public RouteCache emptyCopy() {
+		RouteCache copy = new RouteCache(maximumSize);
+
+		copy.hits = hits;
+		copy.misses = misses;
+		copy.evictions = evictions;
+
+		return copy;
+	}
+
+	/**
+	 * Return the cached resolution for the given request
+	 * @param method The HTTP method
+	 * @param uri The request URI
+	 * @return The cached entry, or null if not cached
+	 */
+	public Entry get(String method, String uri) {
+		String key = key(method, uri);
+		Segment segment = segment(key);
+		Entry entry;
+
+		synchronized (segment) {
+			entry = segment.get(key);
+		}
+
+		if(entry == null)
+			misses.incrementAndGet();
+		else
+			hits.incrementAndGet();
+
+		return entry;
+	}
+
+	/**
+	 * Store a resolved rule
+	 * @param method The HTTP method
+	 * @param uri The request URI
+	 * @param rule The rule index
+	 * @param captures The substitutions captures. Shared between the requests, they are only
+	 *                 decoded once
+	 */
+	public void put(String method, String uri, int rule, Capture[] captures) {
+		put(method, uri, new Entry(rule, captures));
+	}
+
+	/**
+	 * Store a miss
+	 * @param method The HTTP method
+	 * @param uri The request URI
+	 */
+	public void putMiss(String method, String uri) {
+		put(method, uri, MISS);
+	}
+
+	/**
+	 * Store an entry
+	 * @param method The HTTP method
+	 * @param uri The request URI
+	 * @param entry The entry
+	 */
+	private void put(String method, String uri, Entry entry) {
+		if(uri.length() > MAX_URI_LENGTH)
+			return;
+
+		String key = key(method, uri);
+		Segment segment = segment(key);
+
+		synchronized (segment) {
+			segment.put(key, entry);
+		}
+	}
+
+	/**
+	 * Remove all the cached routes
+	 */
+	public void clear() {
+		for(Segment segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	/**
+	 * Return the number of cached routes
+	 * @return The number of cached routes
+	 */
+	public int size() {
+		int size = 0;
+
+		for(Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+
+		return size;
+	}
+
+	/**
+	 * Return the number of lookups served by the cache
+	 * @return The hit count
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Return the number of lookups not served by the cache
+	 * @return The miss count
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Return the number of routes evicted from the cache
+	 * @return The eviction count
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	private static String key(String method, String uri) {
+		return method + ' ' + uri;
+	}
+
+	private Segment segment(String key) {
+		int h = key.hashCode();
+		return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * Cached route resolution
+	 */
+	public static class Entry {
+
+		/**
+		 * Index of the resolved rule, or -1 for a miss
+		 */
+		private final int rule;
+
+		/**
+		 * Substitutions captures
+		 */
+		private final Capture[] captures;
+
+		private Entry(int rule, Capture[] captures) {
+			this.rule = rule;
+			this.captures = captures;
+		}
+
+		/**
+		 * Return the index of the resolved rule
+		 * @return The rule index, or -1 for a miss
+		 */
+		public int getRule() {
+			return rule;
+		}
+
+		/**
+		 * Return the substitutions captures
+		 * @return The substitutions captures
+		 */
+		public Capture[] getCaptures() {
+			return captures;
+		}
+
+		/**
+		 * Test if the entry is a miss
+		 * @return True if no rule matched, false otherwise
+		 */
+		public boolean isMiss() {
+			return rule < 0;
+		}
+	}
+
+	/**
+	 * LRU segment
+	 */
+	private class Segment extends LinkedHashMap<String, Entry> {
+
+		private static final long serialVersionUID = 1L;
+
+		private int capacity;
+
+		private Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			if(size() > capacity) {
+				evictions.incrementAndGet();
+				return true;
+			}
+
+			return false;
+		}
+	}
+}
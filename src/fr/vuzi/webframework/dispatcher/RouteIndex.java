@@ -0,0 +1,382 @@
+package fr.vuzi.webframework.dispatcher;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import fr.vuzi.webframework.context.IContext;
+
+/**
+ * Compiled route index, built by the rewriter when it is locked. The literal prefix of every
+ * anchored rule regex is stored in a character trie, so for a given URI only the rules whose
+ * prefix is also a prefix of the URI (and the rules without any usable prefix) are tested.
+ *
+ * Rules whose regex can be combined are also compiled in a single automaton, and are only
+ * returned if the automaton found their regex in the URI. The candidates are always returned in
+ * the rules order, which keeps the first-match semantics of the rewriter untouched
+ *
+ * @author Vuzi
+ *
+ */
+public class RouteIndex {
+
+	/**
+	 * Indexed rules, in the rewriter order
+	 */
+	private IRewriteRule[] rules;
+
+	/**
+	 * Identifiers of the rules, i.e. their position in the declaration order
+	 */
+	private int[] ids;
+
+	/**
+	 * Root of the prefix trie
+	 */
+	private Node root;
+
+	/**
+	 * Combined automaton of the rules regex
+	 */
+	private RouteAutomaton automaton;
+
+	/**
+	 * Rules combined in the automaton
+	 */
+	private BitSet combined;
+
+	/**
+	 * Rules whose resolution only depends on the method and the URI
+	 */
+	private BitSet cacheable;
+
+	/**
+	 * Route index constructor
+	 * @param rules The rules to index, in the rewriter order
+	 */
+	public RouteIndex(List<IRewriteRule> rules) {
+		this(rules, null);
+	}
+
+	/**
+	 * Route index constructor
+	 * @param rules The rules to index, in the rewriter order
+	 * @param ids The identifiers of the rules, or null to use their position
+	 */
+	public RouteIndex(List<IRewriteRule> rules, int[] ids) {
+		this.rules = rules.toArray(new IRewriteRule[rules.size()]);
+		this.ids = ids;
+		this.root = new Node();
+		this.cacheable = new BitSet(this.rules.length);
+
+		for(int i = 0; i < this.rules.length; i++) {
+			if(isCacheable(this.rules[i]))
+				cacheable.set(i);
+
+			String prefix = literalPrefix(this.rules[i]);
+
+			if(prefix == null)
+				prefix = ""; // No usable prefix : always tested
+
+			root.insert(prefix, 0).add(i);
+		}
+
+		this.automaton = new RouteAutomaton(this.rules);
+		this.combined = automaton.getCombined();
+	}
+
+	/**
+	 * Return the number of indexed rules
+	 * @return The number of rules
+	 */
+	public int size() {
+		return rules.length;
+	}
+
+	/**
+	 * Return the rule at the given index
+	 * @param index The rule index
+	 * @return The rule
+	 */
+	public IRewriteRule getRule(int index) {
+		return rules[index];
+	}
+
+	/**
+	 * Return the identifier of the rule at the given index
+	 * @param index The rule index
+	 * @return The rule identifier
+	 */
+	public int getId(int index) {
+		return ids != null ? ids[index] : index;
+	}
+
+	/**
+	 * Test if the resolution of the given rule can be cached, i.e. if the rule matching
+	 * only depends on the request method and URI
+	 * @param index The rule index
+	 * @return True if the rule can be cached, false otherwise
+	 */
+	public boolean isCacheable(int index) {
+		return cacheable.get(index);
+	}
+
+	/**
+	 * Return the indexes of the rules that may match the given URI. Every rule not returned
+	 * is guaranteed not to match
+	 * @param uri The request URI
+	 * @return The candidate rules indexes, to iterate in ascending order
+	 */
+	public BitSet candidates(String uri) {
+		BitSet candidates = new BitSet(rules.length);
+		Node node = root;
+		int i = 0;
+
+		while(node != null) {
+			node.collect(candidates);
+			node = i < uri.length() ? node.get(uri.charAt(i++)) : null;
+		}
+
+		BitSet matched = automaton.matches(uri);
+
+		if(matched != null) { // Combined rules : only keep the ones found by the automaton
+			candidates.andNot(combined);
+			candidates.or(matched);
+		}
+
+		return candidates;
+	}
+
+	/**
+	 * Test if the matching of the rule only depends on the request method and URI. Rules
+	 * overriding any of the matching methods are never cached
+	 * @param rule The rule
+	 * @return True if the rule can be cached, false otherwise
+	 */
+	static boolean isCacheable(IRewriteRule rule) {
+		if(!(rule instanceof RewriteRule))
+			return false;
+
+		RewriteRule rewriteRule = (RewriteRule) rule;
+
+		return rewriteRule.isDefault("matches", IContext.class)
+			&& rewriteRule.isDefault("checkContext", IContext.class)
+			&& rewriteRule.isDefault("checkMethod", IContext.class);
+	}
+
+	/**
+	 * Return the literal prefix that every URI matched by the rule must start with, or null
+	 * if no such prefix can be computed (rule implementation unknown, unanchored regex, top level
+	 * alternation, etc...)
+	 * @param rule The rule
+	 * @return The literal prefix, or null
+	 */
+	static String literalPrefix(IRewriteRule rule) {
+		if(!(rule instanceof RewriteRule))
+			return null;
+
+		RewriteRule rewriteRule = (RewriteRule) rule;
+
+		if(!rewriteRule.isDefault("matches", IContext.class))
+			return null; // Custom matching
+
+		return literalPrefix(rewriteRule.getPattern());
+	}
+
+	/**
+	 * Return the literal prefix of an anchored pattern, or null if no prefix can be safely computed
+	 * @param pattern The pattern
+	 * @return The literal prefix, or null
+	 */
+	static String literalPrefix(Pattern pattern) {
+		String regex = pattern.pattern();
+
+		if(pattern.flags() != 0 || !regex.startsWith("^") || hasTopLevelAlternation(regex))
+			return null;
+
+		StringBuilder prefix = new StringBuilder();
+		int i = 1;
+
+		while(i < regex.length()) {
+			char c = regex.charAt(i);
+
+			if(c == '\\') {
+				if(i + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1)))
+					break; // Escaped construct (class, back reference, quote...)
+				c = regex.charAt(i + 1);
+				i += 2;
+			} else if(".[]()*+?{}|^$".indexOf(c) >= 0) {
+				break; // Meta character
+			} else {
+				i++;
+			}
+
+			if(i < regex.length()) {
+				char next = regex.charAt(i);
+
+				if(next == '?' || next == '*' || next == '{')
+					break; // Optional character, not part of the prefix
+				else if(next == '+') {
+					prefix.append(c); // At least once
+					break;
+				}
+			}
+
+			prefix.append(c);
+		}
+
+		return prefix.toString();
+	}
+
+	/**
+	 * Test if the regex contains an alternation outside of any group, which would make the
+	 * leading anchor only apply to the first alternative
+	 * @param regex The regex
+	 * @return True if an alternation is found or if the regex can't be analyzed, false otherwise
+	 */
+	private static boolean hasTopLevelAlternation(String regex) {
+		int depth = 0;
+
+		for(int i = 0; i < regex.length(); i++) {
+			char c = regex.charAt(i);
+
+			switch(c) {
+			case '\\':
+				if(i + 1 < regex.length() && regex.charAt(i + 1) == 'Q')
+					return true; // Quotation, not analyzed
+				i++;
+				break;
+			case '[':
+				i = skipClass(regex, i);
+				if(i < 0)
+					return true; // Nested class, not analyzed
+				break;
+			case '(':
+				depth++;
+				break;
+			case ')':
+				depth--;
+				break;
+			case '|':
+				if(depth == 0)
+					return true;
+				break;
+			default:
+				break;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Skip a character class
+	 * @param regex The regex
+	 * @param start The index of the opening bracket
+	 * @return The index of the closing bracket, or -1 if the class can't be analyzed
+	 */
+	private static int skipClass(String regex, int start) {
+		int i = start + 1;
+
+		if(i < regex.length() && regex.charAt(i) == '^')
+			i++;
+		if(i < regex.length() && regex.charAt(i) == ']')
+			i++; // Leading bracket is a literal
+
+		for(; i < regex.length(); i++) {
+			char c = regex.charAt(i);
+
+			if(c == '\\')
+				i++;
+			else if(c == '[')
+				return -1;
+			else if(c == ']')
+				return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Trie node
+	 */
+	private static class Node {
+
+		/**
+		 * Children characters, sorted
+		 */
+		private char[] keys = new char[0];
+
+		/**
+		 * Children nodes
+		 */
+		private Node[] children = new Node[0];
+
+		/**
+		 * Rules whose prefix ends on this node
+		 */
+		private int[] rules = new int[0];
+
+		/**
+		 * Return the child for the given character
+		 * @param c The character
+		 * @return The child, or null if none
+		 */
+		private Node get(char c) {
+			int i = Arrays.binarySearch(keys, c);
+			return i >= 0 ? children[i] : null;
+		}
+
+		/**
+		 * Return the node of the given prefix, creating it if needed
+		 * @param prefix The prefix
+		 * @param offset The current offset in the prefix
+		 * @return The node
+		 */
+		private Node insert(String prefix, int offset) {
+			if(offset == prefix.length())
+				return this;
+
+			char c = prefix.charAt(offset);
+			int i = Arrays.binarySearch(keys, c);
+
+			if(i < 0) {
+				i = -i - 1;
+
+				char[] newKeys = new char[keys.length + 1];
+				Node[] newChildren = new Node[children.length + 1];
+
+				System.arraycopy(keys, 0, newKeys, 0, i);
+				System.arraycopy(children, 0, newChildren, 0, i);
+				newKeys[i] = c;
+				newChildren[i] = new Node();
+				System.arraycopy(keys, i, newKeys, i + 1, keys.length - i);
+				System.arraycopy(children, i, newChildren, i + 1, children.length - i);
+
+				keys = newKeys;
+				children = newChildren;
+			}
+
+			return children[i].insert(prefix, offset + 1);
+		}
+
+		/**
+		 * Add a rule index to this node
+		 * @param rule The rule index
+		 */
+		private void add(int rule) {
+			rules = Arrays.copyOf(rules, rules.length + 1);
+			rules[rules.length - 1] = rule;
+		}
+
+		/**
+		 * Add the rules of this node to the given set
+		 * @param set The set
+		 */
+		private void collect(BitSet set) {
+			for(int rule : rules)
+				set.set(rule);
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package fr.vuzi.webframework.dispatcher;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.vuzi.webframework.context.IContext;
+
+/**
+ * Immutable compiled route table, made of one route index for each known method and one
+ * for the other methods. A route table is never modified once built: the rewriter builds a new
+ * table and swaps it whenever the rules order changes
+ *
+ * @author Vuzi
+ *
+ */
+public class RouteTable {
+
+	/**
+	 * Index of all the rules, used for the methods which are not known methods
+	 */
+	private RouteIndex index;
+
+	/**
+	 * Index of the rules which may accept each known method, by method bit position
+	 */
+	private RouteIndex[] methodIndexes;
+
+	/**
+	 * Route resolution cache of the table, or null if disabled
+	 */
+	private RouteCache cache;
+
+	/**
+	 * Route table constructor
+	 * @param rules The rules, in the order they must be tested
+	 * @param ids The identifiers of the rules, i.e. their declaration position, or null if the
+	 *            rules are in the declaration order
+	 * @param cache The route resolution cache of the table, or null
+	 */
+	public RouteTable(List<IRewriteRule> rules, int[] ids, RouteCache cache) {
+		this.index = new RouteIndex(rules, ids);
+		this.methodIndexes = new RouteIndex[RewriteRule.METHODS.length];
+		this.cache = cache;
+
+		for(int i = 0; i < methodIndexes.length; i++) { // Rules partitioned by method
+			List<IRewriteRule> methodRules = new ArrayList<IRewriteRule>();
+			List<Integer> methodIds = new ArrayList<Integer>();
+
+			for(int j = 0; j < rules.size(); j++) {
+				if(acceptsMethod(rules.get(j), 1 << i)) {
+					methodRules.add(rules.get(j));
+					methodIds.add(ids != null ? ids[j] : j);
+				}
+			}
+
+			int[] indexIds = new int[methodIds.size()];
+			for(int j = 0; j < indexIds.length; j++)
+				indexIds[j] = methodIds.get(j);
+
+			methodIndexes[i] = new RouteIndex(methodRules, indexIds);
+		}
+	}
+
+	/**
+	 * Return the compiled index to use for the given method
+	 * @param method The request method
+	 * @return The rules index
+	 */
+	public RouteIndex getIndex(String method) {
+		int bit = RewriteRule.methodBit(method);
+		return bit != 0 ? methodIndexes[Integer.numberOfTrailingZeros(bit)] : index;
+	}
+
+	/**
+	 * Return the route resolution cache of the table
+	 * @return The route cache, or null if disabled
+	 */
+	public RouteCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Test if the rule may accept the given known method
+	 * @param rule The rule
+	 * @param methodBit The method bit
+	 * @return False if the rule never accepts the method, true otherwise
+	 */
+	static boolean acceptsMethod(IRewriteRule rule, int methodBit) {
+		if(!(rule instanceof RewriteRule))
+			return true;
+
+		RewriteRule rewriteRule = (RewriteRule) rule;
+
+		if(!rewriteRule.isDefault("matches", IContext.class) || !rewriteRule.isDefault("checkMethod", IContext.class))
+			return true; // Custom method check
+
+		return (rewriteRule.getMethodMask() & methodBit) != 0;
+	}
+}
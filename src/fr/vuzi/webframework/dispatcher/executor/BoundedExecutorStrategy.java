@@ -0,0 +1,48 @@
+package fr.vuzi.webframework.dispatcher.executor;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed size thread pool with a bounded queue. When both the threads and the queue are full,
+ * the action is run by the dispatching thread itself, which slows down the requests instead
+ * of creating more threads
+ * 
+ * @author Vuzi
+ *
+ */
+public class BoundedExecutorStrategy implements IExecutorStrategy {
+
+	/**
+	 * Number of threads
+	 */
+	private int threads;
+	
+	/**
+	 * Size of the queue
+	 */
+	private int queueSize;
+	
+	/**
+	 * Bounded executor strategy constructor
+	 * @param threads The number of threads, or 0 to use twice the number of processors
+	 * @param queueSize The size of the queue, or 0 to use ten times the number of threads
+	 */
+	public BoundedExecutorStrategy(int threads, int queueSize) {
+		this.threads = threads > 0 ? threads : 2 * Runtime.getRuntime().availableProcessors();
+		this.queueSize = queueSize > 0 ? queueSize : 10 * this.threads;
+	}
+	
+	@Override
+	public ExecutorService createExecutor() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new NamedThreadFactory("jwf-bounded"),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		
+		executor.allowCoreThreadTimeOut(true); // Idle threads are released
+		return executor;
+	}
+
+}
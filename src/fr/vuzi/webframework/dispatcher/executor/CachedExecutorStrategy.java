@@ -0,0 +1,20 @@
+package fr.vuzi.webframework.dispatcher.executor;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Unbounded cached thread pool : a new thread is created whenever no idle thread is available.
+ * Default strategy
+ * 
+ * @author Vuzi
+ *
+ */
+public class CachedExecutorStrategy implements IExecutorStrategy {
+
+	@Override
+	public ExecutorService createExecutor() {
+		return Executors.newCachedThreadPool(new NamedThreadFactory("jwf-cached"));
+	}
+
+}
@@ -0,0 +1,40 @@
+package fr.vuzi.webframework.dispatcher.executor;
+
+/**
+ * Executor strategies factory, used to select the strategy from the configuration file
+ * 
+ * @author Vuzi
+ *
+ */
+public class ExecutorStrategies {
+
+	/**
+	 * Executor strategies : private constructor
+	 */
+	private ExecutorStrategies() {}
+	
+	/**
+	 * Return the executor strategy of the given type
+	 * @param type The type : "cached", "bounded", "forkjoin", "priority", "virtual", or the class name of a custom strategy
+	 * @param threads The number of threads for the bounded, fork join and priority strategies, or 0 for the default
+	 * @param queueSize The size of the queue for the bounded strategy, or 0 for the default
+	 * @param aging The aging of the priority strategy, in milliseconds per priority level, or 0 for the default
+	 * @return The executor strategy
+	 * @throws Exception Thrown if the type is unknown, or the custom strategy could not be instantiated
+	 */
+	public static IExecutorStrategy forType(String type, int threads, int queueSize, int aging) throws Exception {
+		if(type == null || type.equals("cached"))
+			return new CachedExecutorStrategy();
+		else if(type.equals("bounded"))
+			return new BoundedExecutorStrategy(threads, queueSize);
+		else if(type.equals("forkjoin"))
+			return new ForkJoinExecutorStrategy(threads);
+		else if(type.equals("priority"))
+			return new PriorityExecutorStrategy(threads, aging);
+		else if(type.equals("virtual"))
+			return new VirtualThreadExecutorStrategy();
+		else
+			return Class.forName(type).asSubclass(IExecutorStrategy.class).getDeclaredConstructor().newInstance(); // Custom strategy
+	}
+	
+}
@@ -0,0 +1,32 @@
+package fr.vuzi.webframework.dispatcher.executor;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Work-stealing pool, suited to short CPU bound actions
+ * 
+ * @author Vuzi
+ *
+ */
+public class ForkJoinExecutorStrategy implements IExecutorStrategy {
+
+	/**
+	 * Parallelism level
+	 */
+	private int parallelism;
+	
+	/**
+	 * Fork join executor strategy constructor
+	 * @param parallelism The parallelism level, or 0 to use the number of processors
+	 */
+	public ForkJoinExecutorStrategy(int parallelism) {
+		this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+	}
+	
+	@Override
+	public ExecutorService createExecutor() {
+		return new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true); // FIFO mode for the submitted actions
+	}
+
+}
@@ -0,0 +1,22 @@
+package fr.vuzi.webframework.dispatcher.executor;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Executor strategy of the dispatcher. The strategy creates the executor used to run the actions
+ * dispatched in parallel, and is selected in the configuration file. Custom strategies can be
+ * used by giving their class name as the executor type, in which case the class must have a
+ * public constructor without parameters
+ * 
+ * @author Vuzi
+ *
+ */
+public interface IExecutorStrategy {
+
+	/**
+	 * Create the executor used by the dispatcher. Called once, when the dispatcher is created
+	 * @return The executor
+	 */
+	public ExecutorService createExecutor();
+	
+}
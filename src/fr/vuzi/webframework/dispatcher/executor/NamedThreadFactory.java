@@ -0,0 +1,40 @@
+package fr.vuzi.webframework.dispatcher.executor;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factory creating daemon threads with a name prefix, to recognize the dispatcher threads
+ * in thread dumps
+ * 
+ * @author Vuzi
+ *
+ */
+public class NamedThreadFactory implements ThreadFactory {
+
+	/**
+	 * Threads name prefix
+	 */
+	private String prefix;
+	
+	/**
+	 * Number of the next thread
+	 */
+	private AtomicInteger next = new AtomicInteger(1);
+	
+	/**
+	 * Named thread factory constructor
+	 * @param prefix The threads name prefix
+	 */
+	public NamedThreadFactory(String prefix) {
+		this.prefix = prefix;
+	}
+	
+	@Override
+	public Thread newThread(Runnable r) {
+		Thread thread = new Thread(r, prefix + "-" + next.getAndIncrement());
+		thread.setDaemon(true);
+		return thread;
+	}
+
+}
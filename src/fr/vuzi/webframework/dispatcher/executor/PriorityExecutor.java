@@ -0,0 +1,233 @@
+package fr.vuzi.webframework.dispatcher.executor;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.vuzi.webframework.action.IAction;
+import fr.vuzi.webframework.dispatcher.ActionFuture;
+
+/**
+ * Thread pool running the queued actions by priority, the highest priority first. The actions can be
+ * submitted directly, or through an action future. Other tasks have the default priority 0.
+ * 
+ * To avoid the starvation of the low priority actions, the actions are aging : each task is queued
+ * with a virtual time, which is its submission time minus its priority multiplied by the aging. Tasks
+ * are then run by virtual time, so an action of priority p waiting for more than
+ * <b>aging * (q - p)</b> runs before any new action of priority q.
+ * 
+ * The time waited in the queue is recorded for each priority level
+ * 
+ * @author Vuzi
+ *
+ */
+public class PriorityExecutor extends ThreadPoolExecutor {
+
+	/**
+	 * Aging of the tasks, in nanoseconds per priority level
+	 */
+	private long aging;
+	
+	/**
+	 * Submission sequence, used to keep the submission order between tasks of same virtual time
+	 */
+	private AtomicLong sequence = new AtomicLong();
+	
+	/**
+	 * Queue wait time statistics, by priority
+	 */
+	private ConcurrentHashMap<Integer, WaitStatistics> statistics = new ConcurrentHashMap<Integer, WaitStatistics>();
+	
+	/**
+	 * Priority executor constructor
+	 * @param threads The number of threads
+	 * @param aging The aging of the tasks, in milliseconds per priority level
+	 * @param threadFactory The thread factory
+	 */
+	public PriorityExecutor(int threads, long aging, ThreadFactory threadFactory) {
+		super(threads, threads, 60L, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), threadFactory);
+		this.aging = TimeUnit.MILLISECONDS.toNanos(aging);
+		allowCoreThreadTimeOut(true); // Idle threads are released
+	}
+	
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+		return new PrioritizedTask<T>(callable, callable instanceof IAction ? ((IAction) callable).getPriority() : 0);
+	}
+	
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+		return new PrioritizedTask<T>(runnable, value, runnable instanceof ActionFuture ? ((ActionFuture) runnable).getAction().getPriority() : 0);
+	}
+	
+	@Override
+	public void execute(Runnable command) {
+		if(command instanceof PrioritizedTask)
+			super.execute(command);
+		else
+			super.execute(newTaskFor(command, null)); // The queue only accepts prioritized tasks
+	}
+	
+	@Override
+	protected void beforeExecute(Thread t, Runnable r) {
+		super.beforeExecute(t, r);
+		
+		PrioritizedTask<?> task = (PrioritizedTask<?>) r;
+		WaitStatistics waitStatistics = statistics.get(task.priority);
+		
+		if(waitStatistics == null) {
+			waitStatistics = new WaitStatistics();
+			WaitStatistics previous = statistics.putIfAbsent(task.priority, waitStatistics);
+			
+			if(previous != null)
+				waitStatistics = previous;
+		}
+		
+		waitStatistics.record(System.nanoTime() - task.submitted);
+	}
+	
+	/**
+	 * Return the queue wait time statistics of each priority level
+	 * @return The statistics, by priority, from the highest priority
+	 */
+	public Map<Integer, WaitStatistics> getWaitStatistics() {
+		Map<Integer, WaitStatistics> sorted = new TreeMap<Integer, WaitStatistics>(Collections.reverseOrder());
+		sorted.putAll(statistics);
+		return sorted;
+	}
+	
+	/**
+	 * Return a text report of the queue wait time of each priority level
+	 * @return The report
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append("Queued tasks : ").append(getQueue().size()).append("\n");
+		
+		for(Map.Entry<Integer, WaitStatistics> entry : getWaitStatistics().entrySet())
+			sb.append("priority ").append(entry.getKey()).append(" : ").append(entry.getValue()).append("\n");
+		
+		return sb.toString();
+	}
+	
+	/**
+	 * Task queued with its priority and virtual time
+	 */
+	private class PrioritizedTask<T> extends FutureTask<T> implements Comparable<PrioritizedTask<?>> {
+		
+		/**
+		 * Task priority
+		 */
+		private final int priority;
+		
+		/**
+		 * Submission time, in nanoseconds
+		 */
+		private final long submitted = System.nanoTime();
+		
+		/**
+		 * Virtual time, in nanoseconds : the smallest runs first
+		 */
+		private final long virtualTime;
+		
+		/**
+		 * Submission sequence
+		 */
+		private final long order = sequence.getAndIncrement();
+		
+		private PrioritizedTask(Callable<T> callable, int priority) {
+			super(callable);
+			this.priority = priority;
+			this.virtualTime = submitted - priority * aging;
+		}
+		
+		private PrioritizedTask(Runnable runnable, T value, int priority) {
+			super(runnable, value);
+			this.priority = priority;
+			this.virtualTime = submitted - priority * aging;
+		}
+
+		@Override
+		public int compareTo(PrioritizedTask<?> other) {
+			long d = virtualTime - other.virtualTime; // Overflow safe, as for nanoTime
+			
+			if(d != 0)
+				return d < 0 ? -1 : 1;
+			
+			return order < other.order ? -1 : (order == other.order ? 0 : 1);
+		}
+	}
+	
+	/**
+	 * Queue wait time statistics of a priority level
+	 */
+	public static class WaitStatistics {
+		
+		/**
+		 * Number of tasks run
+		 */
+		private AtomicLong count = new AtomicLong();
+		
+		/**
+		 * Total wait time, in nanoseconds
+		 */
+		private AtomicLong total = new AtomicLong();
+		
+		/**
+		 * Longest wait time, in nanoseconds
+		 */
+		private AtomicLong max = new AtomicLong();
+		
+		/**
+		 * Record the wait time of a task
+		 * @param wait The wait time, in nanoseconds
+		 */
+		private void record(long wait) {
+			count.incrementAndGet();
+			total.addAndGet(wait);
+			
+			long current;
+			while(wait > (current = max.get()) && !max.compareAndSet(current, wait));
+		}
+		
+		/**
+		 * Return the number of tasks run
+		 * @return The number of tasks
+		 */
+		public long getCount() {
+			return count.get();
+		}
+		
+		/**
+		 * Return the mean wait time
+		 * @return The mean wait time, in milliseconds
+		 */
+		public double getMeanWait() {
+			long count = this.count.get();
+			return count > 0 ? total.get() / (count * 1000000.0) : 0;
+		}
+		
+		/**
+		 * Return the longest wait time
+		 * @return The longest wait time, in milliseconds
+		 */
+		public double getMaxWait() {
+			return max.get() / 1000000.0;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%d tasks, mean wait %.3f ms, max wait %.3f ms", getCount(), getMeanWait(), getMaxWait());
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package fr.vuzi.webframework.dispatcher.executor;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Fixed size thread pool running the queued actions by priority, with aging
+ * 
+ * @author Vuzi
+ *
+ * @see PriorityExecutor
+ */
+public class PriorityExecutorStrategy implements IExecutorStrategy {
+
+	/**
+	 * Number of threads
+	 */
+	private int threads;
+	
+	/**
+	 * Aging of the actions, in milliseconds per priority level
+	 */
+	private long aging;
+	
+	/**
+	 * Priority executor strategy constructor
+	 * @param threads The number of threads, or 0 to use twice the number of processors
+	 * @param aging The aging of the queued actions, i.e. how long an action must wait in the queue
+	 *              to gain one priority level, in milliseconds. 0 to use the default of 100 milliseconds
+	 */
+	public PriorityExecutorStrategy(int threads, long aging) {
+		this.threads = threads > 0 ? threads : 2 * Runtime.getRuntime().availableProcessors();
+		this.aging = aging > 0 ? aging : 100;
+	}
+	
+	@Override
+	public ExecutorService createExecutor() {
+		return new PriorityExecutor(threads, aging, new NamedThreadFactory("jwf-priority"));
+	}
+
+}
@@ -0,0 +1,25 @@
+package fr.vuzi.webframework.dispatcher.executor;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * One virtual thread per action, suited to actions blocking on I/O. Virtual threads are only
+ * available from Java 21 : with older versions, a cached thread pool is used instead
+ * 
+ * @author Vuzi
+ *
+ */
+public class VirtualThreadExecutorStrategy implements IExecutorStrategy {
+
+	@Override
+	public ExecutorService createExecutor() {
+		try {
+			// Looked up at runtime to still compile and run with older versions
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return new CachedExecutorStrategy().createExecutor(); // Virtual threads not available
+		}
+	}
+
+}
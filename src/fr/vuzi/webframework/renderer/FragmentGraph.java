@@ -0,0 +1,141 @@
+package fr.vuzi.webframework.renderer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Dependency graph of the velocity fragments, compiled from the velocity priority tree of the
+ * configuration file. Each fragment depends on its children, which must be rendered before its
+ * action is dispatched. The fragments without parent are the roots, used by the main view
+ * 
+ * @author Vuzi
+ *
+ */
+public class FragmentGraph {
+
+	/**
+	 * Children of each fragment, children first
+	 */
+	private Map<String, List<String>> children;
+	
+	/**
+	 * Fragments without parent
+	 */
+	private List<String> roots;
+	
+	/**
+	 * Parent of each fragment, null for the roots
+	 */
+	private Map<String, String> parents;
+	
+	/**
+	 * Fragment graph constructor
+	 * @param parents The parent of each fragment, or null for the roots
+	 */
+	public FragmentGraph(Map<String, String> parents) {
+		Map<String, List<String>> declared = new LinkedHashMap<String, List<String>>();
+		List<String> roots = new ArrayList<String>();
+		
+		for(Entry<String, String> entry : parents.entrySet()) {
+			if(!declared.containsKey(entry.getKey()))
+				declared.put(entry.getKey(), new ArrayList<String>());
+			
+			if(entry.getValue() == null)
+				roots.add(entry.getKey());
+			else {
+				List<String> siblings = declared.get(entry.getValue());
+				
+				if(siblings == null) // Parent not seen yet
+					declared.put(entry.getValue(), siblings = new ArrayList<String>());
+				
+				siblings.add(entry.getKey());
+			}
+		}
+		
+		// Post-order from the roots, so each fragment comes after all its children
+		Map<String, List<String>> children = new LinkedHashMap<String, List<String>>();
+		
+		for(String root : roots)
+			addAfterChildren(root, declared, children, new HashSet<String>());
+		
+		for(String fragment : declared.keySet()) // Parents never declared themselves
+			addAfterChildren(fragment, declared, children, new HashSet<String>());
+		
+		this.children = Collections.unmodifiableMap(children);
+		this.roots = Collections.unmodifiableList(roots);
+		this.parents = Collections.unmodifiableMap(new LinkedHashMap<String, String>(parents));
+	}
+	
+	/**
+	 * Add a fragment after all its children, the children being added first
+	 * @param fragment The fragment
+	 * @param declared The children of each fragment
+	 * @param children The fragments added, with their children
+	 * @param path The fragments being added, used to detect the cycles
+	 */
+	private static void addAfterChildren(String fragment, Map<String, List<String>> declared, Map<String, List<String>> children, Set<String> path) {
+		if(children.containsKey(fragment))
+			return;
+		
+		if(!path.add(fragment))
+			throw new IllegalArgumentException("Cycle in the velocity fragments : " + fragment);
+		
+		List<String> fragmentChildren = declared.get(fragment);
+		
+		for(String child : fragmentChildren)
+			addAfterChildren(child, declared, children, path);
+		
+		path.remove(fragment);
+		children.put(fragment, Collections.unmodifiableList(fragmentChildren));
+	}
+	
+	/**
+	 * Return all the fragments, each fragment being after its children
+	 * @return The fragments
+	 */
+	public Iterable<String> getFragments() {
+		return children.keySet();
+	}
+	
+	/**
+	 * Return the children of a fragment
+	 * @param fragment The fragment
+	 * @return The children, empty for a leaf
+	 */
+	public List<String> getChildren(String fragment) {
+		List<String> fragmentChildren = children.get(fragment);
+		return fragmentChildren != null ? fragmentChildren : Collections.<String>emptyList();
+	}
+	
+	/**
+	 * Return the fragments sharing the parent of a fragment, the fragment included
+	 * @param fragment The fragment
+	 * @return The siblings, in the declaration order
+	 */
+	public List<String> getSiblings(String fragment) {
+		String parent = parents.get(fragment);
+		return parent != null ? getChildren(parent) : roots;
+	}
+	
+	/**
+	 * Return the fragments without parent
+	 * @return The root fragments
+	 */
+	public List<String> getRoots() {
+		return roots;
+	}
+	
+	/**
+	 * Return the number of fragments
+	 * @return The number of fragments
+	 */
+	public int size() {
+		return children.size();
+	}
+}
@@ -0,0 +1,36 @@
+package fr.vuzi.webframework.renderer;
+
+import java.io.IOException;
+
+/**
+ * Cursor over elements fetched lazily, e.g. the rows of a query. Used as the <b>model</b> of the
+ * JSON renderer, the elements are written to the response as they are fetched, and the cursor
+ * is closed once rendered
+ * 
+ * @author Vuzi
+ *
+ * @param <T> The type of the elements
+ */
+public interface ICursor<T> extends AutoCloseable {
+
+	/**
+	 * Move the cursor to the next element
+	 * @return True if the cursor is on an element, false if there is no more elements
+	 * @throws Exception Thrown if the next element could not be fetched
+	 */
+	public boolean next() throws Exception;
+	
+	/**
+	 * Return the current element
+	 * @return The element
+	 */
+	public T get();
+	
+	/**
+	 * Close the cursor, and release its resources
+	 * @throws IOException Thrown if the cursor could not be closed
+	 */
+	@Override
+	public void close() throws IOException;
+	
+}
@@ -1,5 +1,12 @@
 package fr.vuzi.webframework.renderer;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+
+import fr.vuzi.webframework.Utils;
 import fr.vuzi.webframework.context.IContext;
 
 /**
@@ -21,6 +28,51 @@ public interface IRenderer {
 	 */
 	public String render(IContext context) throws Exception;
 
+	/**
+	 * Perform the rendering asynchronously, without blocking the calling thread while the actions
+	 * are dispatched. By default, the rendering is done synchronously
+	 * @param context The action's context
+	 * @return The future of the rendered content
+	 */
+	public default CompletableFuture<String> renderAsync(IContext context) {
+		try {
+			return CompletableFuture.completedFuture(render(context));
+		} catch (Exception e) {
+			return Utils.failedFuture(e);
+		}
+	}
+
+	/**
+	 * Perform the rendering, writing the content as it is rendered. By default, the content is
+	 * rendered as a string, then written
+	 * @param context The action's context
+	 * @param writer The writer of the content
+	 * @throws Exception Thrown if an error occurred during the rendering
+	 */
+	public default void render(IContext context, Writer writer) throws Exception {
+		writer.write(render(context));
+	}
+	
+	/**
+	 * Perform the rendering asynchronously, writing the content as it is rendered. By default, the
+	 * content is rendered asynchronously as a string, then written
+	 * @param context The action's context
+	 * @param writer The writer of the content
+	 * @return The future completed once the content is written
+	 */
+	public default CompletableFuture<Void> renderAsync(IContext context, final Writer writer) {
+		return renderAsync(context).thenAccept(new Consumer<String>() {
+			@Override
+			public void accept(String content) {
+				try {
+					writer.write(content);
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}
+		});
+	}
+
 	/**
 	 * Return the mime-type used with this renderer
 	 * @return The renderer mime-type
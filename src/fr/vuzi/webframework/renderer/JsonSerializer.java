@@ -0,0 +1,669 @@
+package fr.vuzi.webframework.renderer;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.BaseStream;
+
+/**
+ * JSON serializer of a class. The serializers are built once for each class, and cached : the
+ * objects are serialized by their public fields, read using method handles instead of reflection.
+ * 
+ * The iterables, iterators, streams and cursors are written as arrays, element by element as they
+ * are pulled, so they never have to be loaded in memory. The iterators, streams and cursors are
+ * closed once written
+ * 
+ * @author Vuzi
+ *
+ */
+public abstract class JsonSerializer {
+
+	/**
+	 * Date format, in the default time zone
+	 */
+	private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'").withZone(ZoneId.systemDefault());
+	
+	/**
+	 * Lookup used to create the fields getters
+	 */
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+	
+	/**
+	 * Serializers, by class
+	 */
+	private static final ClassValue<JsonSerializer> SERIALIZERS = new ClassValue<JsonSerializer>() {
+		@Override
+		protected JsonSerializer computeValue(Class<?> type) {
+			return create(type);
+		}
+	};
+	
+	/**
+	 * Write a value
+	 * @param value The value, never null
+	 * @param out The JSON writer
+	 * @throws IOException Thrown if the output could not be written
+	 */
+	public abstract void write(Object value, JsonWriter out) throws IOException;
+	
+	/**
+	 * Return the serializer of a class
+	 * @param type The class
+	 * @return The serializer
+	 */
+	public static JsonSerializer of(Class<?> type) {
+		return SERIALIZERS.get(type);
+	}
+	
+	/**
+	 * Write any value, using the serializer of its class
+	 * @param value The value, or null
+	 * @param out The JSON writer
+	 * @throws IOException Thrown if the output could not be written
+	 */
+	public static void writeValue(Object value, JsonWriter out) throws IOException {
+		if(value == null)
+			out.writeNull();
+		else
+			SERIALIZERS.get(value.getClass()).write(value, out);
+	}
+	
+	/**
+	 * Create the serializer of a class
+	 * @param type The class
+	 * @return The serializer
+	 */
+	private static JsonSerializer create(Class<?> type) {
+		if(type == String.class)
+			return STRING;
+		else if(type == Integer.class || type == Long.class || type == Short.class || type == Byte.class)
+			return INTEGRAL;
+		else if(type == Double.class)
+			return DOUBLE;
+		else if(type == Float.class)
+			return FLOAT;
+		else if(type == Boolean.class)
+			return BOOLEAN;
+		else if(type == Character.class || type.isEnum() || (type.getSuperclass() != null && type.getSuperclass().isEnum()))
+			return TEXT;
+		else if(type == BigDecimal.class || type == BigInteger.class)
+			return NUMBER;
+		else if(Date.class.isAssignableFrom(type))
+			return DATE;
+		else if(type.isArray())
+			return array(type.getComponentType());
+		else if(Iterable.class.isAssignableFrom(type))
+			return ITERABLE;
+		else if(Iterator.class.isAssignableFrom(type))
+			return ITERATOR;
+		else if(BaseStream.class.isAssignableFrom(type))
+			return STREAM;
+		else if(ICursor.class.isAssignableFrom(type))
+			return CURSOR;
+		else
+			return new ObjectSerializer(type);
+	}
+	
+	/**
+	 * String serializer
+	 */
+	private static final JsonSerializer STRING = new JsonSerializer() {
+		@Override
+		public void write(Object value, JsonWriter out) throws IOException {
+			out.writeString((String) value);
+		}
+	};
+	
+	/**
+	 * Serializer of the values written as their string representation, i.e. the characters and enumerations
+	 */
+	private static final JsonSerializer TEXT = new JsonSerializer() {
+		@Override
+		public void write(Object value, JsonWriter out) throws IOException {
+			out.writeString(value.toString());
+		}
+	};
+	
+	/**
+	 * Integral numbers serializer
+	 */
+	private static final JsonSerializer INTEGRAL = new JsonSerializer() {
+		@Override
+		public void write(Object value, JsonWriter out) throws IOException {
+			out.writeLong(((Number) value).longValue());
+		}
+	};
+	
+	/**
+	 * Double serializer
+	 */
+	private static final JsonSerializer DOUBLE = new JsonSerializer() {
+		@Override
+		public void write(Object value, JsonWriter out) throws IOException {
+			out.writeDouble((Double) value);
+		}
+	};
+	
+	/**
+	 * Float serializer
+	 */
+	private static final JsonSerializer FLOAT = new JsonSerializer() {
+		@Override
+		public void write(Object value, JsonWriter out) throws IOException {
+			out.writeFloat((Float) value);
+		}
+	};
+	
+	/**
+	 * Arbitrary precision numbers serializer
+	 */
+	private static final JsonSerializer NUMBER = new JsonSerializer() {
+		@Override
+		public void write(Object value, JsonWriter out) throws IOException {
+			out.writeRaw(value.toString());
+		}
+	};
+	
+	/**
+	 * Boolean serializer
+	 */
+	private static final JsonSerializer BOOLEAN = new JsonSerializer() {
+		@Override
+		public void write(Object value, JsonWriter out) throws IOException {
+			out.writeBoolean((Boolean) value);
+		}
+	};
+	
+	/**
+	 * Date serializer
+	 */
+	private static final JsonSerializer DATE = new JsonSerializer() {
+		@Override
+		public void write(Object value, JsonWriter out) throws IOException {
+			out.writeString(DATE_FORMAT.format(Instant.ofEpochMilli(((Date) value).getTime()))); // java.sql.Date and Time don't support toInstant
+		}
+	};
+	
+	/**
+	 * Iterable serializer
+	 */
+	private static final JsonSerializer ITERABLE = new JsonSerializer() {
+		@Override
+		public void write(Object value, JsonWriter out) throws IOException {
+			writeElements(((Iterable<?>) value).iterator(), out);
+		}
+	};
+	
+	/**
+	 * Iterator serializer
+	 */
+	private static final JsonSerializer ITERATOR = new JsonSerializer() {
+		@Override
+		public void write(Object value, JsonWriter out) throws IOException {
+			try {
+				writeElements((Iterator<?>) value, out);
+			} finally {
+				if(value instanceof AutoCloseable)
+					close((AutoCloseable) value);
+			}
+		}
+	};
+	
+	/**
+	 * Stream serializer
+	 */
+	private static final JsonSerializer STREAM = new JsonSerializer() {
+		@Override
+		public void write(Object value, JsonWriter out) throws IOException {
+			BaseStream<?, ?> stream = (BaseStream<?, ?>) value;
+			
+			try {
+				writeElements(stream.iterator(), out);
+			} finally {
+				stream.close();
+			}
+		}
+	};
+	
+	/**
+	 * Cursor serializer
+	 */
+	private static final JsonSerializer CURSOR = new JsonSerializer() {
+		@Override
+		public void write(Object value, JsonWriter out) throws IOException {
+			ICursor<?> cursor = (ICursor<?>) value;
+			
+			try {
+				out.writeRaw('[');
+				
+				for(boolean first = true; next(cursor); first = false) {
+					if(!first)
+						out.writeRaw(',');
+					writeValue(cursor.get(), out);
+					out.checkpoint();
+				}
+				
+				out.writeRaw(']');
+			} finally {
+				cursor.close();
+			}
+		}
+	};
+	
+	/**
+	 * Write the elements of an iterator as an array, flushing the output periodically
+	 * @param iterator The iterator
+	 * @param out The JSON writer
+	 * @throws IOException Thrown if the output could not be written
+	 */
+	private static void writeElements(Iterator<?> iterator, JsonWriter out) throws IOException {
+		out.writeRaw('[');
+		
+		for(boolean first = true; iterator.hasNext(); first = false) {
+			if(!first)
+				out.writeRaw(',');
+			writeValue(iterator.next(), out);
+			out.checkpoint();
+		}
+		
+		out.writeRaw(']');
+	}
+	
+	/**
+	 * Move a cursor to its next element
+	 * @param cursor The cursor
+	 * @return True if the cursor is on an element, false if there is no more elements
+	 * @throws IOException Thrown if the next element could not be fetched
+	 */
+	private static boolean next(ICursor<?> cursor) throws IOException {
+		try {
+			return cursor.next();
+		} catch (IOException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Cursor could not be read", e);
+		}
+	}
+	
+	/**
+	 * Close a streamed value
+	 * @param closeable The value
+	 * @throws IOException Thrown if the value could not be closed
+	 */
+	private static void close(AutoCloseable closeable) throws IOException {
+		try {
+			closeable.close();
+		} catch (IOException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Streamed value could not be closed", e);
+		}
+	}
+	
+	/**
+	 * Create the serializer of an array. The primitive arrays are written without boxing their values
+	 * @param component The component type of the array
+	 * @return The serializer
+	 */
+	private static JsonSerializer array(Class<?> component) {
+		if(component == int.class) {
+			return new JsonSerializer() {
+				@Override
+				public void write(Object value, JsonWriter out) throws IOException {
+					int[] array = (int[]) value;
+					out.writeRaw('[');
+					for(int i = 0; i < array.length; i++) {
+						if(i > 0)
+							out.writeRaw(',');
+						out.writeInt(array[i]);
+					}
+					out.writeRaw(']');
+				}
+			};
+		} else if(component == long.class) {
+			return new JsonSerializer() {
+				@Override
+				public void write(Object value, JsonWriter out) throws IOException {
+					long[] array = (long[]) value;
+					out.writeRaw('[');
+					for(int i = 0; i < array.length; i++) {
+						if(i > 0)
+							out.writeRaw(',');
+						out.writeLong(array[i]);
+					}
+					out.writeRaw(']');
+				}
+			};
+		} else if(component == double.class) {
+			return new JsonSerializer() {
+				@Override
+				public void write(Object value, JsonWriter out) throws IOException {
+					double[] array = (double[]) value;
+					out.writeRaw('[');
+					for(int i = 0; i < array.length; i++) {
+						if(i > 0)
+							out.writeRaw(',');
+						out.writeDouble(array[i]);
+					}
+					out.writeRaw(']');
+				}
+			};
+		} else if(component == float.class) {
+			return new JsonSerializer() {
+				@Override
+				public void write(Object value, JsonWriter out) throws IOException {
+					float[] array = (float[]) value;
+					out.writeRaw('[');
+					for(int i = 0; i < array.length; i++) {
+						if(i > 0)
+							out.writeRaw(',');
+						out.writeFloat(array[i]);
+					}
+					out.writeRaw(']');
+				}
+			};
+		} else if(component == boolean.class) {
+			return new JsonSerializer() {
+				@Override
+				public void write(Object value, JsonWriter out) throws IOException {
+					boolean[] array = (boolean[]) value;
+					out.writeRaw('[');
+					for(int i = 0; i < array.length; i++) {
+						if(i > 0)
+							out.writeRaw(',');
+						out.writeBoolean(array[i]);
+					}
+					out.writeRaw(']');
+				}
+			};
+		} else if(component == short.class) {
+			return new JsonSerializer() {
+				@Override
+				public void write(Object value, JsonWriter out) throws IOException {
+					short[] array = (short[]) value;
+					out.writeRaw('[');
+					for(int i = 0; i < array.length; i++) {
+						if(i > 0)
+							out.writeRaw(',');
+						out.writeInt(array[i]);
+					}
+					out.writeRaw(']');
+				}
+			};
+		} else if(component == byte.class) {
+			return new JsonSerializer() {
+				@Override
+				public void write(Object value, JsonWriter out) throws IOException {
+					byte[] array = (byte[]) value;
+					out.writeRaw('[');
+					for(int i = 0; i < array.length; i++) {
+						if(i > 0)
+							out.writeRaw(',');
+						out.writeInt(array[i]);
+					}
+					out.writeRaw(']');
+				}
+			};
+		} else if(component == char.class) {
+			return new JsonSerializer() {
+				@Override
+				public void write(Object value, JsonWriter out) throws IOException {
+					out.writeString(new String((char[]) value));
+				}
+			};
+		} else {
+			return new JsonSerializer() {
+				@Override
+				public void write(Object value, JsonWriter out) throws IOException {
+					Object[] array = (Object[]) value;
+					out.writeRaw('[');
+					for(int i = 0; i < array.length; i++) {
+						if(i > 0)
+							out.writeRaw(',');
+						writeValue(array[i], out);
+					}
+					out.writeRaw(']');
+				}
+			};
+		}
+	}
+	
+	/**
+	 * Return an exception thrown by a getter as an unchecked exception
+	 * @param t The thrown exception
+	 * @return The unchecked exception
+	 */
+	private static RuntimeException unchecked(Throwable t) {
+		if(t instanceof RuntimeException)
+			return (RuntimeException) t;
+		else if(t instanceof Error)
+			throw (Error) t;
+		else
+			return new IllegalStateException(t);
+	}
+	
+	/**
+	 * Serializer of the other objects, by their public instance fields
+	 */
+	private static class ObjectSerializer extends JsonSerializer {
+		
+		/**
+		 * Properties, in the fields order
+		 */
+		private Property[] properties;
+		
+		/**
+		 * Object serializer constructor
+		 * @param type The serialized class
+		 */
+		private ObjectSerializer(Class<?> type) {
+			List<Property> properties = new ArrayList<Property>();
+			
+			for(Field field : type.getFields()) {
+				if(!Modifier.isStatic(field.getModifiers()))
+					properties.add(property(field, properties.isEmpty()));
+			}
+			
+			this.properties = properties.toArray(new Property[properties.size()]);
+		}
+		
+		@Override
+		public void write(Object value, JsonWriter out) throws IOException {
+			out.writeRaw('{');
+			
+			for(Property property : properties)
+				property.write(value, out);
+			
+			out.writeRaw('}');
+		}
+	}
+	
+	/**
+	 * Property of a serialized object, written with its key
+	 */
+	private static abstract class Property {
+		
+		/**
+		 * Key, escaped, with its separators
+		 */
+		private char[] key;
+		
+		/**
+		 * Field getter, adapted to take an object
+		 */
+		protected MethodHandle getter;
+		
+		/**
+		 * Write the property of an object
+		 * @param bean The object
+		 * @param out The JSON writer
+		 * @throws IOException Thrown if the output could not be written
+		 */
+		protected abstract void write(Object bean, JsonWriter out) throws IOException;
+		
+		/**
+		 * Write the key of the property
+		 * @param out The JSON writer
+		 * @throws IOException Thrown if the output could not be written
+		 */
+		protected void writeKey(JsonWriter out) throws IOException {
+			out.writeRaw(key);
+		}
+	}
+	
+	/**
+	 * Create the property of a field. The field is read with a getter of its own type, so the
+	 * primitive values are never boxed
+	 * @param field The field
+	 * @param first If the property is the first of the object
+	 * @return The property
+	 */
+	private static Property property(Field field, boolean first) {
+		Class<?> type = field.getType();
+		Property property;
+		
+		if(type == int.class || type == short.class || type == byte.class) {
+			property = new Property() {
+				@Override
+				protected void write(Object bean, JsonWriter out) throws IOException {
+					int value;
+					try {
+						value = (int) getter.invokeExact(bean);
+					} catch (Throwable t) {
+						throw unchecked(t);
+					}
+					writeKey(out);
+					out.writeInt(value);
+				}
+			};
+			type = int.class; // Widened
+		} else if(type == long.class) {
+			property = new Property() {
+				@Override
+				protected void write(Object bean, JsonWriter out) throws IOException {
+					long value;
+					try {
+						value = (long) getter.invokeExact(bean);
+					} catch (Throwable t) {
+						throw unchecked(t);
+					}
+					writeKey(out);
+					out.writeLong(value);
+				}
+			};
+		} else if(type == double.class) {
+			property = new Property() {
+				@Override
+				protected void write(Object bean, JsonWriter out) throws IOException {
+					double value;
+					try {
+						value = (double) getter.invokeExact(bean);
+					} catch (Throwable t) {
+						throw unchecked(t);
+					}
+					writeKey(out);
+					out.writeDouble(value);
+				}
+			};
+		} else if(type == float.class) {
+			property = new Property() {
+				@Override
+				protected void write(Object bean, JsonWriter out) throws IOException {
+					float value;
+					try {
+						value = (float) getter.invokeExact(bean);
+					} catch (Throwable t) {
+						throw unchecked(t);
+					}
+					writeKey(out);
+					out.writeFloat(value);
+				}
+			};
+		} else if(type == boolean.class) {
+			property = new Property() {
+				@Override
+				protected void write(Object bean, JsonWriter out) throws IOException {
+					boolean value;
+					try {
+						value = (boolean) getter.invokeExact(bean);
+					} catch (Throwable t) {
+						throw unchecked(t);
+					}
+					writeKey(out);
+					out.writeBoolean(value);
+				}
+			};
+		} else if(type == char.class) {
+			property = new Property() {
+				@Override
+				protected void write(Object bean, JsonWriter out) throws IOException {
+					char value;
+					try {
+						value = (char) getter.invokeExact(bean);
+					} catch (Throwable t) {
+						throw unchecked(t);
+					}
+					writeKey(out);
+					out.writeString(String.valueOf(value));
+				}
+			};
+		} else {
+			property = new Property() {
+				@Override
+				protected void write(Object bean, JsonWriter out) throws IOException {
+					Object value;
+					try {
+						value = (Object) getter.invokeExact(bean);
+					} catch (Throwable t) {
+						throw unchecked(t);
+					}
+					writeKey(out);
+					writeValue(value, out);
+				}
+			};
+			type = Object.class;
+		}
+		
+		try {
+			field.setAccessible(true); // Public fields of a class which may not be public
+		} catch (RuntimeException e) {
+			// Only accessible if the class is
+		}
+		
+		try {
+			property.getter = LOOKUP.unreflectGetter(field).asType(MethodType.methodType(type, Object.class));
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Field " + field + " is not accessible", e);
+		}
+		
+		StringBuilder key = new StringBuilder();
+		
+		if(!first)
+			key.append(',');
+		
+		try {
+			JsonWriter writer = new JsonWriter(key);
+			writer.writeString(field.getName());
+			writer.flush();
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // Never thrown by a string builder
+		}
+		
+		key.append(':');
+		property.key = key.toString().toCharArray();
+		
+		return property;
+	}
+}
@@ -0,0 +1,367 @@
+package fr.vuzi.webframework.renderer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+/**
+ * Buffered JSON output. The values are written in a single character buffer, flushed to the
+ * underlying output when full : the strings are escaped and the numbers are formatted directly in
+ * the buffer, without creating any intermediate string. When streaming large collections, the output
+ * is also flushed periodically, so the written elements are sent without waiting for the end
+ * 
+ * @author Vuzi
+ *
+ */
+public class JsonWriter {
+
+	/**
+	 * Size of the buffer
+	 */
+	private static final int BUFFER_SIZE = 1024;
+	
+	/**
+	 * Number of characters written before the output is flushed, at the next checkpoint
+	 */
+	private static final int FLUSH_SIZE = 65536;
+	
+	/**
+	 * Delay before the output is flushed, at the next checkpoint, in nanoseconds
+	 */
+	private static final long FLUSH_DELAY = 500000000L;
+	
+	/**
+	 * Escape sequences of the ASCII characters, null if the character doesn't need to be escaped
+	 */
+	private static final char[][] ESCAPES = new char[128][];
+	
+	/**
+	 * Digits of the numbers from 0 to 99, by pair
+	 */
+	private static final char[] DIGITS = new char[200];
+	
+	/**
+	 * Escape sequence of the line separator
+	 */
+	private static final char[] LINE_SEPARATOR = "\\u2028".toCharArray();
+	
+	/**
+	 * Escape sequence of the paragraph separator
+	 */
+	private static final char[] PARAGRAPH_SEPARATOR = "\\u2029".toCharArray();
+	
+	/**
+	 * Hexadecimal digits
+	 */
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	static {
+		for(int c = 0; c < 0x20; c++)
+			ESCAPES[c] = new char[] { '\\', 'u', '0', '0', HEX[c >> 4], HEX[c & 0xF] };
+		
+		ESCAPES['"'] = new char[] { '\\', '"' };
+		ESCAPES['\\'] = new char[] { '\\', '\\' };
+		ESCAPES['\n'] = new char[] { '\\', 'n' };
+		ESCAPES['\r'] = new char[] { '\\', 'r' };
+		ESCAPES['\t'] = new char[] { '\\', 't' };
+		ESCAPES['\b'] = new char[] { '\\', 'b' };
+		ESCAPES['\f'] = new char[] { '\\', 'f' };
+		
+		for(int i = 0; i < 100; i++) {
+			DIGITS[i * 2] = (char) ('0' + i / 10);
+			DIGITS[i * 2 + 1] = (char) ('0' + i % 10);
+		}
+	}
+	
+	/**
+	 * Underlying output
+	 */
+	private Appendable out;
+	
+	/**
+	 * Buffer
+	 */
+	private char[] buffer = new char[BUFFER_SIZE];
+	
+	/**
+	 * Number of characters in the buffer
+	 */
+	private int position;
+	
+	/**
+	 * Number of characters written in the output since the last flush
+	 */
+	private long unflushed;
+	
+	/**
+	 * Time of the last flush, in nanoseconds
+	 */
+	private long lastFlush = System.nanoTime();
+	
+	/**
+	 * JSON writer constructor
+	 * @param out The underlying output, usually a writer or a string builder
+	 */
+	public JsonWriter(Appendable out) {
+		this.out = out;
+	}
+	
+	/**
+	 * Write a character, without escaping
+	 * @param c The character
+	 * @throws IOException Thrown if the output could not be written
+	 */
+	public void writeRaw(char c) throws IOException {
+		if(position == buffer.length)
+			flushBuffer();
+		
+		buffer[position++] = c;
+	}
+	
+	/**
+	 * Write characters, without escaping
+	 * @param chars The characters
+	 * @throws IOException Thrown if the output could not be written
+	 */
+	public void writeRaw(char[] chars) throws IOException {
+		if(position + chars.length > buffer.length) {
+			flushBuffer();
+			
+			if(chars.length > buffer.length) {
+				append(chars, 0, chars.length);
+				unflushed += chars.length;
+				return;
+			}
+		}
+		
+		System.arraycopy(chars, 0, buffer, position, chars.length);
+		position += chars.length;
+	}
+	
+	/**
+	 * Write a string, without escaping
+	 * @param s The string
+	 * @throws IOException Thrown if the output could not be written
+	 */
+	public void writeRaw(String s) throws IOException {
+		int length = s.length();
+		int offset = 0;
+		
+		while(offset < length) {
+			if(position == buffer.length)
+				flushBuffer();
+			
+			int n = Math.min(length - offset, buffer.length - position);
+			s.getChars(offset, offset + n, buffer, position);
+			position += n;
+			offset += n;
+		}
+	}
+	
+	/**
+	 * Write the null value
+	 * @throws IOException Thrown if the output could not be written
+	 */
+	public void writeNull() throws IOException {
+		writeRaw("null");
+	}
+	
+	/**
+	 * Write a boolean value
+	 * @param b The value
+	 * @throws IOException Thrown if the output could not be written
+	 */
+	public void writeBoolean(boolean b) throws IOException {
+		writeRaw(b ? "true" : "false");
+	}
+	
+	/**
+	 * Write a string value, quoted and escaped. The unsafe characters are escaped using a table,
+	 * and the runs of safe characters are copied at once
+	 * @param s The string
+	 * @throws IOException Thrown if the output could not be written
+	 */
+	public void writeString(String s) throws IOException {
+		writeRaw('"');
+		
+		int length = s.length();
+		int start = 0;
+		
+		for(int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			char[] escape;
+			
+			if(c < 128)
+				escape = ESCAPES[c];
+			else if(c == '\u2028')
+				escape = LINE_SEPARATOR; // Invalid in javascript strings
+			else if(c == '\u2029')
+				escape = PARAGRAPH_SEPARATOR;
+			else
+				continue;
+			
+			if(escape != null) {
+				if(i > start)
+					writeRaw(s, start, i);
+				writeRaw(escape);
+				start = i + 1;
+			}
+		}
+		
+		if(length > start)
+			writeRaw(s, start, length);
+		
+		writeRaw('"');
+	}
+	
+	/**
+	 * Write a part of a string, without escaping
+	 * @param s The string
+	 * @param start The start, inclusive
+	 * @param end The end, exclusive
+	 * @throws IOException Thrown if the output could not be written
+	 */
+	private void writeRaw(String s, int start, int end) throws IOException {
+		while(start < end) {
+			if(position == buffer.length)
+				flushBuffer();
+			
+			int n = Math.min(end - start, buffer.length - position);
+			s.getChars(start, start + n, buffer, position);
+			position += n;
+			start += n;
+		}
+	}
+	
+	/**
+	 * Write an integer value
+	 * @param i The value
+	 * @throws IOException Thrown if the output could not be written
+	 */
+	public void writeInt(int i) throws IOException {
+		writeLong(i);
+	}
+	
+	/**
+	 * Write a long value. The digits are written two by two, from a table
+	 * @param l The value
+	 * @throws IOException Thrown if the output could not be written
+	 */
+	public void writeLong(long l) throws IOException {
+		if(l == Long.MIN_VALUE) {
+			writeRaw("-9223372036854775808"); // Can't be negated
+			return;
+		}
+		
+		if(buffer.length - position < 20)
+			flushBuffer();
+		
+		if(l < 0) {
+			buffer[position++] = '-';
+			l = -l;
+		}
+		
+		int length = 1;
+		for(long n = l; n >= 10; n /= 10)
+			length++;
+		
+		int end = position + length;
+		int p = end;
+		
+		while(l >= 100) {
+			int pair = (int) (l % 100) * 2;
+			l /= 100;
+			buffer[--p] = DIGITS[pair + 1];
+			buffer[--p] = DIGITS[pair];
+		}
+		
+		if(l >= 10) {
+			int pair = (int) l * 2;
+			buffer[--p] = DIGITS[pair + 1];
+			buffer[--p] = DIGITS[pair];
+		} else
+			buffer[--p] = (char) ('0' + l);
+		
+		position = end;
+	}
+	
+	/**
+	 * Write a double value. The values which are not numbers are written as null
+	 * @param d The value
+	 * @throws IOException Thrown if the output could not be written
+	 */
+	public void writeDouble(double d) throws IOException {
+		if(Double.isNaN(d) || Double.isInfinite(d))
+			writeNull();
+		else if(d == (long) d && Math.abs(d) < 1e15)
+			writeLong((long) d); // Integral value
+		else
+			writeRaw(Double.toString(d));
+	}
+	
+	/**
+	 * Write a float value. The values which are not numbers are written as null
+	 * @param f The value
+	 * @throws IOException Thrown if the output could not be written
+	 */
+	public void writeFloat(float f) throws IOException {
+		if(Float.isNaN(f) || Float.isInfinite(f))
+			writeNull();
+		else if(f == (long) f && Math.abs(f) < 1e7)
+			writeLong((long) f); // Integral value
+		else
+			writeRaw(Float.toString(f));
+	}
+	
+	/**
+	 * Write the buffered characters in the output, and flush the output if possible
+	 * @throws IOException Thrown if the output could not be written
+	 */
+	public void flush() throws IOException {
+		flushBuffer();
+		
+		if(out instanceof Writer)
+			((Writer) out).flush();
+		
+		unflushed = 0;
+		lastFlush = System.nanoTime();
+	}
+	
+	/**
+	 * Flush the output if enough characters were written, or if the last flush is too old. Called
+	 * between the elements of the streamed collections
+	 * @throws IOException Thrown if the output could not be written
+	 */
+	public void checkpoint() throws IOException {
+		if(unflushed + position >= FLUSH_SIZE || System.nanoTime() - lastFlush >= FLUSH_DELAY)
+			flush();
+	}
+	
+	/**
+	 * Write the buffered characters in the output
+	 * @throws IOException Thrown if the output could not be written
+	 */
+	private void flushBuffer() throws IOException {
+		if(position > 0) {
+			append(buffer, 0, position);
+			unflushed += position;
+			position = 0;
+		}
+	}
+	
+	/**
+	 * Write characters in the output
+	 * @param chars The characters
+	 * @param offset The offset
+	 * @param length The length
+	 * @throws IOException Thrown if the output could not be written
+	 */
+	private void append(char[] chars, int offset, int length) throws IOException {
+		if(out instanceof Writer)
+			((Writer) out).write(chars, offset, length);
+		else if(out instanceof StringBuilder)
+			((StringBuilder) out).append(chars, offset, length);
+		else
+			out.append(CharBuffer.wrap(chars, offset, length));
+	}
+}
@@ -1,13 +1,28 @@
 package fr.vuzi.webframework.renderer;
 
+import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.nio.charset.Charset;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.zip.GZIPOutputStream;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import fr.vuzi.webframework.Configuration;
 import fr.vuzi.webframework.Lockable;
+import fr.vuzi.webframework.Utils;
 import fr.vuzi.webframework.action.IAction;
 import fr.vuzi.webframework.context.IContext;
 import fr.vuzi.webframework.dispatcher.IDispatcher;
@@ -40,6 +55,11 @@ public class MainRenderer implements Lockable {
 	 */
 	private Charset charset = Charset.forName("UTF-8");
 	
+	/**
+	 * Size of the compression buffer
+	 */
+	private static final int BUFFER_SIZE = 8192;
+	
 	/**
 	 * Constructor of the main renderer
 	 * 
@@ -120,7 +140,10 @@ public class MainRenderer implements Lockable {
 	
 	/**
 	 * Render for the given context. This methods will dispatch all the actions which needs dispatching,
-	 * and write the right mime-type and content according to the response renderer type selected
+	 * and write the right mime-type and content according to the response renderer type selected. The
+	 * content is streamed to the response as it is rendered, unless strong entity tags are enabled : the
+	 * content is then rendered in memory to be hashed. If the action or the rule supplied validators
+	 * matching the request, a 304 is sent and nothing is rendered
 	 * @param context The context
 	 * @throws Exception Thrown if an error occurred during the rendering
 	 */
@@ -138,24 +161,352 @@ public class MainRenderer implements Lockable {
 		
 		// Display in the response
 		if(action == null || (action != null && action.needRenderer())) {
+			if(notModified(context))
+				return; // Validated by the action, nothing to render
+			
+			if(isTagged(context)) {
+				StringWriter content = new StringWriter();
+				renderer.render(context, content);
+				writeTagged(context, renderer, content.toString());
+			} else {
+				ResponseWriter writer = new ResponseWriter(context, renderer);
+				boolean rendered = false;
+				
+				try {
+					renderer.render(context, writer);
+					rendered = true;
+				} finally {
+					if(rendered)
+						writer.close();
+					else
+						writer.abort(); // So the error can replace the partial content
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Render asynchronously for the given context. The actions are dispatched without blocking the calling
+	 * thread, and the response is written by the thread completing the last action
+	 * @param context The context
+	 * @return The future completed once the response is written
+	 */
+	public CompletableFuture<Void> renderAsync(final IContext context) {
+		final IRenderer renderer;
+		final IAction action;
+		CompletableFuture<Void> dispatched;
+		
+		try {
+			// Renderer to use
+			renderer = getRenderer(context);
+			
+			// Action to perform
+			action = dispatcher.instantiate(context.getActionClassname(), context);
+			
+			// Always dispatch the first action
+			if(context.getActionClassname() != null)
+				dispatched = dispatcher.dispatchAsync(context, action);
+			else
+				dispatched = CompletableFuture.completedFuture(null);
+		} catch (Exception e) {
+			return Utils.failedFuture(e);
+		}
+		
+		return dispatched.thenCompose(new Function<Void, CompletionStage<Void>>() {
+			@Override
+			public CompletionStage<Void> apply(Void v) {
+				if(action != null && !action.needRenderer())
+					return CompletableFuture.completedFuture(null);
+				
+				if(notModified(context))
+					return CompletableFuture.completedFuture(null); // Validated by the action, nothing to render
+				
+				if(isTagged(context)) {
+					return renderer.renderAsync(context).thenAccept(new Consumer<String>() {
+						@Override
+						public void accept(String content) {
+							try {
+								writeTagged(context, renderer, content);
+							} catch (IOException e) {
+								throw new CompletionException(e);
+							}
+						}
+					});
+				}
+				
+				// Display in the response
+				final ResponseWriter writer = new ResponseWriter(context, renderer);
+				
+				return renderer.renderAsync(context, writer).whenComplete(new BiConsumer<Void, Throwable>() {
+					@Override
+					public void accept(Void v, Throwable t) {
+						if(t != null)
+							writer.abort(); // So the error can replace the partial content
+					}
+				}).thenRun(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							writer.close();
+						} catch (IOException e) {
+							throw new CompletionException(e);
+						}
+					}
+				});
+			}
+		});
+	}
+	
+	/**
+	 * Test if the response may be validated by the client, i.e. if it is the successful response of
+	 * a GET or HEAD request
+	 * @param context The context
+	 * @return True if the response may be validated, false otherwise
+	 */
+	private boolean isConditional(IContext context) {
+		String method = context.getRequest().getMethod();
+		return context.getStatus() == 200 && ("GET".equals(method) || "HEAD".equals(method));
+	}
+	
+	/**
+	 * Test if the rendered content should be tagged with a strong entity tag : only if enabled, and if
+	 * the action didn't supply its own tag
+	 * @param context The context
+	 * @return True if the content should be tagged, false otherwise
+	 */
+	private boolean isTagged(IContext context) {
+		return Configuration.etag && context.getETag() == null && isConditional(context);
+	}
+	
+	/**
+	 * Send the validators supplied by the action or the rule, and test them against the conditional
+	 * headers of the request. If the client already has the response, a 304 is sent without any content
+	 * @param context The context
+	 * @return True if the client has the response, i.e. if nothing should be rendered
+	 */
+	private boolean notModified(IContext context) {
+		String etag = context.getETag();
+		long lastModified = context.getLastModified();
+		
+		if((etag == null && lastModified < 0) || !isConditional(context))
+			return false;
+		
+		if(etag != null)
+			context.getResponse().setHeader("ETag", etag = "W/\"" + etag + "\"");
+		if(lastModified >= 0)
+			context.getResponse().setDateHeader("Last-Modified", lastModified);
+		
+		if(!isValid(context.getRequest(), etag, lastModified))
+			return false;
+		
+		context.getResponse().setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		return true;
+	}
+	
+	/**
+	 * Send rendered content with a strong entity tag, hashed from the content. The content is only sent
+	 * if the client doesn't already have it, otherwise a 304 is sent without compressing anything
+	 * @param context The context
+	 * @param renderer The renderer used
+	 * @param content The rendered content
+	 * @throws IOException Thrown if the response could not be written
+	 */
+	private void writeTagged(IContext context, IRenderer renderer, String content) throws IOException {
+		String etag = tag(content, context.supportEncoding("gzip")); // Each encoding has its own tag
+		context.getResponse().setHeader("ETag", etag);
+		
+		if(isValid(context.getRequest(), etag, -1)) {
+			context.getResponse().setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		
+		ResponseWriter writer = new ResponseWriter(context, renderer);
+		writer.write(content);
+		writer.close();
+	}
+	
+	/**
+	 * Test if the validators of the client match the response. The entity tags are compared first, the
+	 * modification date being only used if the client sent no tag
+	 * @param request The request
+	 * @param etag The entity tag of the response, quoted, or null
+	 * @param lastModified The last modification date of the response, or -1
+	 * @return True if the client already has the response, false otherwise
+	 */
+	public static boolean isValid(HttpServletRequest request, String etag, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		
+		if(ifNoneMatch != null) {
+			if(etag == null)
+				return false;
+			
+			String opaque = etag.startsWith("W/") ? etag.substring(2) : etag; // Weak comparison
+			
+			for(String candidate : ifNoneMatch.split(",")) {
+				candidate = candidate.trim();
+				
+				if(candidate.equals("*") || (candidate.startsWith("W/") ? candidate.substring(2) : candidate).equals(opaque))
+					return true;
+			}
+			
+			return false;
+		}
+		
+		if(lastModified < 0)
+			return false;
+		
+		try {
+			long since = request.getDateHeader("If-Modified-Since");
+			return since >= 0 && lastModified / 1000 <= since / 1000; // HTTP dates are in seconds
+		} catch (IllegalArgumentException e) {
+			return false; // Invalid date
+		}
+	}
+	
+	/**
+	 * Return the strong entity tag of a content, made of its 64 bits FNV-1a hash
+	 * @param content The content
+	 * @param gzip If the content is compressed
+	 * @return The entity tag, quoted
+	 */
+	public static String tag(String content, boolean gzip) {
+		long hash = 0xcbf29ce484222325L;
+		
+		for(int i = 0; i < content.length(); i++) {
+			hash ^= content.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		
+		return "\"" + Long.toHexString(hash) + (gzip ? "-gzip\"" : "\"");
+	}
+	
+	/**
+	 * Writer of the rendered content, opening the response on the first write : the status and the
+	 * headers are only set once the renderer starts writing, so an error raised before can still be
+	 * sent instead. The content is encoded and compressed on the fly, through buffers of a fixed size
+	 */
+	private class ResponseWriter extends Writer {
+		
+		/**
+		 * The context
+		 */
+		private IContext context;
+		
+		/**
+		 * The renderer used
+		 */
+		private IRenderer renderer;
+		
+		/**
+		 * Writer of the response, once opened
+		 */
+		private Writer out;
+		
+		/**
+		 * If the rendering failed : nothing is written to the response anymore
+		 */
+		private boolean aborted;
+		
+		/**
+		 * Response writer constructor
+		 * @param context The context
+		 * @param renderer The renderer used
+		 */
+		private ResponseWriter(IContext context, IRenderer renderer) {
+			this.context = context;
+			this.renderer = renderer;
+		}
+		
+		/**
+		 * Open the response, if not already opened
+		 * @return The writer of the response
+		 * @throws IOException Thrown if the response could not be opened
+		 */
+		private Writer open() throws IOException {
+			if(out != null)
+				return out;
+			
 			context.getResponse().setStatus(context.getStatus());
 			context.getResponse().setCharacterEncoding(charset.displayName());
 			context.getResponse().setContentType(renderer.getHttpType());
-
+			
 			String encoding = context.getRequest().getHeader("Accept-Encoding");
-
-			OutputStream out = context.getResponse().getOutputStream();
+			
+			final OutputStream response = context.getResponse().getOutputStream();
+			OutputStream stream = new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					if(!aborted)
+						response.write(b);
+				}
+				
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					if(!aborted)
+						response.write(b, off, len);
+				}
+				
+				@Override
+				public void flush() throws IOException {
+					if(!aborted)
+						response.flush();
+				}
+				
+				@Override
+				public void close() throws IOException {
+					if(!aborted)
+						response.close();
+				}
+			};
 			
 			// Compress if possible
 			if(encoding != null && encoding.contains("gzip")) {
 				context.getResponse().addHeader("Content-Encoding", "gzip");
-				out = new GZIPOutputStream(out);
+				stream = new GZIPOutputStream(stream, BUFFER_SIZE, true); // Flushes the compressed data
+			}
+			
+			out = new OutputStreamWriter(stream, charset); // Encodes through its own fixed size buffer
+			return out;
+		}
+		
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			if(len > 0)
+				open().write(cbuf, off, len);
+		}
+		
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			if(len > 0)
+				open().write(str, off, len);
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			if(out != null)
+				out.flush();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			open().close(); // Empty content : the headers are still sent
+		}
+		
+		/**
+		 * Release the response after a failed rendering, without writing anything more : the compressor
+		 * is released without its trailer, and the content still buffered is dropped, so a partial
+		 * content is never completed. The response can then be reset to send the error instead
+		 */
+		private void abort() {
+			aborted = true;
+			
+			if(out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// Nothing is written anymore
+				}
 			}
-
-			// Write to the output
-			out.write(renderer.render(context).getBytes(charset));
-			out.flush();
-			out.close();
 		}
 	}
 	
@@ -1,16 +1,18 @@
 package fr.vuzi.webframework.renderer;
 
-import java.lang.reflect.Array;
-import java.lang.reflect.Field;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.CompletableFuture;
 
+import fr.vuzi.webframework.Utils;
 import fr.vuzi.webframework.context.IContext;
 
 /**
  * JSON renderer. The rendered object is taken in the <b>model</b> field in the context
- * attributes. The object is displayed by its public fields using reflexivity
+ * attributes. The object is displayed by its public fields, using a serializer built once for
+ * each class (see {@link JsonSerializer}). The model may also be an iterable, an iterator, a stream
+ * or a {@link ICursor} : its elements are then written to the response as they are pulled, and
+ * the response is flushed periodically, i.e. sent in chunks
  * 
  * @author Vuzi
  *
@@ -19,102 +21,99 @@ public class RendererJSON implements IRenderer {
 
 	@Override
 	public String render(IContext context) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		render(context, sb);
+		return sb.toString();
+	}
+	
+	/**
+	 * Render the model, writing it as it is rendered
+	 */
+	@Override
+	public void render(IContext context, Writer writer) throws Exception {
+		render(context, (Appendable) writer);
+	}
+	
+	/**
+	 * Render the model asynchronously. The actions being already dispatched, the model is written
+	 * by the calling thread, so the streamed models are never rendered in memory
+	 */
+	@Override
+	public CompletableFuture<Void> renderAsync(IContext context, Writer writer) {
+		try {
+			render(context, writer);
+			return CompletableFuture.completedFuture(null);
+		} catch (Exception e) {
+			return Utils.failedFuture(e);
+		}
+	}
+	
+	/**
+	 * Render the model in an appendable
+	 * @param context The context
+	 * @param out The appendable
+	 * @throws IOException Thrown if the appendable could not be written
+	 */
+	private void render(IContext context, Appendable out) throws IOException {
 		try {
 			Object model = context.getAttribute("model");
 
 			if (model != null)
-				return renderObject(model);
+				renderObject(model, out);
 			
+		} catch (IOException e) {
+			throw e;
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-
-		return "";
 	}
 
 	/**
-	 * Render array using reflexivity
-	 * @param model The object to display
-	 * @return The rendered object
+	 * Render array
+	 * @param model The array to display
+	 * @return The rendered array
 	 * @throws Exception
 	 */
 	public String renderArray(Object model) throws Exception {
 		StringBuilder sb = new StringBuilder();
-		boolean first = true;
-		
-		if (model != null) {
-			sb.append(" [ ");
-			
-			int length = Array.getLength(model);
-		    for (int i = 0; i < length; i ++) {
-		    	
-				if(first)
-					first = false;
-				else
-					sb.append(", ");
-				
-		        sb.append(renderObject(Array.get(model, i)));
-		    }
-			
-			
-			sb.append(" ] ");
-		}
-		
+		renderArray(model, sb);
 		return sb.toString();
 	}
 	
 	/**
-	 * Render object using reflexivity
+	 * Render array in an appendable. Nothing is rendered if the array is null
+	 * @param model The array to display
+	 * @param sb The appendable
+	 * @throws Exception
+	 */
+	public void renderArray(Object model, Appendable sb) throws Exception {
+		if (model != null)
+			renderObject(model, sb);
+	}
+	
+	/**
+	 * Render object
 	 * @param model The object to display
 	 * @return The rendered object
 	 * @throws Exception
 	 */
 	public String renderObject(Object model) throws Exception {
 		StringBuilder sb = new StringBuilder();
-		boolean first = true;
-		
-		if (model != null) {
-			if(model.getClass().isPrimitive()) {
-				// Primitive
-				sb.append(" " + model + " ");
-			} else if (model.getClass().equals(String.class)) {
-				// String
-				sb.append("\"" + model + "\"");
-			} else if (model.getClass().equals(Integer.class) || model.getClass().equals(Long.class) || model.getClass().equals(Double.class) || model.getClass().equals(Boolean.class)) {
-				// Numerical value
-				sb.append(" " + model + " ");
-			} else if(model.getClass().isArray()) {
-				return renderArray(model);
-			} else if(model.getClass().equals(Date.class)) {
-				// Java date
-				Date d = (Date) model;
-				DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-				sb.append("\"" + df.format(d) + "\"");
-			} else {
-				// Other object
-				sb.append("{ ");
-	
-				for (Field field : model.getClass().getFields()) {
-					String key = "\"" + field.getName() + "\"";
-					String value = renderObject(field.get(model));
-	
-					// Display field values
-					if(first)
-						first = false;
-					else
-						sb.append(",");
-	
-					sb.append(" " + key + " : " + value);
-				}
-	
-				sb.append(" }");
-			}
-		} else {
-			return "null";
-		}
-
+		renderObject(model, sb);
 		return sb.toString();
 	}
+	
+	/**
+	 * Render object in an appendable, using the serializer of its class
+	 * @param model The object to display
+	 * @param sb The appendable
+	 * @throws Exception
+	 */
+	public void renderObject(Object model, Appendable sb) throws Exception {
+		JsonWriter out = new JsonWriter(sb);
+		JsonSerializer.writeValue(model, out);
+		out.flush();
+	}
 
 	@Override
 	public String getHttpType() {
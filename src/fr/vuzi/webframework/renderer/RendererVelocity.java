@@ -1,8 +1,18 @@
 package fr.vuzi.webframework.renderer;
 
+import java.io.File;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
 
 import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
@@ -10,11 +20,21 @@ import org.apache.velocity.app.VelocityEngine;
 import org.apache.velocity.runtime.RuntimeConstants;
 
 import fr.vuzi.webframework.Configuration;
+import fr.vuzi.webframework.Utils;
+import fr.vuzi.webframework.context.ActionState;
 import fr.vuzi.webframework.context.IContext;
+import fr.vuzi.webframework.dispatcher.Dispatcher;
 import fr.vuzi.webframework.dispatcher.IDispatcher;
 
 /**
- * Velocity renderer. This renderer needs to use the dispatcher to generate its fragments
+ * Velocity renderer. This renderer needs to use the dispatcher to generate its fragments.
+ * 
+ * A single velocity engine is shared by all the requests. The parsed templates are cached by the
+ * engine, and their files are checked for modifications on the configured interval. All the
+ * templates are parsed when the renderer is created, so the first requests don't have to.
+ * 
+ * The sibling fragments are merged concurrently on the executor of the dispatcher, so the
+ * rendering of a level takes about as long as its slowest template
  * 
  * @author Vuzi
  *
@@ -22,28 +42,214 @@ import fr.vuzi.webframework.dispatcher.IDispatcher;
 public class RendererVelocity implements IRenderer {
 
 	private IDispatcher dispatcher;
+	
+	/**
+	 * Velocity engine, shared by all the requests
+	 */
+	private VelocityEngine engine;
+	
+	/**
+	 * Templates folder
+	 */
+	private File templatesFolder;
+	
+	/**
+	 * Executor merging the templates concurrently : the executor of the dispatcher, or the calling
+	 * thread when the executor is not available or saturated
+	 */
+	private Executor executor = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			if(dispatcher instanceof Dispatcher) {
+				try {
+					((Dispatcher) dispatcher).getExecutor().execute(command);
+					return;
+				} catch (RejectedExecutionException e) {
+					// Saturated or shut down
+				}
+			}
+			
+			command.run();
+		}
+	};
 
 	/**
-	 * Velocity renderer
+	 * Velocity renderer, using the default templates folder
 	 * @param dispatcher The dispatcher
 	 */
 	public RendererVelocity(IDispatcher dispatcher) {
+		this(dispatcher, new File(RendererVelocity.class.getClassLoader().getResource("/../templates/").getFile()), Configuration.velocityCheckInterval);
+	}
+	
+	/**
+	 * Velocity renderer
+	 * @param dispatcher The dispatcher
+	 * @param templatesFolder The templates folder
+	 * @param checkInterval Interval between two checks of the modifications of a template file, in
+	 *                      seconds. 0 to never reload the templates
+	 */
+	public RendererVelocity(IDispatcher dispatcher, File templatesFolder, int checkInterval) {
 		this.dispatcher = dispatcher;
+		this.templatesFolder = templatesFolder;
+		
+		engine = new VelocityEngine();
+		engine.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_PATH, templatesFolder.getAbsolutePath());
+		engine.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_CACHE, "true");
+		engine.setProperty("file.resource.loader.modificationCheckInterval", String.valueOf(checkInterval));
+		engine.setProperty(RuntimeConstants.INPUT_ENCODING, "UTF-8");
+		engine.setProperty(RuntimeConstants.OUTPUT_ENCODING, "UTF-8");
+		engine.init();
+		
+		precompile();
+	}
+	
+	/**
+	 * Parse all the templates of the templates folder, and put them in the cache of the engine. The
+	 * templates which can't be parsed are reported, and will be parsed again when used
+	 * @return The number of parsed templates
+	 */
+	public int precompile() {
+		return precompile(templatesFolder, "");
+	}
+	
+	/**
+	 * Parse all the templates of a folder and its sub-folders
+	 * @param folder The folder
+	 * @param prefix The path of the folder, relative to the templates folder
+	 * @return The number of parsed templates
+	 */
+	private int precompile(File folder, String prefix) {
+		File[] files = folder.listFiles();
+		int parsed = 0;
+		
+		if(files == null)
+			return 0;
+		
+		for(File file : files) {
+			if(file.isDirectory()) {
+				parsed += precompile(file, prefix + file.getName() + "/");
+			} else if(file.getName().endsWith(".vm")) {
+				try {
+					engine.getTemplate(prefix + file.getName());
+					parsed++;
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		return parsed;
 	}
 	
+	/**
+	 * Render the page. The fragments are rendered following their dependency graph, and the calling
+	 * thread waits for the whole page
+	 */
 	@Override
 	public String render(IContext context) throws Exception {
-		// First, generate the main HTML element of the page
-		context.setFragment(Configuration.CURRENT, renderTemplate(context, context.getActionClassname()));
-
-		// For each element, dispatch then render (by priority)
-		for(Entry<Integer, List<String>> entry : Configuration.velocityRenderingOrder.entrySet()) {
-			dispatcher.dispatch(context, dispatcher.instantiate(entry.getValue(), context)); // Do the actions
-			renderTemplates(context, entry.getValue()); // Render the templates
+		try {
+			return renderAsync(context).get();
+		} catch (ExecutionException e) {
+			throw Utils.unwrapFailure(e);
 		}
-
-		// Reunite everything in the main view
-		return renderTemplate(context, "main");
+	}
+	
+	/**
+	 * Render the page, writing the main view as it is rendered. The fragments are rendered following
+	 * their dependency graph, and the calling thread waits for the whole page
+	 */
+	@Override
+	public void render(IContext context, Writer writer) throws Exception {
+		try {
+			renderAsync(context, writer).get();
+		} catch (ExecutionException e) {
+			throw Utils.unwrapFailure(e);
+		}
+	}
+	
+	/**
+	 * Render the page asynchronously
+	 * @see #renderFragments(IContext)
+	 */
+	@Override
+	public CompletableFuture<String> renderAsync(final IContext context) {
+		return renderFragments(context).thenApply(new Function<Void, String>() {
+			@Override
+			public String apply(Void v) {
+				return renderTemplate(context, "main"); // Reunite everything in the main view
+			}
+		});
+	}
+	
+	/**
+	 * Render the page asynchronously, writing the main view as it is rendered. Only the fragments
+	 * are rendered in memory
+	 * @see #renderFragments(IContext)
+	 */
+	@Override
+	public CompletableFuture<Void> renderAsync(final IContext context, final Writer writer) {
+		return renderFragments(context).thenRun(new Runnable() {
+			@Override
+			public void run() {
+				mergeTemplate(context, "main", writer); // Reunite everything in the main view
+			}
+		});
+	}
+	
+	/**
+	 * Render the fragments of the page asynchronously, following their dependency graph : the action
+	 * of a fragment is dispatched as soon as all its children are rendered, and the fragment rendered
+	 * once its action is done. The page latency is then the latency of the longest path of the graph
+	 * @param context The context
+	 * @return The future completed once all the fragments are rendered
+	 */
+	private CompletableFuture<Void> renderFragments(final IContext context) {
+		try {
+			// First, generate the main HTML element of the page
+			context.setFragment(Configuration.CURRENT, renderTemplate(context, context.getActionClassname()));
+		} catch (Exception e) {
+			return Utils.failedFuture(e);
+		}
+		
+		FragmentGraph graph = Configuration.velocityFragmentGraph;
+		Map<String, CompletableFuture<Void>> rendered = new HashMap<String, CompletableFuture<Void>>();
+		
+		for(final String fragment : graph.getFragments()) { // Children first
+			List<String> children = graph.getChildren(fragment);
+			CompletableFuture<?>[] dependencies = new CompletableFuture<?>[children.size()];
+			
+			for(int i = 0; i < dependencies.length; i++) {
+				if(!rendered.containsKey(children.get(i)))
+					return Utils.failedFuture(new IllegalStateException("Fragment " + children.get(i) + " is not scheduled before its parent " + fragment));
+				dependencies[i] = rendered.get(children.get(i));
+			}
+			
+			final List<String> templates = Collections.singletonList(fragment);
+			
+			CompletableFuture<Void> dispatched = CompletableFuture.allOf(dependencies).thenCompose(new Function<Void, CompletionStage<Void>>() {
+				@Override
+				public CompletionStage<Void> apply(Void v) {
+					return dispatcher.dispatchAsync(context, dispatcher.instantiate(templates, context)); // Do the action
+				}
+			});
+			
+			Runnable merge = new Runnable() {
+				@Override
+				public void run() {
+					renderFragment(context, fragment); // Render the template
+				}
+			};
+			
+			// The siblings are merged concurrently, the last one by the thread completing its action
+			List<String> siblings = graph.getSiblings(fragment);
+			
+			if(siblings.size() > 1 && !fragment.equals(siblings.get(siblings.size() - 1)))
+				rendered.put(fragment, dispatched.thenRunAsync(merge, executor));
+			else
+				rendered.put(fragment, dispatched.thenRun(merge));
+		}
+		
+		return CompletableFuture.allOf(rendered.values().toArray(new CompletableFuture<?>[rendered.size()]));
 	}
 	
 	/**
@@ -54,8 +260,37 @@ public class RendererVelocity implements IRenderer {
 	 */
 	public void renderTemplates(IContext context, List<String> templatesNames) throws Exception {
 		for(String templateName : templatesNames)
+			renderFragment(context, templateName);
+	}
+	
+	/**
+	 * Render the fragment of a template, and put it in the context
+	 * @param context The context
+	 * @param templateName The template name
+	 */
+	private void renderFragment(IContext context, String templateName) {
+		ActionState state = context.getActionState(templateName);
+		
+		if(state != null && state.isFailure()) // No values to render
+			context.setFragment(templateName, renderFallback(context, templateName));
+		else
 			context.setFragment(templateName, renderTemplate(context, templateName));
 	}
+	
+	/**
+	 * Generate the fallback fragment of a template, used when its action failed or timed out. The
+	 * fallback template is the template name followed by ".fallback", and the fragment is left empty
+	 * if the fallback template doesn't exist
+	 * @param context The context
+	 * @param templateName The template name
+	 * @return The string result
+	 */
+	public String renderFallback(IContext context, String templateName) {
+		if(!engine.resourceExists(templateName + ".fallback.vm"))
+			return "";
+		
+		return renderTemplate(context, templateName + ".fallback");
+	}
 
 	/**
 	 * Generate the string result for a given template
@@ -64,24 +299,27 @@ public class RendererVelocity implements IRenderer {
 	 * @return The string result
 	 */
 	public String renderTemplate(IContext context, String templateName) {
-
-		// TODO : Singleton
-        VelocityEngine ve = new VelocityEngine();
-        ve.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_PATH, this.getClass().getClassLoader().getResource("/../templates/").getFile());
-        ve.setProperty("input.encoding", "UTF-8");
-        ve.setProperty("output.encoding", "UTF-8");
-        ve.init();
+		StringWriter sw = new StringWriter();
+		mergeTemplate(context, templateName, sw);
+		
+		return sw.toString();
+	}
+	
+	/**
+	 * Render a given template in a writer
+	 * @param context The context
+	 * @param templateName The template name
+	 * @param writer The writer
+	 */
+	public void mergeTemplate(IContext context, String templateName, Writer writer) {
         
         // Add our context to the velocity context
 		VelocityContext vcontext = new VelocityContext();
 		vcontext.put("context", context);
 		
-		// Get the template
-		Template t = ve.getTemplate(templateName + ".vm");
-		StringWriter sw = new StringWriter();
-		t.merge(vcontext, sw);
-		
-		return sw.toString();
+		// Get the template, parsed once
+		Template t = engine.getTemplate(templateName + ".vm");
+		t.merge(vcontext, writer);
 	}
 	
 	@Override
@@ -0,0 +1,148 @@
+package fr.vuzi.webframework.controller;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Simulation of the adaptive limiter, driving tryAcquire and release with a synthetic latency model : a
+ * server with a fixed number of slots, each request holding a slot for a fixed service time, and more
+ * clients than slots. The requests over the capacity queue for a slot, and their latency grows with the
+ * queue. The limit should converge close to the capacity, whether it starts far above or far below it.
+ *
+ * Run with the main method, exits with 1 if the limit does not converge
+ *
+ * @author Vuzi
+ *
+ */
+public class AdaptiveLimiterSimulation {
+	
+	/**
+	 * Number of requests the simulated server handles concurrently
+	 */
+	private static final int CAPACITY = 8;
+	
+	/**
+	 * Service time of a request, in milliseconds
+	 */
+	private static final long SERVICE_TIME = 10;
+	
+	/**
+	 * Number of simulated clients
+	 */
+	private static final int CLIENTS = 64;
+	
+	/**
+	 * Pause of a client after a rejected request, in milliseconds
+	 */
+	private static final long BACKOFF = 2;
+	
+	/**
+	 * Duration of a simulation, in milliseconds
+	 */
+	private static final long DURATION = 12000;
+	
+	/**
+	 * Duration at the end of a simulation where the limit is sampled, in milliseconds
+	 */
+	private static final long SAMPLED = 4000;
+	
+	/**
+	 * Lowest average limit accepted, as a ratio of the capacity
+	 */
+	private static final double MIN_RATIO = 0.75;
+	
+	/**
+	 * Highest average limit accepted, as a ratio of the capacity
+	 */
+	private static final double MAX_RATIO = 3.0;
+	
+	/**
+	 * Run the simulations
+	 * @param args Unused
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		boolean converged = true;
+		
+		converged &= simulate("from above", new AdaptiveLimiter(200, 1, 1000));
+		converged &= simulate("from below", new AdaptiveLimiter(1, 1, 1000));
+		
+		if(!converged)
+			System.exit(1);
+	}
+	
+	/**
+	 * Drive a limiter with the clients, and check that its limit converges
+	 * @param name The name of the simulation
+	 * @param limiter The limiter
+	 * @return True if the limit converged, false otherwise
+	 * @throws InterruptedException
+	 */
+	private static boolean simulate(String name, final AdaptiveLimiter limiter) throws InterruptedException {
+		final Semaphore slots = new Semaphore(CAPACITY, true);
+		final AtomicBoolean running = new AtomicBoolean(true);
+		Thread[] clients = new Thread[CLIENTS];
+		
+		for(int i = 0; i < clients.length; i++) {
+			clients[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while(running.get()) {
+						try {
+							if(!limiter.tryAcquire()) {
+								Thread.sleep(BACKOFF);
+								continue;
+							}
+							
+							long start = System.nanoTime();
+							
+							try {
+								slots.acquire(); // Queued by the server
+								
+								try {
+									Thread.sleep(SERVICE_TIME);
+								} finally {
+									slots.release();
+								}
+							} finally {
+								limiter.release(System.nanoTime() - start, false);
+							}
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}, "client-" + i);
+			clients[i].setDaemon(true);
+			clients[i].start();
+		}
+		
+		long end = System.currentTimeMillis() + DURATION;
+		long sampleStart = end - SAMPLED;
+		long sum = 0;
+		int samples = 0;
+		
+		while(System.currentTimeMillis() < end) {
+			Thread.sleep(100);
+			
+			if(System.currentTimeMillis() >= sampleStart) {
+				sum += limiter.getLimit();
+				samples++;
+			}
+		}
+		
+		running.set(false);
+		
+		for(Thread client : clients)
+			client.join();
+		
+		double average = (double) sum / samples;
+		boolean converged = average >= CAPACITY * MIN_RATIO && average <= CAPACITY * MAX_RATIO;
+		
+		System.out.println(name + " : average limit " + String.format("%.1f", average) + " for a capacity of " + CAPACITY
+				+ ", " + limiter + (converged ? " - OK" : " - FAILED"));
+		
+		return converged;
+	}
+}